@@ -0,0 +1,174 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmlcml.ami2.chem.MoleculeCreator.CMLPage;
+import org.xmlcml.graphics.svg.SVGElement;
+import org.xmlcml.graphics.svg.SVGUtil;
+
+/**
+ * Benchmarks for each stage of the ChemistryBuilder/MoleculeCreator pipeline.
+ * <p>
+ * Every invocation gets a new ChemistryBuilder on a copy of the SVG which has already been taken through
+ * the stages before the one measured, so only that stage is timed. Build and run from the project directory with
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/ami-chem-benchmarks.jar ChemistryPipelineBenchmark -prof gc
+ * </pre>
+ * -prof gc adds the allocation rate and bytes allocated per operation. Other SVGs can be given with
+ * -p svgFile=path/to/file.svg (regressiondemos.tar has no SVGs in it, so its files are not included by default).
+ *
+ * @author pm286
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class ChemistryPipelineBenchmark {
+
+	private final static int DERIVED_PRIMITIVES = 0;
+	private final static int SHORT_LINES = 1;
+	private final static int UNSATURATED_BONDS = 2;
+	private final static int JUNCTIONS = 3;
+	private final static int MOLECULES = 4;
+
+	@State(Scope.Thread)
+	public static class Input {
+
+		@Param({
+			"src/test/resources/org/xmlcml/ami2/graphchem/aspergillus_9/svg/image.g.2.10.svg",
+			"src/test/resources/org/xmlcml/ami2/wedgesreduced.svg"
+		})
+		public String svgFile;
+
+		SVGElement svg;
+
+		@Setup(Level.Trial)
+		public void readSVG() throws IOException {
+			InputStream is = new FileInputStream(svgFile);
+			try {
+				svg = SVGUtil.parseToSVGElement(is);
+			} finally {
+				is.close();
+			}
+		}
+
+		/**
+		 * @param stage the first stage that is not to be run
+		 * @return new builder on a copy of the SVG
+		 */
+		ChemistryBuilder createBuilderBefore(int stage) {
+			ChemistryBuilder builder = new ChemistryBuilder((SVGElement) svg.copy());
+			if (stage > DERIVED_PRIMITIVES) {
+				builder.createDerivedPrimitivesAndTexts();
+				builder.createSingleLines();
+			}
+			if (stage > SHORT_LINES) {
+				builder.handleShortLines();
+			}
+			if (stage > UNSATURATED_BONDS) {
+				builder.createUnsaturatedBondLists();
+			}
+			if (stage > JUNCTIONS) {
+				builder.createJunctions();
+			}
+			return builder;
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeDerivedPrimitives {
+		ChemistryBuilder builder;
+
+		@Setup(Level.Invocation)
+		public void setUp(Input input) {
+			builder = input.createBuilderBefore(DERIVED_PRIMITIVES);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeShortLines {
+		ChemistryBuilder builder;
+
+		@Setup(Level.Invocation)
+		public void setUp(Input input) {
+			builder = input.createBuilderBefore(SHORT_LINES);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeUnsaturatedBonds {
+		ChemistryBuilder builder;
+
+		@Setup(Level.Invocation)
+		public void setUp(Input input) {
+			builder = input.createBuilderBefore(UNSATURATED_BONDS);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeJunctions {
+		ChemistryBuilder builder;
+
+		@Setup(Level.Invocation)
+		public void setUp(Input input) {
+			builder = input.createBuilderBefore(JUNCTIONS);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeMolecules {
+		MoleculeCreator moleculeCreator;
+
+		@Setup(Level.Invocation)
+		public void setUp(Input input) {
+			moleculeCreator = new MoleculeCreator(input.createBuilderBefore(MOLECULES));
+		}
+	}
+
+	@Benchmark
+	public ChemistryBuilder createDerivedPrimitives(BeforeDerivedPrimitives state) {
+		state.builder.createDerivedPrimitivesAndTexts();
+		return state.builder;
+	}
+
+	@Benchmark
+	public ChemistryBuilder handleShortLines(BeforeShortLines state) {
+		state.builder.handleShortLines();
+		return state.builder;
+	}
+
+	@Benchmark
+	public ChemistryBuilder createUnsaturatedBondLists(BeforeUnsaturatedBonds state) {
+		state.builder.createUnsaturatedBondLists();
+		return state.builder;
+	}
+
+	@Benchmark
+	public ChemistryBuilder createJunctions(BeforeJunctions state) {
+		state.builder.createJunctions();
+		return state.builder;
+	}
+
+	@Benchmark
+	public CMLPage getReactionsAndMolecules(BeforeMolecules state) {
+		return state.moleculeCreator.getReactionsAndMolecules();
+	}
+
+}
@@ -1,37 +1,64 @@
 package org.xmlcml.ami2.chem;
 
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.FileOutputStream;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import javax.imageio.ImageIO;
+import javax.vecmath.Point2d;
+import javax.vecmath.Point3d;
 
 import nu.xom.Element;
 
+import org.apache.log4j.Logger;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
 import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
 import org.openscience.cdk.interfaces.IChemFile;
+import org.openscience.cdk.interfaces.ITetrahedralChirality;
 import org.openscience.cdk.io.CMLReader;
-import org.openscience.cdk.layout.StructureDiagramGenerator;
-import org.openscience.cdk.renderer.AtomContainerRenderer;
-import org.openscience.cdk.renderer.RendererModel;
-import org.openscience.cdk.renderer.font.AWTFontManager;
-import org.openscience.cdk.renderer.generators.BasicAtomGenerator;
-import org.openscience.cdk.renderer.generators.BasicBondGenerator;
-import org.openscience.cdk.renderer.generators.BasicSceneGenerator;
-import org.openscience.cdk.renderer.generators.IGenerator;
-import org.openscience.cdk.renderer.visitor.AWTDrawVisitor;
+import org.openscience.cdk.silent.Atom;
+import org.openscience.cdk.silent.AtomContainer;
+import org.openscience.cdk.silent.Bond;
 import org.openscience.cdk.silent.ChemFile;
-import org.xmlcml.graphics.svg.SVGUtil;
+import org.openscience.cdk.silent.PseudoAtom;
+import org.openscience.cdk.stereo.TetrahedralChirality;
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLAtomParity;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLBondStereo;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.molutil.ChemicalElement;
 
-import uk.ac.cam.ch.ucc.svggraphics2d.SVGRenderer;
 
 public class CDKConverter {
 
+	private final static Logger LOG = Logger.getLogger(CDKConverter.class);
+
+	public final static int DEFAULT_IMAGE_WIDTH = 500;
+	public final static int DEFAULT_IMAGE_HEIGHT = 500;
+
+	private final static ThreadLocal<RenderingContext> RENDERING_CONTEXT = new ThreadLocal<RenderingContext>() {
+		protected RenderingContext initialValue() {
+			return new RenderingContext();
+		}
+	};
+
+	/**
+	 * Converts CML to CDK.
+	 * <p>
+	 * CMLMolecules are converted directly (see {@link #cmlToAtomContainer(CMLMolecule)}); anything else
+	 * is serialised and read with CDK's CMLReader.
+	 * 
+	 * @param cmlMol
+	 * @return the first molecule
+	 * @throws Exception
+	 */
 	public static IAtomContainer cmlToMolecule(Element cmlMol) throws Exception {
+		if (cmlMol instanceof CMLMolecule) {
+			return cmlToAtomContainer((CMLMolecule) cmlMol);
+		}
 		ByteArrayInputStream bais = new ByteArrayInputStream(cmlMol.toXML().getBytes());
 		CMLReader r = new CMLReader(bais);
 		IChemFile cf = (IChemFile) r.read(new ChemFile());
@@ -41,46 +68,156 @@ public class CDKConverter {
 		return mol;
 	}
 
+	/**
+	 * Builds a CDK molecule directly from the atoms and bonds of a CMLMolecule.
+	 * <p>
+	 * Keeps atom ids, 2D and 3D coordinates, formal charges, hydrogen counts (the CML count includes
+	 * explicit hydrogens, so those bonded to the atom are subtracted), bond orders, wedge/hatch bond
+	 * stereo and atom parities (as tetrahedral stereo with a positive parity being clockwise, 
+	 * as in CDK's CMLReader). Unknown element types such as R become pseudo atoms.
+	 * 
+	 * @param molecule
+	 * @return new molecule
+	 */
+	public static IAtomContainer cmlToAtomContainer(CMLMolecule molecule) {
+		IAtomContainer container = new AtomContainer();
+		container.setID(molecule.getId());
+		Map<String, IAtom> atomsById = new HashMap<String, IAtom>();
+		List<CMLAtom> cmlAtoms = molecule.getAtoms();
+		for (CMLAtom cmlAtom : cmlAtoms) {
+			IAtom atom = createAtom(cmlAtom);
+			container.addAtom(atom);
+			atomsById.put(cmlAtom.getId(), atom);
+		}
+		for (CMLBond cmlBond : molecule.getBonds()) {
+			String[] atomRefs2 = cmlBond.getAtomRefs2();
+			IAtom atom0 = (atomRefs2 == null ? null : atomsById.get(atomRefs2[0]));
+			IAtom atom1 = (atomRefs2 == null ? null : atomsById.get(atomRefs2[1]));
+			if (atom0 == null || atom1 == null) {
+				LOG.debug("Bond with unknown atoms: " + cmlBond.getId());
+				continue;
+			}
+			IBond bond = new Bond(atom0, atom1, getOrder(cmlBond.getOrder()));
+			bond.setID(cmlBond.getId());
+			if (CMLBond.AROMATIC.equals(cmlBond.getOrder())) {
+				bond.setFlag(CDKConstants.ISAROMATIC, true);
+			}
+			CMLBondStereo bondStereo = cmlBond.getBondStereo();
+			if (bondStereo != null) {
+				if (CMLBondStereo.WEDGE.equals(bondStereo.getValue())) {
+					bond.setStereo(IBond.Stereo.UP);
+				} else if (CMLBondStereo.HATCH.equals(bondStereo.getValue())) {
+					bond.setStereo(IBond.Stereo.DOWN);
+				}
+			}
+			container.addBond(bond);
+		}
+		for (CMLAtom cmlAtom : cmlAtoms) {
+			IAtom atom = atomsById.get(cmlAtom.getId());
+			if (cmlAtom.getHydrogenCountAttribute() != null) {
+				int implicitHydrogens = cmlAtom.getHydrogenCount();
+				for (IAtom ligand : container.getConnectedAtomsList(atom)) {
+					if ("H".equals(ligand.getSymbol())) {
+						implicitHydrogens--;
+					}
+				}
+				atom.setImplicitHydrogenCount(Math.max(0, implicitHydrogens));
+			}
+			addParity(container, atom, cmlAtom, atomsById);
+		}
+		return container;
+	}
+
+	private static IAtom createAtom(CMLAtom cmlAtom) {
+		String elementType = cmlAtom.getElementType();
+		IAtom atom;
+		if (elementType == null || ChemicalElement.getChemicalElement(elementType) == null) {
+			atom = new PseudoAtom(elementType == null ? "R" : elementType);
+		} else {
+			atom = new Atom(elementType);
+		}
+		atom.setID(cmlAtom.getId());
+		if (cmlAtom.getX2Attribute() != null && cmlAtom.getY2Attribute() != null) {
+			atom.setPoint2d(new Point2d(cmlAtom.getX2(), cmlAtom.getY2()));
+		}
+		if (cmlAtom.getX3Attribute() != null && cmlAtom.getY3Attribute() != null && cmlAtom.getZ3Attribute() != null) {
+			atom.setPoint3d(new Point3d(cmlAtom.getX3(), cmlAtom.getY3(), cmlAtom.getZ3()));
+		}
+		if (cmlAtom.getFormalChargeAttribute() != null) {
+			atom.setFormalCharge(cmlAtom.getFormalCharge());
+		}
+		return atom;
+	}
+
+	private static void addParity(IAtomContainer container, IAtom atom, CMLAtom cmlAtom, Map<String, IAtom> atomsById) {
+		if (cmlAtom.getChildCMLElements("atomParity").size() == 0) {
+			return;
+		}
+		CMLAtomParity parity = (CMLAtomParity) cmlAtom.getChildCMLElements("atomParity").get(0);
+		String[] atomRefs4 = parity.getAtomRefs4();
+		double value = parity.getXMLContent();
+		if (atomRefs4 == null || atomRefs4.length != 4 || value == 0 || Double.isNaN(value)) {
+			return;
+		}
+		IAtom[] ligands = new IAtom[4];
+		for (int i = 0; i < 4; i++) {
+			ligands[i] = atomsById.get(atomRefs4[i]);
+			if (ligands[i] == null) {
+				return;
+			}
+		}
+		container.addStereoElement(new TetrahedralChirality(atom, ligands, (value > 0 ? ITetrahedralChirality.Stereo.CLOCKWISE : ITetrahedralChirality.Stereo.ANTI_CLOCKWISE)));
+	}
+
+	private static IBond.Order getOrder(String order) {
+		if (CMLBond.DOUBLE_D.equals(order) || CMLBond.DOUBLE.equals(order)) {
+			return IBond.Order.DOUBLE;
+		} else if (CMLBond.TRIPLE_T.equals(order) || CMLBond.TRIPLE.equals(order)) {
+			return IBond.Order.TRIPLE;
+		}
+		return IBond.Order.SINGLE;
+	}
+
+	/**
+	 * Draws the molecule as filename.svg and filename.png at the default size.
+	 * 
+	 * @param mol
+	 * @param filename base name of the outputs
+	 * @throws Exception
+	 */
 	public static void outputSVGAndPNG(Element mol, String filename) throws Exception {
-		int outputImageWidth = 500;
-		int outputImageHeight = 500;
-		
-	
+		outputSVGAndPNG(mol, filename, DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT);
+	}
+
+	/**
+	 * Draws the molecule as filename.svg and filename.png.
+	 * <p>
+	 * Uses a rendering context kept for the calling thread.
+	 * 
+	 * @param mol
+	 * @param filename base name of the outputs
+	 * @param width of the image
+	 * @param height of the image
+	 * @throws Exception
+	 */
+	public static void outputSVGAndPNG(Element mol, String filename, int width, int height) throws Exception {
+		output(mol, filename, width, height, true);
+	}
+
+	/**
+	 * Draws the molecule as filename.svg at the default size, without a PNG.
+	 * 
+	 * @param mol
+	 * @param filename base name of the output
+	 * @throws Exception
+	 */
+	public static void outputSVG(Element mol, String filename) throws Exception {
+		output(mol, filename, DEFAULT_IMAGE_WIDTH, DEFAULT_IMAGE_HEIGHT, false);
+	}
+
+	private static void output(Element mol, String filename, int width, int height, boolean png) throws Exception {
 		IAtomContainer cdkMol = CDKConverter.cmlToMolecule(mol);
-	
-		Rectangle drawArea = new Rectangle(outputImageWidth, outputImageHeight);
-		BufferedImage image = new BufferedImage(outputImageWidth, outputImageHeight, BufferedImage.TYPE_INT_RGB);
-	
-		StructureDiagramGenerator sdg = new StructureDiagramGenerator();
-		sdg.setMolecule(cdkMol);
-		try {
-			sdg.generateCoordinates();
-		} catch (Exception e) {
-			
-		}
-		cdkMol = sdg.getMolecule();
-	
-		List<IGenerator<IAtomContainer>> generators = new ArrayList<IGenerator<IAtomContainer>>();
-		generators.add(new BasicSceneGenerator());
-		generators.add(new BasicBondGenerator());
-		generators.add(new BasicAtomGenerator());
-	
-		RendererModel model = new RendererModel();
-		model.registerParameters(generators.get(0));
-		model.registerParameters(generators.get(1));
-		model.registerParameters(generators.get(2));
-		//model.set(ShowExplicitHydrogens.class, false);
-		AtomContainerRenderer renderer = new AtomContainerRenderer(model, generators, new AWTFontManager());
-		renderer.setup(cdkMol, drawArea);
-		Graphics2D g2 = (Graphics2D) image.getGraphics();
-		SVGRenderer svgR = new SVGRenderer(g2);
-		Rectangle bounds = renderer.calculateDiagramBounds(cdkMol);
-		renderer.setZoomToFit(drawArea.width, drawArea.height, bounds.width, bounds.height);
-		renderer.paint(cdkMol, new AWTDrawVisitor(svgR));
-		g2.fillRect(0, 0, outputImageWidth, outputImageHeight);
-		SVGUtil.debug(svgR.getSVG(), new FileOutputStream(filename + ".svg"), 0);
-		renderer.paint(cdkMol, new AWTDrawVisitor(g2));
-		ImageIO.write(image, "png", new FileOutputStream(filename + ".png"));
+		RENDERING_CONTEXT.get().output(cdkMol, filename, width, height, png);
 	}
 
 }
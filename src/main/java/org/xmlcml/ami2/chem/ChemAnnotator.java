@@ -34,6 +34,7 @@ public class ChemAnnotator {
 	private static final String MOLECULE_SUFFIX = ".molecule";
 
 	private static String HIDE_CHARACTER = "??????????";
+	private static final int OUTPUT_QUEUE_SIZE = 16;
 	
 	static void copyImageFilesFromDirectoryToDirectory(File from, File to) {
 		try {
@@ -63,12 +64,35 @@ public class ChemAnnotator {
 	}
 
 	public static void createClickableHTML(File output, MoleculeCreator cmlCreator) throws FileNotFoundException {
+		createClickableHTML(output, cmlCreator, ChemOutput.Format.FULL);
+	}
+
+	/**
+	 * @param output HTML file; the CML files and drawings are written beside it
+	 * @param cmlCreator
+	 * @param format of the CML files; drawings left out can be made when they are first wanted with ChemOutput.getImages()
+	 * @throws FileNotFoundException
+	 */
+	public static void createClickableHTML(File output, MoleculeCreator cmlCreator, ChemOutput.Format format) throws FileNotFoundException {
 		String inputName = cmlCreator.getInputCopy().getFile().getName();
 		
-		ChemOutput chemOutput = new ChemOutput(output.getParentFile());
-		chemOutput.outputReactions(cmlCreator.getReactions(), inputName + REACTION_SUFFIX);
-		chemOutput.outputMolecules(cmlCreator.getMolecules(), inputName + MOLECULE_SUFFIX);
-		
+		//CML, SVG and PNG are written in the background while the HTML is made
+		int threads = Runtime.getRuntime().availableProcessors();
+		ChemOutput chemOutput = new ChemOutput(output.getParentFile(), threads, OUTPUT_QUEUE_SIZE);
+		chemOutput.setFormat(format);
+		try {
+			chemOutput.outputReactions(cmlCreator.getReactions(), inputName + REACTION_SUFFIX);
+			chemOutput.outputMolecules(cmlCreator.getMolecules(), inputName + MOLECULE_SUFFIX);
+			createHTMLPage(output, cmlCreator, inputName);
+		} finally {
+			chemOutput.close();
+		}
+		if (chemOutput.getErrors().size() > 0) {
+			LOG.warn(chemOutput.getErrors().size() + " CML files were not written or drawn for " + inputName);
+		}
+	}
+
+	private static void createHTMLPage(File output, MoleculeCreator cmlCreator, String inputName) throws FileNotFoundException {
 		LOG.debug("Creating clickable HTML");
 		SVGSVG inputElementCopy = (SVGSVG) cmlCreator.getInputCopy().getElement();
 		try {
@@ -1,13 +1,27 @@
 package org.xmlcml.ami2.chem;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import nu.xom.Element;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
+import org.xmlcml.cml.base.CMLBuilder;
 import org.xmlcml.cml.base.CMLElement;
 import org.xmlcml.cml.element.CMLAtom;
 import org.xmlcml.cml.element.CMLAtomParity;
@@ -16,21 +30,116 @@ import org.xmlcml.cml.element.CMLReaction;
 import org.xmlcml.cml.element.CMLScalar;
 import org.xmlcml.graphics.svg.SVGUtil;
 
-public class ChemOutput {
+/**
+ * Writes molecules and reactions as CML, with SVG and PNG drawings.
+ * <p>
+ * By default each item is written on the calling thread. Given writer threads, items are copied and
+ * queued instead, so extraction can continue while earlier items are rendered; once the queue is full
+ * the caller waits (back-pressure). File names are fixed when items are submitted, so they follow the
+ * order of the collections whatever the order of writing. Failures are logged and kept for each file.
+ * <p>
+ * The {@link Format} decides which drawings are made with the CML; any left out can be drawn later from
+ * the CML file with {@link #getImages(File, boolean)}. Molecules are never altered by drawing.
+ * <p>
+ * Items can also be written as line-delimited JSON records to a ChemRecordWriter (on the calling thread,
+ * so the records are in order), with or without the CML files.
+ * 
+ * @author pm286
+ */
+public class ChemOutput implements Closeable {
+	
+	/**
+	 * What is written for each molecule or reaction.
+	 */
+	public enum Format {
+		CML(false, false),
+		CML_SVG(true, false),
+		FULL(true, true);
+		
+		private boolean svg;
+		private boolean png;
+		
+		private Format(boolean svg, boolean png) {
+			this.svg = svg;
+			this.png = png;
+		}
+	}
 	
 	private static final String PRODUCT_SUFFIX = ".product";
 	private static final String REACTANT_SUFFIX = ".reactant";
+	private static final String SVG_SUFFIX = ".svg";
+	private static final String PNG_SUFFIX = ".png";
+	private static final String DRAWN_SUFFIX = ".drawn";
+	private static final String SVG = "svg";
+	private static final String PNG = "png";
+	/** locks for the CML files drawn by getImages(), chosen by the hash of the canonical path, so their number is fixed */
+	private static final Object[] IMAGE_LOCKS = createLocks(64);
 	private File outputDirectory;
+	private Format format = Format.FULL;
+	private boolean writeCML = true;
+	private ChemRecordWriter recordWriter;
+	private ExecutorService executor;
+	private Semaphore capacity;
+	private int permits;
+	private Map<File, Exception> errors = Collections.synchronizedMap(new LinkedHashMap<File, Exception>());
 
+	/**
+	 * Writes on the calling thread.
+	 */
 	public ChemOutput(File outputDirectory) {
 		this.outputDirectory = outputDirectory;
 	}
 	
+	/**
+	 * Writes on background threads; {@link #close()} must be called to wait for them.
+	 * 
+	 * @param outputDirectory
+	 * @param threads writing at once
+	 * @param queueSize items waiting to be written before submitting blocks
+	 */
+	public ChemOutput(File outputDirectory, int threads, int queueSize) {
+		this(outputDirectory);
+		threads = Math.max(1, threads);
+		executor = Executors.newFixedThreadPool(threads);
+		permits = threads + Math.max(0, queueSize);
+		capacity = new Semaphore(permits);
+	}
+	
 	private final static Logger LOG = Logger.getLogger(ChemOutput.class);
 
-	private void flipParities(Element object) {
-		if (((CMLMolecule) object).getAtomArray() != null) {
-			for (CMLAtom a : ((CMLMolecule) object).getAtomArray().getAtoms()) {
+	/**
+	 * @param format of the items submitted from now on (default FULL)
+	 */
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param recordWriter to which a record is written for each item submitted from now on, or null for none
+	 */
+	public void setRecordWriter(ChemRecordWriter recordWriter) {
+		this.recordWriter = recordWriter;
+	}
+
+	/**
+	 * @param writeCML whether CML files are written (default true); without them nothing can be drawn later
+	 */
+	public void setWriteCML(boolean writeCML) {
+		this.writeCML = writeCML;
+	}
+
+	/**
+	 * @param molecule not altered
+	 * @return copy of the molecule with its atom parities reversed, for drawing
+	 */
+	private static CMLMolecule createMoleculeForDrawing(CMLMolecule molecule) {
+		CMLMolecule copy = new CMLMolecule(molecule);
+		if (copy.getAtomArray() != null) {
+			for (CMLAtom a : copy.getAtomArray().getAtoms()) {
 				try {	
 					double oldParity = ((CMLAtomParity) a.getChildCMLElements("atomParity").get(0)).getXMLContent();
 					((CMLAtomParity) a.getChildCMLElements("atomParity").get(0)).setXMLContent(-oldParity);
@@ -39,6 +148,7 @@ public class ChemOutput {
 				}
 			}
 		}
+		return copy;
 	}
 
 	public void outputReactions(Collection<CMLReaction> reactions, String baseName) {
@@ -55,7 +165,7 @@ public class ChemOutput {
 			String reactantString = (r.getReactantList() != null && r.getReactantList().getReactantElements().get(0).getLabelElements().size() > 0 ? r.getReactantList().getReactantElements().get(0).getLabelElements().get(0).getCMLValue() : "");
 			String productString = (r.getProductList() != null && r.getProductList().getProductElements().get(0).getLabelElements().size() > 0 ? r.getProductList().getProductElements().get(0).getLabelElements().get(0).getCMLValue() : "");
 			LOG.trace(reactantString + "-(" + reactionLabels + ")->" + productString);
-			saveCMLSVGAndPNG(r, new File(outputDirectory, baseName + i + ".cml"));
+			submit(r, new File(outputDirectory, baseName + i + ".cml"));
 		}
 	}
 
@@ -65,48 +175,237 @@ public class ChemOutput {
 		for (int i = 0; i < molecules.size(); i++) {
 			CMLMolecule m = moleculeIt.next();
 			//m.addName(svgContainer.getFile().getAbsolutePath());
-			saveCMLSVGAndPNG(m, new File(outputDirectory, baseName + i + ".cml"));
+			submit(m, new File(outputDirectory, baseName + i + ".cml"));
 		}
 	}
 
-	private void saveCMLSVGAndPNG(Element object, File file) {
+	/**
+	 * Waits for the items submitted to be written and stops the writer threads.
+	 * <p>
+	 * Does nothing when writing on the calling thread.
+	 */
+	public void close() {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
 		try {
-			LOG.debug("Writing CML to " + file);
-			SVGUtil.debug(object, new FileOutputStream(file), 0);
-			
-			if (object instanceof CMLMolecule) {
-				LOG.debug("Writing CMLMolecule SVG and PNG");
-				try {
-					flipParities(object);
-					String fileName = file.getAbsolutePath();
-					CDKConverter.outputSVGAndPNG(object, fileName);
-				} catch (Throwable t) {
-					throw new RuntimeException("Unexpected exception: ", t);
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				LOG.debug("Waiting for " + (permits - capacity.availablePermits()) + " items to be written");
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while writing output", e);
+		}
+	}
+
+	/**
+	 * @return the exception for each CML file which could not be written or drawn, in order of failure
+	 */
+	public Map<File, Exception> getErrors() {
+		synchronized (errors) {
+			return new LinkedHashMap<File, Exception>(errors);
+		}
+	}
+
+	/**
+	 * Writes the item, or a copy of it on a writer thread (as the caller may go on to alter it), waiting
+	 * while the queue is full.
+	 */
+	private void submit(Element object, final File file) {
+		if (recordWriter != null) {
+			writeRecord(object, file);
+		}
+		if (!writeCML && !format.svg) {
+			return;
+		}
+		final Format format = this.format;
+		final boolean writeCML = this.writeCML;
+		if (executor == null) {
+			write(object, file, format, writeCML);
+			return;
+		}
+		final Element copy = (Element) object.copy();
+		try {
+			capacity.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to write " + file, e);
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						write(copy, file, format, writeCML);
+					} finally {
+						capacity.release();
+					}
 				}
-				
+			});
+		} catch (RuntimeException e) {
+			capacity.release();
+			throw e;
+		}
+	}
+
+	private void writeRecord(Element object, File file) {
+		try {
+			if (object instanceof CMLMolecule) {
+				recordWriter.write((CMLMolecule) object, file.getName());
 			} else if (object instanceof CMLReaction) {
-				LOG.trace("Writing CMLReaction SVG and PNG");
+				recordWriter.write((CMLReaction) object, file.getName());
+			}
+		} catch (Exception e) {
+			//e.g. coordinates which are not numbers, which Gson will not write
+			LOG.error("Cannot write record for " + file + ": " + e);
+			errors.put(file, e);
+		}
+	}
+
+	private void write(Element object, File file, Format format, boolean writeCML) {
+		try {
+			if (writeCML) {
+				saveCML(object, file);
+			}
+			if (format.svg) {
+				saveImages(object, file, format.png);
+			}
+		} catch (Exception e) {
+			LOG.error("Cannot write " + file + ": " + e);
+			errors.put(file, e);
+		}
+	}
+
+	/**
+	 * Draws a molecule or reaction written by a ChemOutput, unless its drawings are already newer than the CML.
+	 * <p>
+	 * For a molecule the drawings are file.svg and file.png; for a reaction they are those of its first
+	 * reactant (file.reactant.svg, ...) and first product (file.product.svg, ...), where it has them.
+	 * A reaction of which nothing can be drawn gets a file.drawn marker instead, so it is not read and
+	 * drawn again until the CML changes. Calls for the same file wait for each other.
+	 * 
+	 * @param cmlFile written by outputMolecules() or outputReactions()
+	 * @param png whether the PNGs are needed as well as the SVGs
+	 * @return the drawings
+	 * @throws IOException if the CML cannot be read or a molecule cannot be drawn
+	 */
+	public static List<File> getImages(File cmlFile, boolean png) throws IOException {
+		synchronized (getImageLock(cmlFile)) {
+			List<File> images = getImageFiles(cmlFile, png);
+			if (!isComplete(images, cmlFile, png)) {
+				Element object;
 				try {
-					CMLMolecule reactant = ((CMLReaction) object).getReactantList().getReactantElements().get(0).getMolecule();
-					flipParities(reactant);
-					String fileName = file.getAbsolutePath() + REACTANT_SUFFIX;
-					LOG.trace("Writing reactant files");
-					CDKConverter.outputSVGAndPNG(reactant, fileName);
-				} catch (Throwable t) {
-					//TODO handle real errors (normal error is that there is no reactant); here and below
+					object = new CMLBuilder().build(cmlFile).getRootElement();
+				} catch (Exception e) {
+					throw new IOException("Cannot read " + cmlFile + ": " + e);
 				}
 				try {
-					CMLMolecule product = ((CMLReaction) object).getProductList().getProductElements().get(0).getMolecule();
-					flipParities(product);
-					String fileName = file.getAbsolutePath() + PRODUCT_SUFFIX;
-					LOG.trace("Writing product files");
-					CDKConverter.outputSVGAndPNG(product, fileName);
-				} catch (Throwable t) {
-					
+					saveImages(object, cmlFile, png);
+				} catch (RuntimeException e) {
+					throw new IOException("Cannot draw " + cmlFile + ": " + e.getCause());
+				}
+				images = getImageFiles(cmlFile, png);
+				if (images.size() == 0) {
+					FileUtils.write(new File(cmlFile.getPath() + DRAWN_SUFFIX), (png ? PNG : SVG), "UTF-8");
 				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+			return images;
+		}
+	}
+
+	private static Object getImageLock(File cmlFile) throws IOException {
+		int hash = cmlFile.getCanonicalPath().hashCode();
+		return IMAGE_LOCKS[(hash ^ (hash >>> 16)) & (IMAGE_LOCKS.length - 1)];
+	}
+
+	private static Object[] createLocks(int number) {
+		Object[] locks = new Object[number];
+		for (int i = 0; i < number; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+
+	private static List<File> getImageFiles(File cmlFile, boolean png) {
+		List<File> images = new ArrayList<File>();
+		for (String base : new String[] {"", REACTANT_SUFFIX, PRODUCT_SUFFIX}) {
+			for (String suffix : (png ? new String[] {SVG_SUFFIX, PNG_SUFFIX} : new String[] {SVG_SUFFIX})) {
+				File image = new File(cmlFile.getPath() + base + suffix);
+				if (image.exists()) {
+					images.add(image);
+				}
+			}
+		}
+		return images;
+	}
+
+	/**
+	 * @return whether there are drawings, each with its PNG if needed, and none is older than the CML;
+	 * or, if there are none, whether the CML has been drawn since it was written
+	 */
+	private static boolean isComplete(List<File> images, File cmlFile, boolean png) throws IOException {
+		if (images.size() == 0) {
+			File marker = new File(cmlFile.getPath() + DRAWN_SUFFIX);
+			if (!marker.exists() || marker.lastModified() < cmlFile.lastModified()) {
+				return false;
+			}
+			return (!png || PNG.equals(FileUtils.readFileToString(marker, "UTF-8")));
+		}
+		for (File image : images) {
+			if (image.lastModified() < cmlFile.lastModified()) {
+				return false;
+			}
+			if (png && image.getName().endsWith(SVG_SUFFIX) && !images.contains(new File(image.getPath().replaceAll("\\.svg$", PNG_SUFFIX)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void saveCML(Element object, File file) throws IOException {
+		LOG.debug("Writing CML to " + file);
+		OutputStream os = new FileOutputStream(file);
+		try {
+			SVGUtil.debug(object, os, 0);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void saveImages(Element object, File file, boolean png) {
+		if (object instanceof CMLMolecule) {
+			LOG.debug("Writing CMLMolecule SVG" + (png ? " and PNG" : ""));
+			try {
+				saveImages(createMoleculeForDrawing((CMLMolecule) object), file.getAbsolutePath(), png);
+			} catch (Throwable t) {
+				throw new RuntimeException("Unexpected exception: ", t);
+			}
+			
+		} else if (object instanceof CMLReaction) {
+			LOG.trace("Writing CMLReaction SVG" + (png ? " and PNG" : ""));
+			try {
+				CMLMolecule reactant = ((CMLReaction) object).getReactantList().getReactantElements().get(0).getMolecule();
+				LOG.trace("Writing reactant files");
+				saveImages(createMoleculeForDrawing(reactant), file.getAbsolutePath() + REACTANT_SUFFIX, png);
+			} catch (Throwable t) {
+				//TODO handle real errors (normal error is that there is no reactant); here and below
+			}
+			try {
+				CMLMolecule product = ((CMLReaction) object).getProductList().getProductElements().get(0).getMolecule();
+				LOG.trace("Writing product files");
+				saveImages(createMoleculeForDrawing(product), file.getAbsolutePath() + PRODUCT_SUFFIX, png);
+			} catch (Throwable t) {
+				
+			}
+		}
+	}
+
+	private static void saveImages(CMLMolecule molecule, String fileName, boolean png) throws Exception {
+		if (png) {
+			CDKConverter.outputSVGAndPNG(molecule, fileName);
+		} else {
+			CDKConverter.outputSVG(molecule, fileName);
 		}
 	}
 
@@ -0,0 +1,362 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.xom.Element;
+
+import org.xmlcml.cml.base.CMLElement;
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLAtomParity;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLConditionList;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.element.CMLProduct;
+import org.xmlcml.cml.element.CMLReactant;
+import org.xmlcml.cml.element.CMLReaction;
+
+/**
+ * A molecule or reaction as a plain object, for the line-delimited JSON written by ChemRecordWriter and
+ * read by ChemRecordReader without building XML trees.
+ * <p>
+ * It carries what MoleculeCreator puts in CML: atoms with coordinates, charges, labels (including the
+ * "join" labels of R groups) and parities; bonds with orders and stereo; the labels of molecules (e.g. the
+ * R-group substitution a molecule was built from) and of reactions; reaction conditions; and the molecules
+ * of reactants and products. Values not set in the CML are null and are left out of the JSON.
+ *
+ * @author pm286
+ */
+public class ChemRecord {
+
+	public final static String MOLECULE = "molecule";
+	public final static String REACTION = "reaction";
+
+	/**
+	 * Label of a molecule, atom or reaction, or a reaction condition.
+	 */
+	public static class Label {
+
+		private String value;
+		private String content;
+		private String name;
+		private String dictRef;
+		private Double x2;
+		private Double y2;
+
+		private Label(Element element) {
+			value = element.getAttributeValue("value");
+			content = (element.getValue().trim().length() == 0 ? null : element.getValue());
+			name = element.getAttributeValue("name");
+			dictRef = element.getAttributeValue("dictRef");
+			x2 = getDouble(element, "x2");
+			y2 = getDouble(element, "y2");
+		}
+
+		/**
+		 * @return the value attribute (or, for conditions and R-group labels, null; see {@link #getContent()})
+		 */
+		public String getValue() {
+			return value;
+		}
+
+		public String getContent() {
+			return content;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDictRef() {
+			return dictRef;
+		}
+
+		public Double getX2() {
+			return x2;
+		}
+
+		public Double getY2() {
+			return y2;
+		}
+	}
+
+	public static class Atom {
+
+		private String id;
+		private String elementType;
+		private Double x2;
+		private Double y2;
+		private Integer formalCharge;
+		private List<Label> labels;
+		private List<String> parityAtoms;
+		private Double parity;
+
+		private Atom(CMLAtom atom) {
+			id = atom.getId();
+			elementType = atom.getElementType();
+			x2 = getDouble(atom, "x2");
+			y2 = getDouble(atom, "y2");
+			formalCharge = (atom.getFormalChargeAttribute() == null ? null : atom.getFormalCharge());
+			labels = createLabels(atom.getChildCMLElements("label"));
+			List<CMLElement> parities = atom.getChildCMLElements("atomParity");
+			if (parities.size() > 0) {
+				CMLAtomParity atomParity = (CMLAtomParity) parities.get(0);
+				String[] refs = atomParity.getAtomRefs4();
+				parityAtoms = (refs == null ? null : toList(refs));
+				parity = atomParity.getXMLContent();
+			}
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getElementType() {
+			return elementType;
+		}
+
+		public Double getX2() {
+			return x2;
+		}
+
+		public Double getY2() {
+			return y2;
+		}
+
+		public Integer getFormalCharge() {
+			return formalCharge;
+		}
+
+		public List<Label> getLabels() {
+			return labels;
+		}
+
+		/**
+		 * @return the four atoms of the parity, or null
+		 */
+		public List<String> getParityAtoms() {
+			return parityAtoms;
+		}
+
+		public Double getParity() {
+			return parity;
+		}
+	}
+
+	public static class Bond {
+
+		private String id;
+		private List<String> atoms;
+		private String order;
+		private String stereo;
+
+		private Bond(CMLBond bond) {
+			id = bond.getId();
+			String[] refs = bond.getAtomRefs2();
+			atoms = (refs == null ? null : toList(refs));
+			order = bond.getOrder();
+			stereo = (bond.getBondStereo() == null ? null : bond.getBondStereo().getXMLContent());
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return ids of the two atoms
+		 */
+		public List<String> getAtoms() {
+			return atoms;
+		}
+
+		/**
+		 * @return order as in CMLBond (S, D, T, A), or null
+		 */
+		public String getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return stereo as in CMLBondStereo (W, H, NONE), or null
+		 */
+		public String getStereo() {
+			return stereo;
+		}
+	}
+
+	private String type;
+	private String file;
+	private String id;
+	private Double x2;
+	private Double y2;
+	private List<Label> labels;
+	private List<Atom> atoms;
+	private List<Bond> bonds;
+	private List<Label> conditions;
+	private List<ChemRecord> reactants;
+	private List<ChemRecord> products;
+
+	private ChemRecord() {
+		//for Gson
+	}
+
+	/**
+	 * @param molecule not altered
+	 * @param file name of the item (e.g. that of its CML file), or null
+	 */
+	public static ChemRecord createMolecule(CMLMolecule molecule, String file) {
+		ChemRecord record = new ChemRecord();
+		record.type = MOLECULE;
+		record.file = file;
+		record.id = molecule.getId();
+		record.labels = createLabels(molecule.getChildCMLElements("label"));
+		record.atoms = new ArrayList<Atom>();
+		for (CMLAtom atom : molecule.getAtoms()) {
+			record.atoms.add(new Atom(atom));
+		}
+		record.bonds = new ArrayList<Bond>();
+		for (CMLBond bond : molecule.getBonds()) {
+			record.bonds.add(new Bond(bond));
+		}
+		return record;
+	}
+
+	/**
+	 * @param reaction not altered
+	 * @param file name of the item (e.g. that of its CML file), or null
+	 */
+	public static ChemRecord createReaction(CMLReaction reaction, String file) {
+		ChemRecord record = new ChemRecord();
+		record.type = REACTION;
+		record.file = file;
+		record.id = reaction.getId();
+		record.x2 = getDouble(reaction, "x2");
+		record.y2 = getDouble(reaction, "y2");
+		record.labels = createLabels(reaction.getChildCMLElements("label"));
+		record.conditions = new ArrayList<Label>();
+		for (CMLConditionList conditionList : reaction.getConditionListElements()) {
+			for (CMLElement condition : conditionList.getChildCMLElements()) {
+				record.conditions.add(new Label(condition));
+			}
+		}
+		record.reactants = new ArrayList<ChemRecord>();
+		if (reaction.getReactantList() != null) {
+			for (CMLReactant reactant : reaction.getReactantList().getReactantElements()) {
+				if (reactant.getMolecule() != null) {
+					record.reactants.add(createMolecule(reactant.getMolecule(), null));
+				}
+			}
+		}
+		record.products = new ArrayList<ChemRecord>();
+		if (reaction.getProductList() != null) {
+			for (CMLProduct product : reaction.getProductList().getProductElements()) {
+				if (product.getMolecule() != null) {
+					record.products.add(createMolecule(product.getMolecule(), null));
+				}
+			}
+		}
+		return record;
+	}
+
+	/**
+	 * @return {@link #MOLECULE} or {@link #REACTION}
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public boolean isMolecule() {
+		return MOLECULE.equals(type);
+	}
+
+	public boolean isReaction() {
+		return REACTION.equals(type);
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Double getX2() {
+		return x2;
+	}
+
+	public Double getY2() {
+		return y2;
+	}
+
+	public List<Label> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return atoms of a molecule (null for a reaction)
+	 */
+	public List<Atom> getAtoms() {
+		return atoms;
+	}
+
+	/**
+	 * @return bonds of a molecule (null for a reaction)
+	 */
+	public List<Bond> getBonds() {
+		return bonds;
+	}
+
+	/**
+	 * @return conditions of a reaction (null for a molecule)
+	 */
+	public List<Label> getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * @return molecules of the reactants of a reaction (null for a molecule)
+	 */
+	public List<ChemRecord> getReactants() {
+		return reactants;
+	}
+
+	/**
+	 * @return molecules of the products of a reaction (null for a molecule)
+	 */
+	public List<ChemRecord> getProducts() {
+		return products;
+	}
+
+	private static List<Label> createLabels(List<CMLElement> elements) {
+		if (elements.size() == 0) {
+			return null;
+		}
+		List<Label> labels = new ArrayList<Label>(elements.size());
+		for (CMLElement element : elements) {
+			labels.add(new Label(element));
+		}
+		return labels;
+	}
+
+	private static Double getDouble(Element element, String name) {
+		String value = element.getAttributeValue(name);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static List<String> toList(String[] strings) {
+		List<String> list = new ArrayList<String>(strings.length);
+		for (String s : strings) {
+			list.add(s);
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Reads the line-delimited JSON written by ChemRecordWriter, one record at a time.
+ * <p>
+ * Only the current line and its {@link ChemRecord} are held, and no XML is built, so files of any size
+ * can be scanned. Blank lines are skipped. Not thread-safe.
+ *
+ * @author pm286
+ */
+public class ChemRecordReader implements Closeable {
+
+	private BufferedReader reader;
+	private Gson gson = new Gson();
+	private int lineNumber;
+
+	public ChemRecordReader(Reader reader) {
+		this.reader = (reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+	}
+
+	public ChemRecordReader(File file) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * @return the next record, or null at the end of the input
+	 * @throws IOException if the input cannot be read or a line is not a record
+	 */
+	public ChemRecord next() throws IOException {
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().length() > 0) {
+				try {
+					return gson.fromJson(line, ChemRecord.class);
+				} catch (JsonParseException e) {
+					throw new IOException("Cannot read record at line " + lineNumber + ": " + e.getMessage());
+				}
+			}
+		}
+		return null;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
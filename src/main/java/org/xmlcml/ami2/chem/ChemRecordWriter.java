@@ -0,0 +1,63 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.element.CMLReaction;
+
+import com.google.gson.Gson;
+
+/**
+ * Writes molecules and reactions as line-delimited JSON: one compact {@link ChemRecord} per line.
+ * <p>
+ * Much smaller and faster to read back than pretty-printed CML; see ChemRecordReader. Methods are
+ * thread-safe, so one writer can collect the output of many ChemOutputs.
+ *
+ * @author pm286
+ */
+public class ChemRecordWriter implements Closeable {
+
+	private Writer writer;
+	private Gson gson = new Gson();
+
+	public ChemRecordWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * @param file to write (replaced if it exists)
+	 * @throws IOException if the file cannot be created
+	 */
+	public ChemRecordWriter(File file) throws IOException {
+		this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+	}
+
+	public void write(CMLMolecule molecule, String file) throws IOException {
+		write(ChemRecord.createMolecule(molecule, file));
+	}
+
+	public void write(CMLReaction reaction, String file) throws IOException {
+		write(ChemRecord.createReaction(reaction, file));
+	}
+
+	public synchronized void write(ChemRecord record) throws IOException {
+		//Gson escapes line breaks within strings, so each record is one line
+		writer.write(gson.toJson(record));
+		writer.write('\n');
+	}
+
+	public synchronized void flush() throws IOException {
+		writer.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+}
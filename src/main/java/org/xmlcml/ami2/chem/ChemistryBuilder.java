@@ -1,38 +1,34 @@
 package org.xmlcml.ami2.chem;
 
-import java.awt.Graphics2D;
-
-import java.awt.font.GlyphVector;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 
-import javax.imageio.ImageIO;
-
 import nu.xom.Nodes;
 
 import org.apache.commons.math.complex.Complex;
 import org.apache.log4j.Logger;
+import org.xmlcml.ami2.chem.GlyphMetricsCache.GlyphMetrics;
 import org.xmlcml.ami2.chem.Joinable.JoinPoint;
+import org.xmlcml.ami2.chem.StageMetrics.Stage;
 import org.xmlcml.ami2.chem.JoinableText.AreInSameStringDetector;
 import org.xmlcml.ami2.chem.svg.SVGContainerNew;
 import org.xmlcml.diagrams.OCRManager;
 import org.xmlcml.euclid.Angle;
 import org.xmlcml.euclid.Angle.Units;
 import org.xmlcml.euclid.Line2;
-import org.xmlcml.euclid.Real;
 import org.xmlcml.euclid.Real2;
 import org.xmlcml.euclid.Real2Array;
 import org.xmlcml.euclid.Real2Range;
@@ -93,11 +89,17 @@ import com.google.common.util.concurrent.UncheckedTimeoutException;
 public class ChemistryBuilder extends SimpleBuilder {
 	
 	private final static Logger LOG = Logger.getLogger(ChemistryBuilder.class);
+
+	private final static String IMAGE_ERROR = "Error handling image within SVG file - it's probably embedded in base 64, but it should be linked to and stored separately";
 	
 	private ChemistryBuilderParameters parameters = new ChemistryBuilderParameters();
 
 	protected HigherPrimitives higherPrimitives;
 
+	private StageMetrics metrics = new StageMetrics();
+
+	private ExecutorService ocrExecutor;
+
 	protected SVGContainerNew input;
 
 	private List<JoinableText> atomLabelTexts;
@@ -107,6 +109,10 @@ public class ChemistryBuilder extends SimpleBuilder {
 	
 	private double scale = 1;
 
+	/** reused by getListOfOverlappingJoinPointsForJoinables() */
+	private List<JoinPoint> overlapBuffer = new ArrayList<JoinPoint>(4);
+	private List<JoinPoint> looseOverlapBuffer = new ArrayList<JoinPoint>(4);
+
 	static class MutuallyExclusiveShortLineTriple {
 	
 		HatchedBond hatchedBond;
@@ -161,6 +167,11 @@ public class ChemistryBuilder extends SimpleBuilder {
 	List<MutuallyExclusiveShortLinePairTriple> mutuallyExclusiveShortLinePairTriples;
 	List<MutuallyExclusiveLinePairPair> mutuallyExclusiveLinePairPairs;
 
+	/** the triples and pairs above which hold each line; made when the first Joinable is created */
+	private Map<SVGLine, List<Object>> ambiguitiesByLine;
+	/** alternatives from the triples above; made after the Joinables are created */
+	private MutualExclusionGraph mutualExclusionGraph;
+
 	public ChemistryBuilder(SVGContainerNew svgRoot, long timeout, ChemistryBuilderParameters parameters) {
 		super((SVGElement) svgRoot.getElement(), timeout);
 		input = svgRoot;
@@ -224,19 +235,64 @@ public class ChemistryBuilder extends SimpleBuilder {
 	 */
 	public void createHigherPrimitives() {
 		if (higherPrimitives == null) {
-			startTiming();
-			createDerivedPrimitives();
-			replaceTextImagesWithText();
-			splitMultiCharacterTexts();
-			higherPrimitives = new HigherPrimitives();
-			higherPrimitives.addSingleLines(derivedPrimitives.getLineList());
+			createDerivedPrimitivesAndTexts();
+			createSingleLines();
+			long start = metrics.start();
 			handleShortLines();
+			metrics.record(Stage.HATCH_DETECTION, start, higherPrimitives.getHatchedBondList().size());
+			start = metrics.start();
 			createUnsaturatedBondLists();
+			metrics.record(Stage.UNSATURATED_BONDS, start, higherPrimitives.getDoubleBondList().size());
 			//createWords();
 			createJunctions();
 		}
 	}
 
+	/**
+	 * First stage of createHigherPrimitives(); starts the timer and creates the derived primitives 
+	 * with text images replaced and texts split into characters.
+	 * <p>
+	 * The stages are package-private so that they can be run (and benchmarked) separately.
+	 */
+	void createDerivedPrimitivesAndTexts() {
+		startTiming();
+		createDerivedPrimitives();
+		long start = metrics.start();
+		int images = rawPrimitives.getImageList().size();
+		replaceTextImagesWithText();
+		metrics.record(Stage.OCR, start, images);
+		start = metrics.start();
+		splitMultiCharacterTexts();
+		metrics.record(Stage.TEXT_SPLITTING, start, derivedPrimitives.getTextList().size());
+	}
+
+	/**
+	 * Alternative to createDerivedPrimitivesAndTexts() which takes derived primitives saved from an earlier run
+	 * (see ChemistryPipeline).
+	 * <p>
+	 * The builder should have been created on an empty SVG; the primitives are added to its (empty) derived primitives.
+	 * 
+	 * @param lines
+	 * @param texts
+	 * @param polygons
+	 * @param paths
+	 * @param standardBondLength found when the primitives were derived
+	 */
+	void restoreDerivedPrimitives(List<SVGLine> lines, List<SVGText> texts, List<SVGPolygon> polygons, List<SVGPath> paths, double standardBondLength) {
+		startTiming();
+		createDerivedPrimitives();
+		derivedPrimitives.getLineList().addAll(lines);
+		derivedPrimitives.getTextList().addAll(texts);
+		derivedPrimitives.getPolygonList().addAll(polygons);
+		derivedPrimitives.getPathList().addAll(paths);
+		parameters.setStandardBondLength(standardBondLength);
+	}
+
+	void createSingleLines() {
+		higherPrimitives = new HigherPrimitives();
+		higherPrimitives.addSingleLines(derivedPrimitives.getLineList());
+	}
+
 	@Override
 	protected void removeNearDuplicateAndObscuredPrimitives() {
 		double scale = parameters.setStandardBondLengthFromSVG(derivedPrimitives.getLineList());
@@ -248,11 +304,25 @@ public class ChemistryBuilder extends SimpleBuilder {
 		super.removeNearDuplicateAndObscuredPrimitives();
 	}
 	
+	/**
+	 * Replaces each text by a text for each of its characters, positioned by the glyphs of the font.
+	 */
 	private void splitMultiCharacterTexts() {
-		Iterator<SVGText> it = derivedPrimitives.getTextList().iterator();
+		List<SVGText> newTexts = splitMultiCharacterTexts(derivedPrimitives.getTextList());
+		derivedPrimitives.getTextList().clear();
+		derivedPrimitives.getTextList().addAll(newTexts);
+	}
+
+	/**
+	 * Glyphs are laid out once for each font and string (see GlyphMetricsCache) and dx and dy are read once for each span.
+	 * 
+	 * @param texts not altered
+	 * @return a text for each character of the texts (or of their tspans), in order
+	 */
+	static List<SVGText> splitMultiCharacterTexts(List<SVGText> texts) {
 		List<SVGText> newTexts = new ArrayList<SVGText>();
-		while (it.hasNext()) {
-			SVGText text = it.next();
+		GlyphMetricsCache glyphMetricsCache = new GlyphMetricsCache();
+		for (SVGText text : texts) {
 			String string = text.getText();
 			List<SVGTSpan> spanList = new ArrayList<SVGTSpan>();
 			double totalWidth = 0;
@@ -261,17 +331,15 @@ public class ChemistryBuilder extends SimpleBuilder {
 				for (int i = 0; i < spans.size(); i++) {
 					SVGTSpan span = (SVGTSpan) spans.get(i);
 					spanList.add(span);
-					GlyphVector v = span.getGlyphVector();
-					totalWidth += v.getLogicalBounds().getWidth();
+					totalWidth += glyphMetricsCache.getMetrics(span).getWidth();
 					if (span.getAttributeValue("dx") != null) {
 						totalWidth += Double.parseDouble(span.getAttributeValue("dx"));
 					}
 				}
 			} else {
 				spanList.add(new SVGTSpan(text));
-				totalWidth = text.getGlyphVector().getLogicalBounds().getWidth();
+				totalWidth = glyphMetricsCache.getMetrics(text).getWidth();
 			}
-			it.remove();
 			double previousX = text.getX() - ("end".equals(text.getAttributeValue("text-anchor")) ? totalWidth : 0);
 			double previousY = text.getY();
 			for (SVGTSpan span : spanList) {
@@ -281,43 +349,37 @@ public class ChemistryBuilder extends SimpleBuilder {
 				if (span.getY() != 0.0) {
 					previousY = span.getY();
 				}
-				GlyphVector glyphVector = span.getGlyphVector();
+				GlyphMetrics glyphMetrics = glyphMetricsCache.getMetrics(span);
+				String dXValue = span.getAttributeValue("dx");
+				String dYValue = span.getAttributeValue("dy");
+				double dX = (dXValue == null ? 0 : Double.parseDouble(dXValue));
+				double dY = (dYValue == null ? 0 : Double.parseDouble(dYValue));
 				String spanText = span.getText();
 				for (int i = 0; i < spanText.length(); i++) {
 					String substring = spanText.substring(i, i + 1);
 					SVGText newText = new SVGText(new Real2(0, 0), substring);
 					newTexts.add(newText);
 					newText.copyAttributesFrom(span);
-					double dX = 0;
-					if (span.getAttributeValue("dx") != null) {
-						dX = Double.parseDouble(span.getAttributeValue("dx"));
+					if (dXValue != null) {
 						newText.removeAttribute(newText.getAttribute("dx"));
 					}
-					double dY = 0;
-					if (span.getAttributeValue("dy") != null) {
-						dY = Double.parseDouble(span.getAttributeValue("dy"));
+					if (dYValue != null) {
 						newText.removeAttribute(newText.getAttribute("dy"));
 					}
-					newText.setX(previousX + dX + glyphVector.getGlyphPosition(i).getX());
-					newText.setY(previousY + dY + glyphVector.getGlyphPosition(i).getY());
+					newText.setX(previousX + dX + glyphMetrics.getX(i));
+					newText.setY(previousY + dY + glyphMetrics.getY(i));
 				}
-				previousX += glyphVector.getGlyphPosition(glyphVector.getNumGlyphs()).getX();
-				if (span.getAttributeValue("dy") != null) {
-					previousY += Double.parseDouble(span.getAttributeValue("dy"));
+				previousX += glyphMetrics.getX(glyphMetrics.getNumberOfGlyphs());
+				if (dYValue != null) {
+					previousY += dY;
 				}
 			}
 		}
-		derivedPrimitives.getTextList().addAll(newTexts);
+		return newTexts;
 	}
 
 	public BufferedImage flipHorizontally(BufferedImage img) {
-		int w = img.getWidth();
-		int h = img.getHeight();
-		BufferedImage dimg = new BufferedImage(w, h, img.getColorModel().getTransparency());
-		Graphics2D g = dimg.createGraphics();
-		g.drawImage(img, 0, 0, w, h, 0, h, w, 0, null);
-		g.dispose();
-		return dimg;
+		return TextImageDecoder.flipHorizontally(img);
 	}
 
 	private File getImageFileFromSVGImage(SVGImage image) {
@@ -326,12 +388,23 @@ public class ChemistryBuilder extends SimpleBuilder {
 		return (testFile.isAbsolute() ? testFile : new File(input.getFile().getParentFile().getAbsolutePath() + "/" + filename));
 	}
 	
+	/**
+	 * Replaces images of text with the text found by OCR.
+	 * <p>
+	 * An image which is a copy of an earlier one at the same position is dropped before it is decoded.
+	 * The other images are decoded and flipped in parallel (see TextImageDecoder) and then scanned
+	 * in document order, as the OCRManager compares each text with those it has already found.
+	 */
 	private void replaceTextImagesWithText() {
 		if (rawPrimitives.getImageList().size() == 0) {
 			return;
 		}
 		Set<Complex> done = new HashSet<Complex>();
 		OCRManager manager = new OCRManager();
+		TextImageDecoder decoder = new TextImageDecoder(ocrExecutor == null ? TextImageDecoder.getSharedExecutor() : ocrExecutor);
+		List<SVGImage> images = new ArrayList<SVGImage>();
+		List<String> keys = new ArrayList<String>();
+		Set<String> positionsAndContents = new HashSet<String>();
 		
 		for (SVGImage image : rawPrimitives.getImageList()) {
 			try {
@@ -340,8 +413,36 @@ public class ChemistryBuilder extends SimpleBuilder {
 				if (image.getWidth() > parameters.getMaximumImageElementWidthForOCR()) {
 					continue;
 				}
-				File file = getImageFileFromSVGImage(image);
-				BufferedImage bufferedImage = flipHorizontally(ImageIO.read(file));
+				String key = decoder.add(getImageFileFromSVGImage(image));
+				if (!positionsAndContents.add(image.getX() + " " + image.getY() + " " + key)) {
+					//would only give a duplicate of the text from the earlier copy
+					image.detach();
+					derivedPrimitives.getImageList().remove(image);
+					continue;
+				}
+				images.add(image);
+				keys.add(key);
+			} catch (IOException e) {
+				LOG.error(IMAGE_ERROR + ": " + e);
+			} catch (UncheckedTimeoutException e) {
+				throw e;
+			} catch (Exception e) {
+				LOG.error(IMAGE_ERROR + ": " + e, e);
+			}
+		}
+		
+		try {
+			decoder.decode();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while decoding images", e);
+		}
+		
+		for (int i = 0; i < images.size(); i++) {
+			SVGImage image = images.get(i);
+			try {
+				checkTime("Took too long to convert images to text");
+				BufferedImage bufferedImage = decoder.getImage(keys.get(i));
 				/*Tesseract tess = Tesseract.getInstance();
 				try {
 					s = tess.doOCR(im);
@@ -362,12 +463,10 @@ public class ChemistryBuilder extends SimpleBuilder {
 					continue;
 				}
 			} catch (IOException e) {
-				System.err.println("Error handling image within SVG file - it's probably embedded in base 64, but it should be linked to and stored separately");
-				e.printStackTrace();
+				LOG.error(IMAGE_ERROR + ": " + e);
 			} catch (Exception e) {
 				//TODO handle other images
 			}
-
 		}
 		
 		manager.handleAmbiguousTexts(parameters.getTextCoordinateTolerance(), parameters.getAllowedFontSizeVariation());
@@ -393,43 +492,66 @@ public class ChemistryBuilder extends SimpleBuilder {
 		}
 	}*/
 
-	private void handleShortLines() {
+	void handleShortLines() {
 		List<HatchedBond> hatchList = new ArrayList<HatchedBond>();
 		higherPrimitives.setHatchedBondList(hatchList);
+		LineGeometry lineGeometry = new LineGeometry(derivedPrimitives.getLineList());
 		List<SVGLine> smallLines = new ArrayList<SVGLine>();
-		for (SVGLine l : derivedPrimitives.getLineList()) {
-			if (l.getXY(0).getDistance(l.getXY(1)) < parameters.getHatchLineMaximumLength() && l.getXY(0).getDistance(l.getXY(1)) > 0) {//TODO l.getLength() < hatchLineMaximumLength) {
-				smallLines.add(l);
+		List<Integer> smallLineIndices = new ArrayList<Integer>();
+		for (int i = 0; i < lineGeometry.size(); i++) {
+			if (lineGeometry.getLength(i) < parameters.getHatchLineMaximumLength() && lineGeometry.getLength(i) > 0) {//TODO l.getLength() < hatchLineMaximumLength) {
+				smallLines.add(lineGeometry.getLine(i));
+				smallLineIndices.add(i);
 			}
 		}
 		higherPrimitives.setChargeList(new ArrayList<Charge>());
 		if (smallLines.size() == 0) {
 			mutuallyExclusiveShortLineTriples = new ArrayList<MutuallyExclusiveShortLineTriple>();
 			mutuallyExclusiveShortLinePairTriples = new ArrayList<MutuallyExclusiveShortLinePairTriple>();
+			invalidateAmbiguities();
 			return;
 		}
 		UnionFind<SVGLine> hatchedBonds = UnionFind.create(smallLines);
-		for (int i = 0; i < smallLines.size(); i++) {
+		int numberOfSmallLines = smallLines.size();
+		double[] lengths = new double[numberOfSmallLines];
+		double[] minX = new double[numberOfSmallLines];
+		double[] minY = new double[numberOfSmallLines];
+		double[] maxX = new double[numberOfSmallLines];
+		double[] maxY = new double[numberOfSmallLines];
+		for (int i = 0; i < numberOfSmallLines; i++) {
+			int index = smallLineIndices.get(i);
+			lengths[i] = lineGeometry.getLength(index);
+			minX[i] = lineGeometry.getMinX(index);
+			minY[i] = lineGeometry.getMinY(index);
+			maxX[i] = lineGeometry.getMaxX(index);
+			maxY[i] = lineGeometry.getMaxY(index);
+		}
+		Angle maximumAngleForParallel = new Angle(parameters.getMaximumAngleForParallel(), Units.RADIANS);
+		Angle maximumAngleForParallelIfOneLineIsTiny = new Angle(parameters.getMaximumAngleForParallelIfOneLineIsTiny(), Units.RADIANS);
+		Angle plusChargeAngleTolerance = new Angle(parameters.getPlusChargeAngleTolerance(), Units.DEGREES);
+		//lines whose boxes are further apart than this can neither be hatches of one bond nor cross to make a plus
+		double margin = parameters.getHatchLinesMaximumSpacing() + parameters.getHatchLineMaximumLength();
+		for (long pair : NearbyBoxFinder.findPairs(minX, minY, maxX, maxY, margin)) {
+			int i = NearbyBoxFinder.getFirst(pair);
+			int j = NearbyBoxFinder.getSecond(pair);
 			SVGLine firstLine = smallLines.get(i);
-			for (int j = i + 1; j < smallLines.size(); j++) {
-				checkTime("Took too long to handle short lines");
-				SVGLine secondLine = smallLines.get(j);
-				Double dist = firstLine.calculateUnsignedDistanceBetweenLines(secondLine, new Angle((firstLine.getLength() < parameters.getTinyHatchLineMaximumLength() || secondLine.getLength() < parameters.getTinyHatchLineMaximumLength() ? parameters.getMaximumAngleForParallelIfOneLineIsTiny() : parameters.getMaximumAngleForParallel()), Units.RADIANS));
-				if (dist != null && dist < parameters.getHatchLinesMaximumSpacing() && dist > parameters.getHatchLinesMinimumSpacing() && (firstLine.overlapsWithLine(secondLine, parameters.getLineOverlapEpsilon()) || secondLine.overlapsWithLine(firstLine, parameters.getLineOverlapEpsilon()))) {
-					try {
-						hatchedBonds.union(firstLine, secondLine);
-					} catch (IllegalArgumentException e) {
-						
-					}
-				}
-				if ((firstLine.isHorizontal(parameters.getFlatLineEpsilon()) || secondLine.isHorizontal(parameters.getFlatLineEpsilon())) && firstLine.overlapsWithLine(secondLine, parameters.getLineOverlapEpsilon()) && secondLine.overlapsWithLine(firstLine, parameters.getLineOverlapEpsilon()) && firstLine.getEuclidLine().isPerpendicularTo(secondLine.getEuclidLine(), new Angle(parameters.getPlusChargeAngleTolerance(), Units.DEGREES))) {
-					hatchedBonds.remove(firstLine);
-					hatchedBonds.remove(secondLine);
-					higherPrimitives.getLineList().remove(firstLine);
-					higherPrimitives.getLineList().remove(secondLine);
-					higherPrimitives.getLineChargeList().add(new Charge(parameters, firstLine, secondLine));
+			checkTime("Took too long to handle short lines");
+			SVGLine secondLine = smallLines.get(j);
+			Double dist = firstLine.calculateUnsignedDistanceBetweenLines(secondLine, (lengths[i] < parameters.getTinyHatchLineMaximumLength() || lengths[j] < parameters.getTinyHatchLineMaximumLength() ? maximumAngleForParallelIfOneLineIsTiny : maximumAngleForParallel));
+			if (dist != null && dist < parameters.getHatchLinesMaximumSpacing() && dist > parameters.getHatchLinesMinimumSpacing() && (firstLine.overlapsWithLine(secondLine, parameters.getLineOverlapEpsilon()) || secondLine.overlapsWithLine(firstLine, parameters.getLineOverlapEpsilon()))) {
+				try {
+					hatchedBonds.union(firstLine, secondLine);
+				} catch (IllegalArgumentException e) {
+					
 				}
 			}
+			if ((firstLine.isHorizontal(parameters.getFlatLineEpsilon()) || secondLine.isHorizontal(parameters.getFlatLineEpsilon())) && firstLine.overlapsWithLine(secondLine, parameters.getLineOverlapEpsilon()) && secondLine.overlapsWithLine(firstLine, parameters.getLineOverlapEpsilon()) && firstLine.getEuclidLine().isPerpendicularTo(secondLine.getEuclidLine(), plusChargeAngleTolerance)) {
+				hatchedBonds.remove(firstLine);
+				hatchedBonds.remove(secondLine);
+				higherPrimitives.getLineList().remove(firstLine);
+				higherPrimitives.getLineList().remove(secondLine);
+				higherPrimitives.getLineChargeList().add(new Charge(parameters, firstLine, secondLine));
+			}
 		}
 		handleShortLines(hatchedBonds);
 	}
@@ -438,62 +560,11 @@ public class ChemistryBuilder extends SimpleBuilder {
 		final double threshold = parameters.getThresholdForOrderingCheckForHatchedBonds();
 		mutuallyExclusiveShortLineTriples = new ArrayList<MutuallyExclusiveShortLineTriple>();
 		mutuallyExclusiveShortLinePairTriples = new ArrayList<MutuallyExclusiveShortLinePairTriple>();
+		invalidateAmbiguities();
 		List<HatchedBond> hatchList = higherPrimitives.getHatchedBondList();
 		set: for (Set<SVGLine> set : disjointSets.snapshot()) {
-			ArrayList<SVGLine> lines1 = new ArrayList<SVGLine>(set);
-			ArrayList<SVGLine> lines2 = new ArrayList<SVGLine>(set);
-			Collections.sort(lines1, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					Real2 firstOfI = (i.getXY(0).getX() < i.getXY(1).getX() ? i.getXY(0) : i.getXY(1));
-					Real2 firstOfJ = (j.getXY(0).getX() < j.getXY(1).getX() ? j.getXY(0) : j.getXY(1));
-					return (Real.isEqual(firstOfI.getX(), firstOfJ.getX(), threshold) ? Double.compare(firstOfI.getY(), firstOfJ.getY()) : Double.compare(firstOfI.getX(), firstOfJ.getX()));
-				}});
-			Collections.sort(lines2, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					Real2 firstOfI = (i.getXY(0).getY() < i.getXY(1).getY() ? i.getXY(0) : i.getXY(1));
-					Real2 firstOfJ = (j.getXY(0).getY() < j.getXY(1).getY() ? j.getXY(0) : j.getXY(1));
-					return (Real.isEqual(firstOfI.getY(), firstOfJ.getY(), threshold) ? Double.compare(firstOfI.getX(), firstOfJ.getX()) : Double.compare(firstOfI.getY(), firstOfJ.getY()));
-				}});
-			ArrayList<SVGLine> lines3 = (ArrayList<SVGLine>) lines1.clone();
-			Collections.reverse(lines3);
-			ArrayList<SVGLine> lines4 = (ArrayList<SVGLine>) lines1.clone();
-			ArrayList<SVGLine> lines5 = (ArrayList<SVGLine>) lines1.clone();
-			Collections.sort(lines4, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					Real2 secondOfI = (i.getXY(0).getX() >= i.getXY(1).getX() ? i.getXY(0) : i.getXY(1));
-					Real2 secondOfJ = (j.getXY(0).getX() >= j.getXY(1).getX() ? j.getXY(0) : j.getXY(1));
-					return (Real.isEqual(secondOfI.getX(), secondOfJ.getX(), threshold) ? Double.compare(secondOfI.getY(), secondOfJ.getY()) : Double.compare(secondOfI.getX(), secondOfJ.getX()));
-				}});
-			Collections.sort(lines5, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					Real2 secondOfI = (i.getXY(0).getY() >= i.getXY(1).getY() ? i.getXY(0) : i.getXY(1));
-					Real2 secondOfJ = (j.getXY(0).getY() >= j.getXY(1).getY() ? j.getXY(0) : j.getXY(1));
-					return (Real.isEqual(secondOfI.getY(), secondOfJ.getY(), threshold) ? Double.compare(secondOfI.getX(), secondOfJ.getX()) : Double.compare(secondOfI.getY(), secondOfJ.getY()));
-				}});
-			ArrayList<SVGLine> lines6 = (ArrayList<SVGLine>) lines4.clone();
-			Collections.reverse(lines6);
-			ArrayList<SVGLine> lines7 = (ArrayList<SVGLine>) lines1.clone();
-			ArrayList<SVGLine> lines8 = (ArrayList<SVGLine>) lines1.clone();
-			Collections.sort(lines7, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					return (Real.isEqual(i.getMidPoint().getX(), j.getMidPoint().getX(), threshold) ? Double.compare(i.getMidPoint().getY(), j.getMidPoint().getY()) : Double.compare(i.getMidPoint().getX(), j.getMidPoint().getX()));
-				}});
-			Collections.sort(lines8, new Comparator<SVGLine>(){
-				public int compare(SVGLine i, SVGLine j) {
-					return (Real.isEqual(i.getMidPoint().getY(), j.getMidPoint().getY(), threshold) ? Double.compare(i.getMidPoint().getX(), j.getMidPoint().getX()) : Double.compare(i.getMidPoint().getY(), j.getMidPoint().getY()));
-				}});
-			ArrayList<SVGLine> lines9 = (ArrayList<SVGLine>) lines7.clone();
-			Collections.reverse(lines9);
-			boolean firstEndPointsAndSecondEndPointsOrdered = ((lines1.equals(lines2) || lines3.equals(lines2)) && (lines4.equals(lines5) || lines6.equals(lines5)));
-			boolean firstEndPointsAndMidPointsOrdered = ((lines1.equals(lines2) || lines3.equals(lines2)) && (lines7.equals(lines8) || lines9.equals(lines8)));
-			boolean secondEndPointsAndMidPointsOrdered = ((lines4.equals(lines5) || lines6.equals(lines5)) && (lines7.equals(lines8) || lines9.equals(lines8)));
-			if (firstEndPointsAndSecondEndPointsOrdered || firstEndPointsAndMidPointsOrdered || secondEndPointsAndMidPointsOrdered) {
-				ArrayList<SVGLine> lines;
-				if (firstEndPointsAndSecondEndPointsOrdered || firstEndPointsAndMidPointsOrdered) {
-					lines = lines1;
-				} else {
-					lines = lines4;
-				}
+			List<SVGLine> lines = new HatchOrdering(set, threshold).getOrderedLines();
+			if (lines != null) {
 				try {
 					double change = lines.get(1).getLength() - lines.get(0).getLength();
 					double direction = Math.signum(change);
@@ -524,10 +595,13 @@ public class ChemistryBuilder extends SimpleBuilder {
 		}
 	}
 	
-	private void createJunctions() {
+	void createJunctions() {
+		long start = metrics.start();
 		createJoinableList();
 		List<Joinable> joinables = higherPrimitives.getJoinableList();
+		metrics.record(Stage.JOINABLE_CREATION, start, joinables.size());
 
+		start = metrics.start();
 		List<JoinPoint> joinPoints = extractAtomLabelsAndGetRemainingJoinPoints(joinables);
 		
 		UnionFind<JoinPoint> joinPointsGroupedIntoJunctions = UnionFind.create(joinPoints);
@@ -577,6 +651,7 @@ public class ChemistryBuilder extends SimpleBuilder {
 			}
 		}
 		higherPrimitives.setJunctionList(junctions);
+		metrics.record(Stage.JUNCTION_UNION_FIND, start, junctions.size());
 				
 				/*JoinPoint commonPoint = joinablei.getIntersectionPoint(joinablej);
 				if (commonPoint != null) {
@@ -609,11 +684,12 @@ public class ChemistryBuilder extends SimpleBuilder {
 	}
 
 	private void attemptToJoinListOfJoinables(List<Joinable> joinables, UnionFind<JoinPoint> joinPointsGroupedIntoJunctions) {
+		JoinPointIndex joinableIndex = new JoinPointIndex(joinables);
 		List<JoinableText> texts = new ArrayList<JoinableText>();
 		for (int i = 0; i < joinables.size() - 1; i++) {
 			Joinable joinableI = joinables.get(i);
 			if (!(joinableI instanceof JoinableText)) {
-				for (int j = i + 1; j < joinables.size(); j++) {
+				for (int j : joinableIndex.getIndicesOfNearbyJoinables(joinableI, i)) {
 					Joinable joinableJ = joinables.get(j);
 					if (!(joinableJ instanceof JoinableText)) {
 						checkTime("Took too long to determine what is joined to what");
@@ -631,14 +707,15 @@ public class ChemistryBuilder extends SimpleBuilder {
 			if (joinables.get(joinables.size() - 1) instanceof JoinableText) {
 				texts.add((JoinableText) joinables.get(joinables.size() - 1));
 			}
-			attemptToJoinTexts(texts, joinables, joinPointsGroupedIntoJunctions);
+			attemptToJoinTexts(texts, joinableIndex, joinPointsGroupedIntoJunctions);
 		}
 	}
 
-	private void attemptToJoinTexts(List<JoinableText> texts, List<Joinable> joinables, UnionFind<JoinPoint> joinPointsGroupedIntoJunctions) {
+	private void attemptToJoinTexts(List<JoinableText> texts, JoinPointIndex joinableIndex, UnionFind<JoinPoint> joinPointsGroupedIntoJunctions) {
+		JoinPointIndex textIndex = new JoinPointIndex(texts);
 		for (int i = 0; i < texts.size() - 1; i++) {
 			JoinableText textI = texts.get(i);
-			for (int j = i + 1; j < texts.size(); j++) {
+			for (int j : textIndex.getIndicesOfNearbyJoinables(textI, i)) {
 				JoinableText textJ = texts.get(j);
 				checkTime("Took too long to determine what is joined to what");
 				joinPointsGroupedIntoJunctions.unionAll(getListOfOverlappingJoinPointsForJoinables(joinPointsGroupedIntoJunctions, textI, textJ));
@@ -646,14 +723,15 @@ public class ChemistryBuilder extends SimpleBuilder {
 		}
 		for (JoinableText text : texts) {
 			Set<JoinPoint> joinPoints = new HashSet<JoinPoint>();
-			for (Joinable joinable : joinables) {
+			for (int j : joinableIndex.getIndicesOfNearbyJoinables(text, -1)) {
+				Joinable joinable = joinableIndex.get(j);
 				if (!(joinable instanceof JoinableText)) {
 					checkTime("Took too long to determine what is joined to what");
 					List<JoinPoint> overlap = getListOfOverlappingJoinPointsForJoinables(joinPointsGroupedIntoJunctions, text, joinable);
 					joinPoints.addAll(overlap);
-					for (JoinPoint j : overlap) {
-						if (!(j.getJoinable() instanceof JoinableText)) {
-							joinPoints.addAll(joinPointsGroupedIntoJunctions.getObjectsInPartitionOf(j));
+					for (JoinPoint p : overlap) {
+						if (!(p.getJoinable() instanceof JoinableText)) {
+							joinPoints.addAll(joinPointsGroupedIntoJunctions.getObjectsInPartitionOf(p));
 						}
 					}
 				}
@@ -671,15 +749,23 @@ public class ChemistryBuilder extends SimpleBuilder {
 		}
 	}
 
+	/**
+	 * @param joinPointsGroupedIntoJunctions
+	 * @param joinableI
+	 * @param joinableJ
+	 * @return the overlapping JoinPoints which should be joined; the list is reused by the next call
+	 * so must be used (or copied) before then
+	 */
 	private List<JoinPoint> getListOfOverlappingJoinPointsForJoinables(UnionFind<JoinPoint> joinPointsGroupedIntoJunctions, Joinable joinableI, Joinable joinableJ) {
-		Set<JoinPoint> overlapSet = joinableI.overlapWith(joinableJ);
-		if (overlapSet != null) {
-			List<JoinPoint> overlapList = new ArrayList<JoinPoint>(overlapSet);
-			if (!joinPointsGroupedIntoJunctions.contains(overlapList.get(0)) || !joinPointsGroupedIntoJunctions.contains(overlapList.get(1)) || (overlapList.size() > 2 && !joinPointsGroupedIntoJunctions.contains(overlapList.get(2))) || (overlapList.size() > 3 && !joinPointsGroupedIntoJunctions.contains(overlapList.get(3)))) {
-				return new ArrayList<JoinPoint>();
+		if (joinableI.overlapWith(joinableJ, overlapBuffer)) {
+			List<JoinPoint> overlapList = overlapBuffer;
+			for (int i = 0; i < overlapList.size() && i < 4; i++) {
+				if (!joinPointsGroupedIntoJunctions.contains(overlapList.get(i))) {
+					return Collections.<JoinPoint>emptyList();
+				}
 			}
 			if (mutuallyExclusive(joinableI, joinableJ)) {
-				return new ArrayList<JoinPoint>();
+				return Collections.<JoinPoint>emptyList();
 			}
 			if (joinableI instanceof JoinableText && joinableJ instanceof JoinableText) {
 				if (JoinableText.doTextsJoin((JoinableText) joinableI, (JoinableText) joinableJ, parameters)) {
@@ -697,9 +783,9 @@ public class ChemistryBuilder extends SimpleBuilder {
 					return overlapList;
 				} else {
 					text.setRadius(text.getRadius() * parameters.getSmallRadiusExpansion() / parameters.getLargeRadiusExpansion());
-					Set<JoinPoint> overlapSet2 = joinableI.overlapWith(joinableJ);
+					boolean overlapsWhenSmaller = joinableI.overlapWith(joinableJ, looseOverlapBuffer);
 					text.setRadius(text.getRadius() * parameters.getLargeRadiusExpansion() / parameters.getSmallRadiusExpansion());
-					if (overlapSet2 != null && line.isParallelTo(testLine, new Angle(parameters.getLooseBondAndTextAngle(), Units.DEGREES))) {
+					if (overlapsWhenSmaller && line.isParallelTo(testLine, new Angle(parameters.getLooseBondAndTextAngle(), Units.DEGREES))) {
 						return overlapList;
 					}
 				}
@@ -732,7 +818,7 @@ public class ChemistryBuilder extends SimpleBuilder {
 				}
 			}*/
 		}
-		return new ArrayList<JoinPoint>();
+		return Collections.<JoinPoint>emptyList();
 	}
 
 	private void removeJoinable(Joinable joinable) {
@@ -914,52 +1000,58 @@ public class ChemistryBuilder extends SimpleBuilder {
 	}
 
 	private boolean mutuallyExclusive(Joinable joinableI, Joinable joinableJ) {
-		for (MutuallyExclusiveShortLineTriple triple : mutuallyExclusiveShortLineTriples) {
-			if (joinableI == triple.hatchedBond && joinableJ == triple.minus || joinableJ == triple.hatchedBond && joinableI == triple.minus) {
-				return true;
-			}
-			if (joinableI == triple.hatchedBond && joinableJ == triple.singleBond || joinableJ == triple.hatchedBond && joinableI == triple.singleBond) {
-				return true;
+		return getMutualExclusionGraph().areMutuallyExclusive(joinableI, joinableJ);
+	}
+
+	/**
+	 * The hatched bond, minus and single bond of a short line are alternatives, as are the hatched bond,
+	 * double bond and single bonds of a pair of short lines. (MutuallyExclusiveLinePairPairs are not used.)
+	 */
+	private MutualExclusionGraph getMutualExclusionGraph() {
+		if (mutualExclusionGraph == null) {
+			mutualExclusionGraph = new MutualExclusionGraph();
+			for (MutuallyExclusiveShortLineTriple triple : mutuallyExclusiveShortLineTriples) {
+				mutualExclusionGraph.addAlternatives(triple.hatchedBond, triple.minus, triple.singleBond);
 			}
-			if (joinableI == triple.singleBond && joinableJ == triple.minus || joinableJ == triple.singleBond && joinableI == triple.minus) {
-				return true;
+			for (MutuallyExclusiveShortLinePairTriple triple : mutuallyExclusiveShortLinePairTriples) {
+				mutualExclusionGraph.addAlternatives(triple.hatchedBond, triple.doubleBond, triple.singleBond1, triple.singleBond2);
 			}
 		}
-		
-		for (MutuallyExclusiveShortLinePairTriple triple : mutuallyExclusiveShortLinePairTriples) {
-			if (joinableI == triple.hatchedBond && joinableJ == triple.doubleBond || joinableJ == triple.hatchedBond && joinableI == triple.doubleBond) {
-				return true;
-			}
-			if (joinableI == triple.hatchedBond && joinableJ == triple.singleBond1 || joinableJ == triple.hatchedBond && joinableI == triple.singleBond1) {
-				return true;
-			}
-			if (joinableI == triple.singleBond1 && joinableJ == triple.doubleBond || joinableJ == triple.singleBond1 && joinableI == triple.doubleBond) {
-				return true;
-			}
-			if (joinableI == triple.hatchedBond && joinableJ == triple.singleBond2 || joinableJ == triple.hatchedBond && joinableI == triple.singleBond2) {
-				return true;
+		return mutualExclusionGraph;
+	}
+
+	private Map<SVGLine, List<Object>> getAmbiguitiesByLine() {
+		if (ambiguitiesByLine == null) {
+			ambiguitiesByLine = new IdentityHashMap<SVGLine, List<Object>>();
+			for (MutuallyExclusiveShortLineTriple triple : mutuallyExclusiveShortLineTriples) {
+				addAmbiguity(triple.line, triple);
 			}
-			if (joinableI == triple.doubleBond && joinableJ == triple.singleBond2 || joinableJ == triple.doubleBond && joinableI == triple.singleBond2) {
-				return true;
+			for (MutuallyExclusiveShortLinePairTriple triple : mutuallyExclusiveShortLinePairTriples) {
+				addAmbiguity(triple.line1, triple);
+				addAmbiguity(triple.line2, triple);
 			}
-			if (joinableI == triple.singleBond1 && joinableJ == triple.singleBond2 || joinableJ == triple.singleBond1 && joinableI == triple.singleBond2) {
-				return true;
+			for (MutuallyExclusiveLinePairPair pair : mutuallyExclusiveLinePairPairs) {
+				addAmbiguity(pair.line1, pair);
+				addAmbiguity(pair.line2, pair);
 			}
 		}
-		
-		/*for (MutuallyExclusiveLinePairPair pair : mutuallyExclusiveLinePairPairs) {
-			if (joinableI == pair.singleBond2 && joinableJ == pair.doubleBond || joinableJ == pair.singleBond2 && joinableI == pair.doubleBond) {
-				return true;
-			}
-			if (joinableI == pair.singleBond2 && joinableJ == pair.singleBond1 || joinableJ == pair.singleBond2 && joinableI == pair.singleBond1) {
-				return true;
-			}
-			if (joinableI == pair.singleBond1 && joinableJ == pair.doubleBond || joinableJ == pair.singleBond1 && joinableI == pair.doubleBond) {
-				return true;
-			}
-		}*/
-		
-		return false;
+		return ambiguitiesByLine;
+	}
+
+	private void addAmbiguity(SVGLine line, Object tripleOrPair) {
+		List<Object> ambiguities = ambiguitiesByLine.get(line);
+		if (ambiguities == null) {
+			ambiguities = new ArrayList<Object>(1);
+			ambiguitiesByLine.put(line, ambiguities);
+		}
+		if (!ambiguities.contains(tripleOrPair)) {
+			ambiguities.add(tripleOrPair);
+		}
+	}
+
+	private void invalidateAmbiguities() {
+		ambiguitiesByLine = null;
+		mutualExclusionGraph = null;
 	}
 
 	private List<JoinPoint> extractAtomLabelsAndGetRemainingJoinPoints(List<Joinable> joinables) {
@@ -1086,26 +1178,30 @@ public class ChemistryBuilder extends SimpleBuilder {
 		Joinable joinable = null;
 		if (element instanceof SVGLine) {
 			joinable = new SingleBond(parameters, (SVGLine) element);
-			for (MutuallyExclusiveShortLineTriple triple : mutuallyExclusiveShortLineTriples) {
-				if (triple.line == element) {
-					triple.singleBond = (SingleBond) joinable;
-				}
-			}
-			for (MutuallyExclusiveShortLinePairTriple triple : mutuallyExclusiveShortLinePairTriples) {
-				if (triple.line1 == element) {
-					triple.singleBond1 = (SingleBond) joinable;
-				}
-				if (triple.line2 == element) {
-					triple.singleBond2 = (SingleBond) joinable;
-				}
-			}
-			for (MutuallyExclusiveLinePairPair pair : mutuallyExclusiveLinePairPairs) {
-				if (pair.line1 == element) {
-					pair.singleBond1 = (SingleBond) joinable;
-				}
-				if (pair.line2 == element) {
-					pair.singleBond2 = (SingleBond) joinable;
+			List<Object> ambiguities = getAmbiguitiesByLine().get(element);
+			if (ambiguities != null) {
+				for (Object ambiguity : ambiguities) {
+					if (ambiguity instanceof MutuallyExclusiveShortLineTriple) {
+						((MutuallyExclusiveShortLineTriple) ambiguity).singleBond = (SingleBond) joinable;
+					} else if (ambiguity instanceof MutuallyExclusiveShortLinePairTriple) {
+						MutuallyExclusiveShortLinePairTriple triple = (MutuallyExclusiveShortLinePairTriple) ambiguity;
+						if (triple.line1 == element) {
+							triple.singleBond1 = (SingleBond) joinable;
+						}
+						if (triple.line2 == element) {
+							triple.singleBond2 = (SingleBond) joinable;
+						}
+					} else {
+						MutuallyExclusiveLinePairPair pair = (MutuallyExclusiveLinePairPair) ambiguity;
+						if (pair.line1 == element) {
+							pair.singleBond1 = (SingleBond) joinable;
+						}
+						if (pair.line2 == element) {
+							pair.singleBond2 = (SingleBond) joinable;
+						}
+					}
 				}
+				mutualExclusionGraph = null;
 			}
 		} else if (element instanceof SVGText) {
 			if (("+".equals(((SVGText) element).getText()) || "-".equals(((SVGText) element).getText())) && !JoinableText.anyTextsInSameString((SVGText) element, derivedPrimitives.getTextList(), parameters, false, true) && !JoinableText.anyTextsToRightInSameString((SVGText) element, derivedPrimitives.getTextList(), parameters, true)) {
@@ -1150,7 +1246,7 @@ public class ChemistryBuilder extends SimpleBuilder {
 		return joinable;
 	}
 
-	private void createUnsaturatedBondLists() {
+	void createUnsaturatedBondLists() {
 		DoubleBondManager unsaturatedBondManager = new DoubleBondManager(parameters);
 		try {
 			unsaturatedBondManager.createBondLists(higherPrimitives.getLineList(), startTime + timeout - System.currentTimeMillis());
@@ -1163,6 +1259,7 @@ public class ChemistryBuilder extends SimpleBuilder {
 		higherPrimitives.setDoubleBondList(doubleBondList);
 		higherPrimitives.setTripleBondList(tripleBondList);
 		mutuallyExclusiveLinePairPairs = new ArrayList<MutuallyExclusiveLinePairPair>();
+		invalidateAmbiguities();
 		bond: for (DoubleBond bond : doubleBondList) {
 			for (MutuallyExclusiveShortLinePairTriple pair : mutuallyExclusiveShortLinePairTriples) {
 				if ((pair.line1 == bond.getLine(0) && pair.line2 == bond.getLine(1)) || (pair.line1 == bond.getLine(1) && pair.line2 == bond.getLine(0))) {
@@ -1207,6 +1304,30 @@ public class ChemistryBuilder extends SimpleBuilder {
 	public HigherPrimitives getHigherPrimitives() {
 		return higherPrimitives;
 	}
+
+	/**
+	 * @return timings and counts of the stages run so far (shared with any MoleculeCreator using this builder)
+	 */
+	public StageMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param ocrExecutor on which images of text are decoded; null (the default) for a pool with a thread
+	 * for each processor, shared by all builders
+	 */
+	public void setOCRExecutor(ExecutorService ocrExecutor) {
+		this.ocrExecutor = ocrExecutor;
+	}
+
+	/**
+	 * Replaces the metrics, e.g. with one titled with the input file name. 
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(StageMetrics metrics) {
+		this.metrics = metrics;
+	}
 	
 	public Map<Real2Range, Integer> getAtomLabels() {
 		return atomLabelPositionsAndNumbers;
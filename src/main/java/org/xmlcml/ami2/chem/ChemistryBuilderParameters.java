@@ -377,6 +377,15 @@ public class ChemistryBuilderParameters {
 		return looseBondAndTextAngle;
 	}
 	
+	/**
+	 * Sets the bond length found from an earlier run, e.g. when resuming from a checkpoint.
+	 * 
+	 * @param standardBondLength
+	 */
+	void setStandardBondLength(double standardBondLength) {
+		this.standardBondLength = standardBondLength;
+	}
+
 	double setStandardBondLengthFromSVG(List<SVGLine> lines) {
 		/*if (0 == 0) {
 			standardBondLength = 29.497618971706853;
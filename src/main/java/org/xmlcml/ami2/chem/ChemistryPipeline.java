@@ -0,0 +1,302 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.xmlcml.cml.base.CMLBuilder;
+import org.xmlcml.cml.base.CMLUtil;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.element.CMLReaction;
+import org.xmlcml.graphics.svg.SVGElement;
+import org.xmlcml.xml.XMLUtil;
+
+/**
+ * Runs ChemistryBuilder and MoleculeCreator as explicit stages which can be resumed.
+ * <p>
+ * The stages are:
+ * <ul>
+ * <li>DERIVED_PRIMITIVES: geometry clean-up of the raw SVG, OCR of text images and splitting of texts</li>
+ * <li>HIGHER_PRIMITIVES: hatched, double and triple bonds and charges</li>
+ * <li>JUNCTIONS: joinables and the junctions between them</li>
+ * <li>MOLECULES and REACTIONS: made together by MoleculeCreator.getReactionsAndMolecules()</li>
+ * </ul>
+ * The derived primitives are kept (as copies) once made, so {@link #invalidateFrom(Stage)} reruns only
+ * the stages from the one given. For example, after changing the MoleculeCreatorParameters,
+ * invalidateFrom(Stage.MOLECULES) makes new molecules and reactions from the existing junctions;
+ * changes to the bond-detection parameters need invalidateFrom(Stage.HIGHER_PRIMITIVES).
+ * <p>
+ * If a checkpoint directory is given, the derived primitives are saved there as SVG and the molecules
+ * and reactions as CML, and are read back instead of being recomputed by later pipelines using the same directory.
+ * Each checkpoint has a file beside it holding a hash of the configuration that made it (see
+ * ChemistryResultCache): only the ChemistryBuilderParameters for the derived primitives, so they are reused
+ * when only the MoleculeCreatorParameters change, and all the parameters and the groups for the molecules and
+ * reactions. A checkpoint made with another configuration is deleted rather than read.
+ * Higher primitives and junctions are object graphs over the derived primitives and are only kept in memory;
+ * they are recomputed from the derived primitives when needed.
+ *
+ * @author pm286
+ */
+public class ChemistryPipeline {
+
+	private final static Logger LOG = Logger.getLogger(ChemistryPipeline.class);
+
+	public enum Stage {
+		DERIVED_PRIMITIVES,
+		HIGHER_PRIMITIVES,
+		JUNCTIONS,
+		MOLECULES,
+		REACTIONS
+	}
+
+	public final static String DERIVED_PRIMITIVES_CHECKPOINT = "derivedPrimitives.svg";
+	public final static String REACTIONS_AND_MOLECULES_CHECKPOINT = "reactionsAndMolecules.cml";
+	private final static String CONFIGURATION_SUFFIX = ".configuration";
+
+	private SVGElement input;
+	private Long timeout;
+	private MoleculeCreatorParameters parameters;
+	private File checkpointDirectory;
+	private String configurationHash;
+	private String builderConfigurationHash;
+
+	private DerivedPrimitivesCheckpoint derivedPrimitives;
+	private ChemistryBuilder chemistryBuilder;
+	private boolean junctionsCreated;
+	private Element reactionsAndMolecules;
+
+	/**
+	 * @param input raw SVG (not altered)
+	 * @param timeout for each ChemistryBuilder in milliseconds; null for the default
+	 * @param parameters
+	 * @param checkpointDirectory for checkpoints of this input; null for none
+	 */
+	public ChemistryPipeline(SVGElement input, Long timeout, MoleculeCreatorParameters parameters, File checkpointDirectory) {
+		this.input = input;
+		this.timeout = timeout;
+		this.parameters = parameters;
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+	public ChemistryPipeline(SVGElement input, MoleculeCreatorParameters parameters, File checkpointDirectory) {
+		this(input, null, parameters, checkpointDirectory);
+	}
+
+	public ChemistryPipeline(SVGElement input, MoleculeCreatorParameters parameters) {
+		this(input, null, parameters, null);
+	}
+
+	public MoleculeCreatorParameters getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Changes the parameters for stages not yet run; use {@link #invalidateFrom(Stage)} to rerun stages which have been.
+	 *
+	 * @param parameters
+	 */
+	public void setParameters(MoleculeCreatorParameters parameters) {
+		this.parameters = parameters;
+		configurationHash = null;
+		builderConfigurationHash = null;
+	}
+
+	/**
+	 * @return null if no stage has been run
+	 */
+	public Stage getLastCompletedStage() {
+		if (reactionsAndMolecules != null) {
+			return Stage.REACTIONS;
+		} else if (junctionsCreated) {
+			return Stage.JUNCTIONS;
+		} else if (chemistryBuilder != null) {
+			return Stage.HIGHER_PRIMITIVES;
+		} else if (derivedPrimitives != null) {
+			return Stage.DERIVED_PRIMITIVES;
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the results of the given stage and those after it, including their checkpoints.
+	 *
+	 * @param stage
+	 */
+	public void invalidateFrom(Stage stage) {
+		if (stage.compareTo(Stage.MOLECULES) <= 0) {
+			reactionsAndMolecules = null;
+			deleteCheckpoint(REACTIONS_AND_MOLECULES_CHECKPOINT);
+		}
+		if (stage.compareTo(Stage.JUNCTIONS) <= 0) {
+			//junctions are made in place on the builder's higher primitives so they go with it
+			chemistryBuilder = null;
+			junctionsCreated = false;
+		}
+		if (stage == Stage.DERIVED_PRIMITIVES) {
+			derivedPrimitives = null;
+			deleteCheckpoint(DERIVED_PRIMITIVES_CHECKPOINT);
+		}
+	}
+
+	/**
+	 * Runs the stages up to and including the given one which have not already been run.
+	 *
+	 * @param stage
+	 * @throws IOException if a checkpoint cannot be read or written
+	 */
+	public void runTo(Stage stage) throws IOException {
+		if (configurationHash == null && checkpointDirectory != null) {
+			//before the parameters are adapted to the diagram by the stages
+			configurationHash = ChemistryResultCache.createConfigurationHash(parameters);
+			builderConfigurationHash = ChemistryResultCache.createBuilderConfigurationHash(parameters);
+		}
+		if (stage.compareTo(Stage.MOLECULES) >= 0) {
+			if (reactionsAndMolecules != null || readReactionsAndMolecules()) {
+				return;
+			}
+		}
+		if (derivedPrimitives == null) {
+			createDerivedPrimitives();
+		}
+		if (stage.compareTo(Stage.HIGHER_PRIMITIVES) >= 0 && chemistryBuilder == null) {
+			chemistryBuilder = derivedPrimitives.createBuilder(parameters, timeout);
+			chemistryBuilder.createSingleLines();
+			chemistryBuilder.handleShortLines();
+			chemistryBuilder.createUnsaturatedBondLists();
+		}
+		if (stage.compareTo(Stage.JUNCTIONS) >= 0 && !junctionsCreated) {
+			chemistryBuilder.createJunctions();
+			junctionsCreated = true;
+		}
+		if (stage.compareTo(Stage.MOLECULES) >= 0) {
+			reactionsAndMolecules = new MoleculeCreator(chemistryBuilder, parameters).getReactionsAndMolecules();
+			writeCheckpoint(REACTIONS_AND_MOLECULES_CHECKPOINT, reactionsAndMolecules.toXML());
+		}
+	}
+
+	/**
+	 * Runs all stages not yet run.
+	 *
+	 * @return cml with a moleculeList and a reactionList
+	 * @throws IOException
+	 */
+	public Element getReactionsAndMolecules() throws IOException {
+		runTo(Stage.REACTIONS);
+		return reactionsAndMolecules;
+	}
+
+	public List<CMLMolecule> getMolecules() throws IOException {
+		List<CMLMolecule> molecules = new ArrayList<CMLMolecule>();
+		for (Element element : XMLUtil.getQueryElements(getReactionsAndMolecules(), "./cml:moleculeList/cml:molecule", CMLUtil.CML_XPATH)) {
+			molecules.add((CMLMolecule) element);
+		}
+		return molecules;
+	}
+
+	public List<CMLReaction> getReactions() throws IOException {
+		List<CMLReaction> reactions = new ArrayList<CMLReaction>();
+		for (Element element : XMLUtil.getQueryElements(getReactionsAndMolecules(), "./cml:reactionList/cml:reaction", CMLUtil.CML_XPATH)) {
+			reactions.add((CMLReaction) element);
+		}
+		return reactions;
+	}
+
+	/**
+	 * @return builder which has made the higher primitives and perhaps the junctions (null if they have not been
+	 * made, e.g. because the molecules and reactions came from a checkpoint)
+	 */
+	public ChemistryBuilder getChemistryBuilder() {
+		return chemistryBuilder;
+	}
+
+	private void createDerivedPrimitives() throws IOException {
+		File checkpoint = getCheckpointFile(DERIVED_PRIMITIVES_CHECKPOINT);
+		if (isCheckpointCurrent(DERIVED_PRIMITIVES_CHECKPOINT)) {
+			LOG.trace("Reading derived primitives from " + checkpoint);
+			derivedPrimitives = DerivedPrimitivesCheckpoint.read(checkpoint);
+			return;
+		}
+		SVGElement svg = (SVGElement) input.copy();
+		ChemistryBuilder builder = (timeout == null ? new ChemistryBuilder(svg, parameters) : new ChemistryBuilder(svg, timeout, parameters));
+		builder.createDerivedPrimitivesAndTexts();
+		derivedPrimitives = DerivedPrimitivesCheckpoint.create(builder);
+		if (checkpoint != null) {
+			derivedPrimitives.write(checkpoint);
+			writeConfiguration(DERIVED_PRIMITIVES_CHECKPOINT);
+		}
+	}
+
+	private boolean readReactionsAndMolecules() throws IOException {
+		if (!isCheckpointCurrent(REACTIONS_AND_MOLECULES_CHECKPOINT)) {
+			return false;
+		}
+		File checkpoint = getCheckpointFile(REACTIONS_AND_MOLECULES_CHECKPOINT);
+		LOG.trace("Reading molecules and reactions from " + checkpoint);
+		InputStream is = new FileInputStream(checkpoint);
+		try {
+			reactionsAndMolecules = new CMLBuilder().build(is).getRootElement();
+		} catch (Exception e) {
+			throw new IOException("Cannot read checkpoint " + checkpoint + ": " + e);
+		} finally {
+			is.close();
+		}
+		return true;
+	}
+
+	private void writeCheckpoint(String name, String content) throws IOException {
+		File checkpoint = getCheckpointFile(name);
+		if (checkpoint != null) {
+			FileUtils.write(checkpoint, content, "UTF-8");
+			writeConfiguration(name);
+		}
+	}
+
+	private void writeConfiguration(String name) throws IOException {
+		FileUtils.write(getCheckpointFile(name + CONFIGURATION_SUFFIX), getConfigurationHash(name), "UTF-8");
+	}
+
+	/**
+	 * @return hash of the configuration on which the checkpoint depends
+	 */
+	private String getConfigurationHash(String name) {
+		return (DERIVED_PRIMITIVES_CHECKPOINT.equals(name) ? builderConfigurationHash : configurationHash);
+	}
+
+	/**
+	 * @return whether the checkpoint exists and was made with the current configuration; if it was made with
+	 * another (or an unknown) configuration it is deleted
+	 */
+	private boolean isCheckpointCurrent(String name) throws IOException {
+		File checkpoint = getCheckpointFile(name);
+		if (checkpoint == null || !checkpoint.exists()) {
+			return false;
+		}
+		File configuration = getCheckpointFile(name + CONFIGURATION_SUFFIX);
+		if (configuration.exists() && FileUtils.readFileToString(configuration, "UTF-8").equals(getConfigurationHash(name))) {
+			return true;
+		}
+		LOG.debug("Deleting checkpoint made with other parameters or groups: " + checkpoint);
+		deleteCheckpoint(name);
+		return false;
+	}
+
+	private void deleteCheckpoint(String name) {
+		File checkpoint = getCheckpointFile(name);
+		if (checkpoint != null) {
+			FileUtils.deleteQuietly(checkpoint);
+			FileUtils.deleteQuietly(getCheckpointFile(name + CONFIGURATION_SUFFIX));
+		}
+	}
+
+	private File getCheckpointFile(String name) {
+		return (checkpointDirectory == null ? null : new File(checkpointDirectory, name));
+	}
+
+}
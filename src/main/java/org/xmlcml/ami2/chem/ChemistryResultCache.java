@@ -0,0 +1,257 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nu.xom.Element;
+import nu.xom.canonical.Canonicalizer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.log4j.Logger;
+import org.xmlcml.cml.base.CMLBuilder;
+
+import com.google.gson.Gson;
+
+/**
+ * On-disk cache of the CML pages (molecules and reactions) made from SVG files.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the canonical XML of the SVG, so reformatted copies of the
+ * same figure share an entry. They are kept in a directory for each configuration: a hash of the values
+ * of the MoleculeCreatorParameters (before they are adapted to the diagram) and of groups.cml and
+ * groupsdictionary.tab. A change to either therefore misses the old entries, which can be deleted with
+ * {@link #invalidateOtherConfigurations()}.
+ * <p>
+ * The total size of the cache directory is bounded; the least recently used entries are deleted first.
+ * Methods are thread-safe for a single JVM.
+ *
+ * @author pm286
+ */
+public class ChemistryResultCache {
+
+	private final static Logger LOG = Logger.getLogger(ChemistryResultCache.class);
+
+	public final static long DEFAULT_MAXIMUM_BYTES = 256L * 1024 * 1024;
+
+	private final static String SUFFIX = ".cml";
+	private final static String TEMPORARY_SUFFIX = ".tmp";
+	private final static String DIGEST = "SHA-256";
+
+	private File directory;
+	private File configurationDirectory;
+	private long maximumBytes;
+
+	/**
+	 * @param directory for the cache (created if necessary)
+	 * @param maximumBytes bound on the total size of all entries in the directory
+	 * @param parameters as they will be given to each ChemistryBuilder and MoleculeCreator
+	 * @throws IOException if the directory cannot be created or the groups cannot be read
+	 */
+	public ChemistryResultCache(File directory, long maximumBytes, MoleculeCreatorParameters parameters) throws IOException {
+		this.directory = directory;
+		this.maximumBytes = maximumBytes;
+		configurationDirectory = new File(directory, createConfigurationHash(parameters));
+		FileUtils.forceMkdir(configurationDirectory);
+	}
+
+	public ChemistryResultCache(File directory, MoleculeCreatorParameters parameters) throws IOException {
+		this(directory, DEFAULT_MAXIMUM_BYTES, parameters);
+	}
+
+	/**
+	 * @param svg before it is given to a ChemistryBuilder (which alters it)
+	 * @return key for the SVG
+	 */
+	public String createKey(Element svg) {
+		MessageDigest digest = createDigest();
+		OutputStream os = new DigestOutputStream(new NullOutputStream(), digest);
+		try {
+			new Canonicalizer(os).write(svg);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot canonicalize SVG", e);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param key from {@link #createKey(Element)}
+	 * @return cml page as made by MoleculeCreator.getReactionsAndMolecules(), or null if it is not cached
+	 */
+	public synchronized Element get(String key) {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			Element page = new CMLBuilder().build(is).getRootElement();
+			file.setLastModified(System.currentTimeMillis());
+			return page;
+		} catch (Exception e) {
+			LOG.warn("Discarding unreadable cache entry " + file + ": " + e);
+			FileUtils.deleteQuietly(file);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * Stores a page and evicts the least recently used entries if the cache is then too large.
+	 *
+	 * @param key from {@link #createKey(Element)}
+	 * @param page as made by MoleculeCreator.getReactionsAndMolecules()
+	 */
+	public synchronized void put(String key, Element page) {
+		File file = getFile(key);
+		File temporary = new File(configurationDirectory, key + TEMPORARY_SUFFIX);
+		try {
+			FileUtils.write(temporary, page.toXML(), "UTF-8");
+			FileUtils.deleteQuietly(file);
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Cannot rename " + temporary + " to " + file);
+			}
+		} catch (IOException e) {
+			LOG.warn("Cannot cache result: " + e);
+			FileUtils.deleteQuietly(temporary);
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Deletes the entries made with other parameters or other groups.
+	 */
+	public synchronized void invalidateOtherConfigurations() {
+		File[] configurations = directory.listFiles();
+		if (configurations != null) {
+			for (File configuration : configurations) {
+				if (configuration.isDirectory() && !configuration.equals(configurationDirectory)) {
+					LOG.debug("Deleting stale cache entries in " + configuration);
+					FileUtils.deleteQuietly(configuration);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes all the entries for the current configuration.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear() throws IOException {
+		FileUtils.cleanDirectory(configurationDirectory);
+	}
+
+	private void evict() {
+		List<File> entries = new ArrayList<File>();
+		long totalBytes = 0;
+		File[] configurations = directory.listFiles();
+		if (configurations == null) {
+			return;
+		}
+		for (File configuration : configurations) {
+			File[] files = configuration.listFiles();
+			if (files != null) {
+				entries.addAll(Arrays.asList(files));
+			}
+		}
+		final long[] lastModified = new long[entries.size()];
+		List<Integer> order = new ArrayList<Integer>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			lastModified[i] = entries.get(i).lastModified();
+			totalBytes += entries.get(i).length();
+			order.add(i);
+		}
+		if (totalBytes <= maximumBytes) {
+			return;
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return (lastModified[i] < lastModified[j] ? -1 : (lastModified[i] == lastModified[j] ? 0 : 1));
+			}
+		});
+		for (int i = 0; i < order.size() && totalBytes > maximumBytes; i++) {
+			File entry = entries.get(order.get(i));
+			long length = entry.length();
+			if (entry.delete()) {
+				totalBytes -= length;
+				LOG.trace("Evicted " + entry);
+			}
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(configurationDirectory, key + SUFFIX);
+	}
+
+	/**
+	 * @param parameters before they are adapted to a diagram
+	 * @return hash of the parameters and the groups, as used for the directory of a configuration
+	 * @throws IOException if the groups cannot be read
+	 */
+	static String createConfigurationHash(MoleculeCreatorParameters parameters) throws IOException {
+		MessageDigest digest = createDigest();
+		digest.update(parameters.getClass().getName().getBytes("UTF-8"));
+		digest.update(new Gson().toJson(parameters).getBytes("UTF-8"));
+		digest.update(readResource("groups.cml"));
+		digest.update(readResource("groupsdictionary.tab"));
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param parameters before they are adapted to a diagram
+	 * @return hash of only the ChemistryBuilderParameters fields (not those of a subclass, nor the groups), for results
+	 * which do not depend on how molecules are assembled
+	 * @throws IOException
+	 */
+	static String createBuilderConfigurationHash(ChemistryBuilderParameters parameters) throws IOException {
+		MessageDigest digest = createDigest();
+		digest.update(ChemistryBuilderParameters.class.getName().getBytes("UTF-8"));
+		digest.update(new Gson().toJson(parameters, ChemistryBuilderParameters.class).getBytes("UTF-8"));
+		return toHex(digest.digest());
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		InputStream is = MoleculeCreator.class.getResourceAsStream(name);
+		if (is == null) {
+			throw new IOException("Cannot find " + name);
+		}
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(DIGEST + " is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.xom.Attribute;
+
+import org.apache.commons.io.FileUtils;
+import org.xmlcml.graphics.svg.SVGElement;
+import org.xmlcml.graphics.svg.SVGG;
+import org.xmlcml.graphics.svg.SVGLine;
+import org.xmlcml.graphics.svg.SVGPath;
+import org.xmlcml.graphics.svg.SVGPolygon;
+import org.xmlcml.graphics.svg.SVGSVG;
+import org.xmlcml.graphics.svg.SVGText;
+import org.xmlcml.graphics.svg.SVGUtil;
+
+/**
+ * Copies of the derived primitives of a ChemistryBuilder (after text images have been replaced and texts split),
+ * with the standard bond length found from them.
+ * <p>
+ * This is the output of the expensive geometry and OCR stages. It is kept by ChemistryPipeline so that the later
+ * stages can be rerun on a fresh ChemistryBuilder, and can be saved as SVG: a g for each kind of primitive, in the
+ * order of the lists, inside a g holding the bond length.
+ *
+ * @author pm286
+ */
+class DerivedPrimitivesCheckpoint {
+
+	private final static String CHECKPOINT_CLASS = "derivedPrimitives";
+	private final static String STANDARD_BOND_LENGTH = "standardBondLength";
+	private final static String LINES = "lines";
+	private final static String TEXTS = "texts";
+	private final static String POLYGONS = "polygons";
+	private final static String PATHS = "paths";
+
+	private List<SVGLine> lines;
+	private List<SVGText> texts;
+	private List<SVGPolygon> polygons;
+	private List<SVGPath> paths;
+	private double standardBondLength;
+
+	private DerivedPrimitivesCheckpoint() {
+	}
+
+	/**
+	 * @param builder which has run createDerivedPrimitivesAndTexts() but no later stages
+	 * @return copies of the derived primitives of the builder
+	 */
+	static DerivedPrimitivesCheckpoint create(ChemistryBuilder builder) {
+		DerivedPrimitivesCheckpoint checkpoint = new DerivedPrimitivesCheckpoint();
+		checkpoint.lines = copy(builder.getDerivedPrimitives().getLineList());
+		checkpoint.texts = copy(builder.getDerivedPrimitives().getTextList());
+		checkpoint.polygons = copy(builder.getDerivedPrimitives().getPolygonList());
+		checkpoint.paths = copy(builder.getDerivedPrimitives().getPathList());
+		checkpoint.standardBondLength = builder.getParameters().getStandardBondLength();
+		return checkpoint;
+	}
+
+	/**
+	 * @param file written by {@link #write(File)}
+	 * @return checkpoint
+	 * @throws IOException
+	 */
+	static DerivedPrimitivesCheckpoint read(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		SVGElement svg;
+		try {
+			svg = SVGUtil.parseToSVGElement(is);
+		} finally {
+			is.close();
+		}
+		SVGElement g = getChildG(svg, CHECKPOINT_CLASS);
+		if (g == null || g.getAttributeValue(STANDARD_BOND_LENGTH) == null) {
+			throw new IOException("Not a checkpoint of derived primitives: " + file);
+		}
+		DerivedPrimitivesCheckpoint checkpoint = new DerivedPrimitivesCheckpoint();
+		checkpoint.standardBondLength = Double.parseDouble(g.getAttributeValue(STANDARD_BOND_LENGTH));
+		checkpoint.lines = SVGLine.extractSelfAndDescendantLines(getChildGOrEmpty(g, LINES));
+		checkpoint.texts = SVGText.extractSelfAndDescendantTexts(getChildGOrEmpty(g, TEXTS));
+		checkpoint.polygons = SVGPolygon.extractSelfAndDescendantPolygons(getChildGOrEmpty(g, POLYGONS));
+		checkpoint.paths = SVGPath.extractSelfAndDescendantPaths(getChildGOrEmpty(g, PATHS));
+		return checkpoint;
+	}
+
+	void write(File file) throws IOException {
+		SVGSVG svg = new SVGSVG();
+		SVGG g = new SVGG();
+		g.setClassName(CHECKPOINT_CLASS);
+		g.addAttribute(new Attribute(STANDARD_BOND_LENGTH, Double.toString(standardBondLength)));
+		g.appendChild(createG(LINES, lines));
+		g.appendChild(createG(TEXTS, texts));
+		g.appendChild(createG(POLYGONS, polygons));
+		g.appendChild(createG(PATHS, paths));
+		svg.appendChild(g);
+		FileUtils.write(file, svg.toXML(), "UTF-8");
+	}
+
+	/**
+	 * @param parameters for the new builder; its standard bond length is reset to that of the checkpoint
+	 * @param timeout in milliseconds; null for the default
+	 * @return builder ready for createSingleLines() with copies of the primitives
+	 */
+	ChemistryBuilder createBuilder(ChemistryBuilderParameters parameters, Long timeout) {
+		ChemistryBuilder builder = (timeout == null ? new ChemistryBuilder(new SVGSVG(), parameters) : new ChemistryBuilder(new SVGSVG(), timeout, parameters));
+		builder.restoreDerivedPrimitives(copy(lines), copy(texts), copy(polygons), copy(paths), standardBondLength);
+		return builder;
+	}
+
+	private static SVGG createG(String className, List<? extends SVGElement> elements) {
+		SVGG g = new SVGG();
+		g.setClassName(className);
+		for (SVGElement element : copy(elements)) {
+			g.appendChild(element);
+		}
+		return g;
+	}
+
+	private static SVGElement getChildG(SVGElement parent, String className) {
+		for (int i = 0; i < parent.getChildElements().size(); i++) {
+			SVGElement child = (SVGElement) parent.getChildElements().get(i);
+			if (child instanceof SVGG && className.equals(child.getAttributeValue("class"))) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	private static SVGElement getChildGOrEmpty(SVGElement parent, String className) {
+		SVGElement g = getChildG(parent, className);
+		return (g == null ? new SVGG() : g);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends SVGElement> List<T> copy(List<T> elements) {
+		List<T> copies = new ArrayList<T>(elements.size());
+		for (T element : elements) {
+			copies.add((T) element.copy());
+		}
+		return copies;
+	}
+
+}
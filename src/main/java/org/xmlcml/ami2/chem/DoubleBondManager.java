@@ -10,6 +10,7 @@ import java.util.concurrent.TimeoutException;
 import org.apache.log4j.Logger;
 import org.xmlcml.euclid.Angle;
 import org.xmlcml.euclid.Angle.Units;
+import org.xmlcml.euclid.Line2;
 import org.xmlcml.euclid.Real2;
 import org.xmlcml.graphics.svg.SVGLine;
 
@@ -23,10 +24,25 @@ public class DoubleBondManager {
 	private ChemistryBuilderParameters parameters;
 	
 	private Set<SVGLine> usedLineSet;
+	
+	private Angle parallelThreshold;
+	private Angle anyAngle;
+	
+	private LineGeometry geometry;
+	private SVGLine reversedLine;
+	private SVGLine shrunkLine1;
+	private SVGLine shrunkLine2;
+	private SVGLine shrunkLine3;
 
 	public DoubleBondManager(ChemistryBuilderParameters parameters) {
 		ensureBondListsAndUsedLineSet();
 		this.parameters = parameters;
+		parallelThreshold = new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS);
+		anyAngle = new Angle(360, Units.DEGREES);
+		reversedLine = createScratchLine();
+		shrunkLine1 = createScratchLine();
+		shrunkLine2 = createScratchLine();
+		shrunkLine3 = createScratchLine();
 	}
 
 	private void ensureBondListsAndUsedLineSet() {
@@ -42,27 +58,32 @@ public class DoubleBondManager {
 	}
 	
 	public DoubleBond createDoubleBond(SVGLine lineI, SVGLine lineJ) {
-		DoubleBond doubleBond = null;
 		if (lineI == null || lineJ == null) {
-			return doubleBond;
+			return null;
 		}
-		Double length1 = lineI.getXY(0).getDistance(lineI.getXY(1));//TODO getLength(); fix Euclid
-		Double length2 = lineJ.getXY(0).getDistance(lineJ.getXY(1));//TODO getLength();
-		Double longer = (length1 > length2 ? length1 : length2);
-		Double shorter = (length1 > length2 ? length2 : length1);
+		return createDoubleBond(lineI, lineJ, getLength(lineI), getLength(lineJ), indexOf(lineI));
+	}
+
+	/**
+	 * The parallel, separation and overlap checks are those of Euclid, whose tolerances the parameters
+	 * were tuned against; only the lengths and end points come from the geometry.
+	 *
+	 * @param indexI position of lineI in the geometry, or -1
+	 */
+	private DoubleBond createDoubleBond(SVGLine lineI, SVGLine lineJ, double length1, double length2, int indexI) {
+		DoubleBond doubleBond = null;
+		double longer = (length1 > length2 ? length1 : length2);
+		double shorter = (length1 > length2 ? length2 : length1);
 		if (shorter / longer > parameters.getMinimumLengthRatio()) {
-			if (lineI.isParallelOrAntiParallelTo(lineJ, new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS))) {
-				Double dist1 = lineI.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps; fix Euclid
-				SVGLine lineIAgain = (SVGLine) lineI.copy();
-				lineIAgain.setXY(lineI.getXY(1), 0);
-				lineIAgain.setXY(lineI.getXY(0), 1);
-				Double dist2 = lineIAgain.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps;
+			if (lineI.isParallelOrAntiParallelTo(lineJ, parallelThreshold)) {
+				Double dist1 = lineI.calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps; fix Euclid
+				Double dist2 = (indexI >= 0 ? reverse(indexI) : reverse(lineI)).calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps;
 				LOG.trace(dist1 + " " + dist2);
 				if (dist1 < parameters.getMaximumAbsoluteSeparation() && dist2 < parameters.getMaximumAbsoluteSeparation() && dist1 < longer * parameters.getMaximumRelativeSeparation() && dist1 > longer * parameters.getMinimumRelativeSeparation() && dist2 < longer * parameters.getMaximumRelativeSeparation() && dist2 > longer * parameters.getMinimumRelativeSeparation()) {
 					double reductionLambdaFirstPoint = 0.5 - parameters.getShrinkFactorForOverlapCheck() / 2;
 					double reductionLambdaSecontPoint = 0.5 + parameters.getShrinkFactorForOverlapCheck() / 2;
-					SVGLine lineI2 = new SVGLine(lineI.getEuclidLine().createPointOnLine(reductionLambdaFirstPoint * length1), lineI.getEuclidLine().createPointOnLine(reductionLambdaSecontPoint * length1));
-					SVGLine lineJ2 = new SVGLine(lineJ.getEuclidLine().createPointOnLine(reductionLambdaFirstPoint * length2), lineJ.getEuclidLine().createPointOnLine(reductionLambdaSecontPoint * length2));
+					SVGLine lineI2 = shrink(lineI, length1, reductionLambdaFirstPoint, reductionLambdaSecontPoint, shrunkLine1);
+					SVGLine lineJ2 = shrink(lineJ, length2, reductionLambdaFirstPoint, reductionLambdaSecontPoint, shrunkLine2);
 					if (lineI2.overlapsWithLine(lineJ2, parameters.getLineOverlapEpsilon()) || lineJ2.overlapsWithLine(lineI2, parameters.getLineOverlapEpsilon())) {
 						doubleBond = new DoubleBond(parameters, lineI, lineJ);
 					}
@@ -73,34 +94,38 @@ public class DoubleBondManager {
 	}
 	
 	public TripleBond createTripleBond(DoubleBond doubleBond, SVGLine line) {
+		return createTripleBond(doubleBond, getLength(doubleBond.getLine(0)), getLength(doubleBond.getLine(1)), line, getLength(line), indexOf(line));
+	}
+
+	/**
+	 * @param length1 of the first line of the double bond
+	 * @param length2 of the second line of the double bond
+	 * @param index position of line in the geometry, or -1
+	 */
+	private TripleBond createTripleBond(DoubleBond doubleBond, double length1, double length2, SVGLine line, double length3, int index) {
 		TripleBond tripleBond = null;
 		SVGLine lineI = doubleBond.getLine(0);
 		SVGLine lineJ = doubleBond.getLine(1);
-		Double length1 = lineI.getXY(0).getDistance(lineI.getXY(1));//TODO getLength();
-		Double length2 = lineJ.getXY(0).getDistance(lineJ.getXY(1));//TODO getLength();
-		Double length3 = line.getXY(0).getDistance(line.getXY(1));//TODO getLength();
-		Double longest = (length1 > length2 ? (length1 > length3 ? length1 : length3) : (length2 > length3 ? length2 : length3));
-		Double shortest = (length1 > length2 ? (length2 > length3 ? length3 : length2) : (length1 > length3 ? length3 : length1));
+		double longest = (length1 > length2 ? (length1 > length3 ? length1 : length3) : (length2 > length3 ? length2 : length3));
+		double shortest = (length1 > length2 ? (length2 > length3 ? length3 : length2) : (length1 > length3 ? length3 : length1));
 		if (shortest / longest > parameters.getMinimumLengthRatio()) {
-			boolean check1 = line.isParallelOrAntiParallelTo(lineI, new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS));
-			boolean check2 = line.isParallelOrAntiParallelTo(lineJ, new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS));
+			boolean check1 = line.isParallelOrAntiParallelTo(lineI, parallelThreshold);
+			boolean check2 = line.isParallelOrAntiParallelTo(lineJ, parallelThreshold);
 			if (check1 && check2) {
-				Double dist1 = line.calculateUnsignedDistanceBetweenLines(lineI, new Angle(360, Units.DEGREES));//TODO angleEps;
-				Double dist2 = line.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps;
-				SVGLine lineAgain = (SVGLine) line.copy();
-				lineAgain.setXY(line.getXY(1), 0);
-				lineAgain.setXY(line.getXY(0), 1);
-				Double dist3 = lineAgain.calculateUnsignedDistanceBetweenLines(lineI, new Angle(360, Units.DEGREES));//TODO angleEps;
-				Double dist4 = lineAgain.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps;
+				Double dist1 = line.calculateUnsignedDistanceBetweenLines(lineI, anyAngle);//TODO angleEps;
+				Double dist2 = line.calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps;
+				SVGLine lineAgain = (index >= 0 ? reverse(index) : reverse(line));
+				Double dist3 = lineAgain.calculateUnsignedDistanceBetweenLines(lineI, anyAngle);//TODO angleEps;
+				Double dist4 = lineAgain.calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps;
 				LOG.trace(dist1 + " " + dist2 + " " + dist3 + " " + dist4);
 				boolean secondCheck1 = dist1 < parameters.getMaximumAbsoluteSeparation() && dist3 < parameters.getMaximumAbsoluteSeparation() && dist1 < longest * parameters.getMaximumRelativeSeparation() && dist1 > longest * parameters.getMinimumRelativeSeparation() && dist3 < longest * parameters.getMaximumRelativeSeparation() && dist3 > longest * parameters.getMinimumRelativeSeparation();
 				boolean secondCheck2 = dist2 < parameters.getMaximumAbsoluteSeparation() && dist4 < parameters.getMaximumAbsoluteSeparation() && dist2 < longest * parameters.getMaximumRelativeSeparation() && dist2 > longest * parameters.getMinimumRelativeSeparation() && dist4 < longest * parameters.getMaximumRelativeSeparation() && dist4 > longest * parameters.getMinimumRelativeSeparation();
 				if (secondCheck1 || secondCheck2) {
 					double reductionLambdaFirstPoint = 0.5 - parameters.getShrinkFactorForOverlapCheck() / 2;
 					double reductionLambaSecondPoint = 0.5 + parameters.getShrinkFactorForOverlapCheck() / 2;
-					SVGLine lineI2 = new SVGLine(lineI.getEuclidLine().createPointOnLine(reductionLambdaFirstPoint * length1), lineI.getEuclidLine().createPointOnLine(reductionLambaSecondPoint * length1));
-					SVGLine lineJ2 = new SVGLine(lineJ.getEuclidLine().createPointOnLine(reductionLambdaFirstPoint * length2), lineJ.getEuclidLine().createPointOnLine(reductionLambaSecondPoint * length2));
-					SVGLine line2 = new SVGLine(line.getEuclidLine().createPointOnLine(reductionLambdaFirstPoint * length3), line.getEuclidLine().createPointOnLine(reductionLambaSecondPoint * length3));
+					SVGLine lineI2 = shrink(lineI, length1, reductionLambdaFirstPoint, reductionLambaSecondPoint, shrunkLine1);
+					SVGLine lineJ2 = shrink(lineJ, length2, reductionLambdaFirstPoint, reductionLambaSecondPoint, shrunkLine2);
+					SVGLine line2 = shrink(line, length3, reductionLambdaFirstPoint, reductionLambaSecondPoint, shrunkLine3);
 					boolean thirdCheck1 = line2.overlapsWithLine(lineI2, parameters.getLineOverlapEpsilon()) || lineI2.overlapsWithLine(line2, parameters.getLineOverlapEpsilon());
 					boolean thirdCheck2 = line2.overlapsWithLine(lineJ2, parameters.getLineOverlapEpsilon()) || lineJ2.overlapsWithLine(line2, parameters.getLineOverlapEpsilon());
 					if (thirdCheck1 || thirdCheck2) {
@@ -113,20 +138,25 @@ public class DoubleBondManager {
 	}
 	
 	public TripleBond createTripleBondWithCut(DoubleBond doubleBond, SVGLine line) {
+		return createTripleBondWithCut(doubleBond, getLength(doubleBond.getLine(0)), line, indexOf(line));
+	}
+
+	/**
+	 * @param length of the first line of the double bond
+	 * @param index position of line in the geometry, or -1
+	 */
+	private TripleBond createTripleBondWithCut(DoubleBond doubleBond, double length, SVGLine line, int index) {
 		TripleBond tripleBond = null;
 		SVGLine lineI = doubleBond.getLine(0);
 		SVGLine lineJ = doubleBond.getLine(1);
-		Double length = lineI.getXY(0).getDistance(lineI.getXY(1));//TODO getLength();
-		boolean check1 = line.isParallelOrAntiParallelTo(lineI, new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS));
-		boolean check2 = line.isParallelOrAntiParallelTo(lineJ, new Angle(parameters.getParallelThresholdInRadians(), Units.RADIANS));
+		boolean check1 = line.isParallelOrAntiParallelTo(lineI, parallelThreshold);
+		boolean check2 = line.isParallelOrAntiParallelTo(lineJ, parallelThreshold);
 		if (check1 && check2) {
-			Double dist1 = line.calculateUnsignedDistanceBetweenLines(lineI, new Angle(360, Units.DEGREES));//TODO angleEps;
-			Double dist2 = line.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps;
-			SVGLine lineAgain = (SVGLine) line.copy();
-			lineAgain.setXY(line.getXY(1), 0);
-			lineAgain.setXY(line.getXY(0), 1);
-			Double dist3 = lineAgain.calculateUnsignedDistanceBetweenLines(lineI, new Angle(360, Units.DEGREES));//TODO angleEps;
-			Double dist4 = lineAgain.calculateUnsignedDistanceBetweenLines(lineJ, new Angle(360, Units.DEGREES));//TODO angleEps;
+			Double dist1 = line.calculateUnsignedDistanceBetweenLines(lineI, anyAngle);//TODO angleEps;
+			Double dist2 = line.calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps;
+			SVGLine lineAgain = (index >= 0 ? reverse(index) : reverse(line));
+			Double dist3 = lineAgain.calculateUnsignedDistanceBetweenLines(lineI, anyAngle);//TODO angleEps;
+			Double dist4 = lineAgain.calculateUnsignedDistanceBetweenLines(lineJ, anyAngle);//TODO angleEps;
 			LOG.trace(dist1 + " " + dist2 + " " + dist3 + " " + dist4);
 			boolean secondCheck1 = dist1 < parameters.getMaximumAbsoluteSeparation() / 2 && dist3 < parameters.getMaximumAbsoluteSeparation() / 2 && dist1 < length * parameters.getMaximumRelativeSeparation() && dist1 > length * parameters.getMinimumRelativeSeparation() && dist3 < length * parameters.getMaximumRelativeSeparation() && dist3 > length * parameters.getMinimumRelativeSeparation();
 			boolean secondCheck2 = dist2 < parameters.getMaximumAbsoluteSeparation() / 2 && dist4 < parameters.getMaximumAbsoluteSeparation() / 2 && dist2 < length * parameters.getMaximumRelativeSeparation() && dist2 > length * parameters.getMinimumRelativeSeparation() && dist4 < length * parameters.getMaximumRelativeSeparation() && dist4 > length * parameters.getMinimumRelativeSeparation();
@@ -163,6 +193,9 @@ public class DoubleBondManager {
 					double distance2 = line.getXY(1).getDistance(intersection2);
 					line.setXY((distance1 > distance2 ? line.getXY(0) : line.getXY(1)), 0);
 					line.setXY(intersection1, 1);
+					if (index >= 0) {
+						geometry.update(index);
+					}
 				}
 			}
 		}
@@ -170,23 +203,35 @@ public class DoubleBondManager {
 	}
 	
 	public void createBondLists(List<SVGLine> lineList, long timeout) throws TimeoutException {
-		createDoubleBondListWithoutReusingLines(lineList, timeout);
-		createTripleBondListWithoutReusingLines(lineList, timeout);
+		geometry = new LineGeometry(lineList);
+		try {
+			createDoubleBondListWithoutReusingLines(lineList, timeout);
+			createTripleBondListWithoutReusingLines(lineList, timeout);
+		} finally {
+			geometry = null;
+		}
 	}
 	
 	private void createDoubleBondListWithoutReusingLines(List<SVGLine> lineList, long timeout) throws TimeoutException {
 		long startTime = System.currentTimeMillis();
 		ensureBondListsAndUsedLineSet();
 		if (doubleBondList.size() == 0) {
+			ParallelLineIndex lineIndex = new ParallelLineIndex(geometry, parameters.getParallelThresholdInRadians(), parameters.getMaximumAbsoluteSeparation());
 			outer: for (int i = 0; i < lineList.size() - 1; i++) {
 				SVGLine lineI = lineList.get(i);
-				for (int j = i + 1; j < lineList.size(); j++) {
+				if (usedLineSet.contains(lineI)) {
+					continue;
+				}
+				double lengthI = lineIndex.getLength(i);
+				double longestPartner = (parameters.getMinimumLengthRatio() > 0 ? Math.min(lineIndex.getMaximumLength(), lengthI / parameters.getMinimumLengthRatio()) : lineIndex.getMaximumLength());
+				double reach = parameters.getMaximumAbsoluteSeparation() + lengthI + longestPartner;
+				for (int j : lineIndex.getIndicesOfNearbyParallelLines(i, reach, i)) {
 					if (System.currentTimeMillis() - startTime >= timeout) {
 						throw new TimeoutException("Took too long to look for double bonds");
 					}
 					SVGLine lineJ = lineList.get(j);
 					if (!usedLineSet.contains(lineI) && !usedLineSet.contains(lineJ)) {
-						DoubleBond doubleBond = createDoubleBond(lineI, lineJ);
+						DoubleBond doubleBond = createDoubleBond(lineI, lineJ, lengthI, geometry.getLength(j), i);
 						if (doubleBond != null) {
 							LOG.trace("Double bond " + lineI.getId() + " " + lineJ.getId());
 		 					doubleBond.setID("doublebond." + lineI.getId() + "." + lineJ.getId());
@@ -201,19 +246,32 @@ public class DoubleBondManager {
 		}
 	}
 	
+	/**
+	 * Lines which are cut by createTripleBondWithCut() are shortened in place but stay on the same infinite line,
+	 * so the generous reach still finds them from their original midpoints.
+	 */
 	private void createTripleBondListWithoutReusingLines(List<SVGLine> lineList, long timeout) throws TimeoutException {
 		long startTime = System.currentTimeMillis();
 		ensureBondListsAndUsedLineSet();
 		if (tripleBondList.size() == 0) {
+			ParallelLineIndex lineIndex = new ParallelLineIndex(geometry, parameters.getParallelThresholdInRadians(), parameters.getMaximumAbsoluteSeparation());
 			Iterator<DoubleBond> iterator = doubleBondList.iterator();
 			outer: for (DoubleBond doubleBond = (iterator.hasNext() ? (DoubleBond) iterator.next() : null); doubleBond != null ; doubleBond = (iterator.hasNext() ? (DoubleBond) iterator.next() : null)) {
-				for (int i = 0; i < lineList.size(); i++) {
+				SVGLine lineI = doubleBond.getLine(0);
+				SVGLine lineJ = doubleBond.getLine(1);
+				Real2 xy0 = getXY(lineI, 0);
+				Real2 xy1 = getXY(lineI, 1);
+				Real2 midPointI = xy0.plus(xy1).multiplyBy(0.5);
+				double lengthI = getLength(lineI);
+				double lengthJ = getLength(lineJ);
+				double reach = 2 * (parameters.getMaximumAbsoluteSeparation() + lengthI + lengthJ + lineIndex.getMaximumLength());
+				for (int i : lineIndex.getIndicesOfNearbyParallelLines(midPointI, xy1.subtract(xy0), reach, -1)) {
 					if (System.currentTimeMillis() - startTime >= timeout) {
 						throw new TimeoutException("Took too long to look for triple bonds");
 					}
 					SVGLine line = lineList.get(i);
 					if (!usedLineSet.contains(line)) {
-						TripleBond tripleBond = createTripleBond(doubleBond, line);
+						TripleBond tripleBond = createTripleBond(doubleBond, lengthI, lengthJ, line, geometry.getLength(i), i);
 						if (tripleBond != null) {
 							LOG.trace("Triple bond " + doubleBond.getID() + " " + line.getId());
 							tripleBond.setID("triplebond." + doubleBond.getID() + "." + line.getId());
@@ -222,7 +280,7 @@ public class DoubleBondManager {
 		 					usedLineSet.add(line);
 		 					continue outer;
 						} else {
-							tripleBond = createTripleBondWithCut(doubleBond, line);
+							tripleBond = createTripleBondWithCut(doubleBond, lengthI, line, i);
 							if (tripleBond != null) {
 								LOG.trace("Triple bond " + doubleBond.getID() + " " + line.getId());
 								tripleBond.setID("triplebond." + doubleBond.getID() + "." + line.getId());
@@ -237,6 +295,70 @@ public class DoubleBondManager {
 		}
 	}
 
+	/**
+	 * @param line
+	 * @return length from the geometry of the lines being searched, if the line is one of them
+	 */
+	private double getLength(SVGLine line) {
+		int index = indexOf(line);
+		return (index >= 0 ? geometry.getLength(index) : line.getXY(0).getDistance(line.getXY(1)));//TODO getLength(); fix Euclid
+	}
+
+	private Real2 getXY(SVGLine line, int end) {
+		int index = indexOf(line);
+		return (index >= 0 ? geometry.getXY(index, end) : line.getXY(end));
+	}
+
+	/**
+	 * Used only where the callers have no position, i.e. by the public methods and for the lines of
+	 * double bonds; the loops pass the positions they already have.
+	 *
+	 * @param line
+	 * @return position of the line in the geometry, or -1
+	 */
+	private int indexOf(SVGLine line) {
+		return (geometry == null ? -1 : geometry.indexOf(line));
+	}
+
+	/**
+	 * @param line
+	 * @return the line with its ends swapped; reused by the next call
+	 */
+	private SVGLine reverse(SVGLine line) {
+		reversedLine.setXY(getXY(line, 1), 0);
+		reversedLine.setXY(getXY(line, 0), 1);
+		return reversedLine;
+	}
+
+	/**
+	 * @param i position of the line in the geometry
+	 * @return the line with its ends swapped; reused by the next call
+	 */
+	private SVGLine reverse(int i) {
+		reversedLine.setXY(geometry.getXY(i, 1), 0);
+		reversedLine.setXY(geometry.getXY(i, 0), 1);
+		return reversedLine;
+	}
+
+	/**
+	 * @param line
+	 * @param length of the line
+	 * @param lambda1 fraction of the length at which the shrunk line starts
+	 * @param lambda2 fraction of the length at which the shrunk line ends
+	 * @param shrunkLine scratch line to hold the result
+	 * @return shrunkLine
+	 */
+	private SVGLine shrink(SVGLine line, double length, double lambda1, double lambda2, SVGLine shrunkLine) {
+		Line2 euclidLine = line.getEuclidLine();
+		shrunkLine.setXY(euclidLine.createPointOnLine(lambda1 * length), 0);
+		shrunkLine.setXY(euclidLine.createPointOnLine(lambda2 * length), 1);
+		return shrunkLine;
+	}
+
+	private static SVGLine createScratchLine() {
+		return new SVGLine(new Real2(0.0, 0.0), new Real2(0.0, 0.0));
+	}
+
 	public List<DoubleBond> getDoubleBondList() {
 		return doubleBondList;
 	}
@@ -254,4 +376,4 @@ public class DoubleBondManager {
  		return lineList;
  	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
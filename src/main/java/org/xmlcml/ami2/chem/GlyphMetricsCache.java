@@ -0,0 +1,123 @@
+package org.xmlcml.ami2.chem;
+
+import java.awt.font.GlyphVector;
+import java.awt.geom.Point2D;
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.xom.Element;
+import nu.xom.ParentNode;
+
+import org.xmlcml.graphics.svg.SVGTSpan;
+import org.xmlcml.graphics.svg.SVGText;
+
+/**
+ * Glyph positions and widths of texts, laid out once for each font and string.
+ * <p>
+ * Used by ChemistryBuilder.splitMultiCharacterTexts(), where the same strings ("O", "OH", "CH3", ...)
+ * in the same font occur many times. The key holds the class of the element, its text and the font
+ * attributes (and any transform) of the element and its ancestors, so any two elements with the same
+ * key have identical GlyphVectors. The positions are those of the whole string (not sums of
+ * per-character advances), so kerning is kept and the split positions are exactly as before.
+ * <p>
+ * One cache is made for each run; it is not thread-safe.
+ *
+ * @author pm286
+ */
+class GlyphMetricsCache {
+
+	private final static String[] FONT_ATTRIBUTES = {"font-family", "font-size", "font-weight", "font-style", "style", "transform"};
+
+	/**
+	 * Layout of a string: the logical width and the position of each glyph, including the position
+	 * after the last glyph.
+	 */
+	static class GlyphMetrics {
+
+		private double width;
+		private double[] x;
+		private double[] y;
+
+		private GlyphMetrics(GlyphVector glyphVector) {
+			width = glyphVector.getLogicalBounds().getWidth();
+			int n = glyphVector.getNumGlyphs();
+			x = new double[n + 1];
+			y = new double[n + 1];
+			for (int i = 0; i <= n; i++) {
+				Point2D position = glyphVector.getGlyphPosition(i);
+				x[i] = position.getX();
+				y[i] = position.getY();
+			}
+		}
+
+		double getWidth() {
+			return width;
+		}
+
+		int getNumberOfGlyphs() {
+			return x.length - 1;
+		}
+
+		/**
+		 * @param i from 0 to the number of glyphs (inclusive)
+		 * @return x of the glyph
+		 * @throws IndexOutOfBoundsException as for GlyphVector.getGlyphPosition()
+		 */
+		double getX(int i) {
+			return x[i];
+		}
+
+		/**
+		 * @param i from 0 to the number of glyphs (inclusive)
+		 * @return y of the glyph
+		 * @throws IndexOutOfBoundsException as for GlyphVector.getGlyphPosition()
+		 */
+		double getY(int i) {
+			return y[i];
+		}
+	}
+
+	private Map<String, GlyphMetrics> metricsByKey = new HashMap<String, GlyphMetrics>();
+
+	GlyphMetrics getMetrics(SVGText text) {
+		String key = createKey(text, text.getText());
+		GlyphMetrics metrics = metricsByKey.get(key);
+		if (metrics == null) {
+			metrics = new GlyphMetrics(text.getGlyphVector());
+			metricsByKey.put(key, metrics);
+		}
+		return metrics;
+	}
+
+	GlyphMetrics getMetrics(SVGTSpan span) {
+		String key = createKey(span, span.getText());
+		GlyphMetrics metrics = metricsByKey.get(key);
+		if (metrics == null) {
+			metrics = new GlyphMetrics(span.getGlyphVector());
+			metricsByKey.put(key, metrics);
+		}
+		return metrics;
+	}
+
+	int size() {
+		return metricsByKey.size();
+	}
+
+	private static String createKey(Element element, String text) {
+		StringBuilder sb = new StringBuilder(element.getClass().getName());
+		sb.append('\u0000');
+		sb.append(text);
+		for (ParentNode node = element; node instanceof Element; node = node.getParent()) {
+			sb.append('\u0000');
+			for (String name : FONT_ATTRIBUTES) {
+				String value = ((Element) node).getAttributeValue(name);
+				sb.append('\u0001');
+				if (value != null) {
+					sb.append(value);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+}
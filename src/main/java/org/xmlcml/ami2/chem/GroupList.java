@@ -1,35 +1,83 @@
 package org.xmlcml.ami2.chem;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import nu.xom.Elements;
 
+import org.apache.log4j.Logger;
 import org.xmlcml.cml.base.CMLBuilder;
 import org.xmlcml.cml.element.CMLList;
 import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.molutil.ChemicalElement;
 
+/**
+ * Immutable registry of the groups (abbreviations such as OMe or Ph) that can be joined onto molecules.
+ * <p>
+ * Groups are indexed by title. Names are looked up exactly first, then through the aliases in the
+ * groups dictionary (comma-separated synonyms on each line), then ignoring case if that is unambiguous.
+ * Case is only ignored for names of three or more characters which are
+ * not element symbols, as in shorter names it tells elements, formulae and groups apart (Co and CO, No
+ * and NO, Ph and PH). Where titles are duplicated the first group wins.
+ * <p>
+ * The registry is built completely in the constructor and never changes, so one instance can be shared
+ * between threads. Groups are handed out as {@link GroupTemplate}s which create a fresh molecule for
+ * each use.
+ *
+ * @author pm286
+ */
 public class GroupList {
 
-	private List<CMLMolecule> moleculeList;
+	private final static Logger LOG = Logger.getLogger(GroupList.class);
+
+	private final static int MINIMUM_LENGTH_TO_IGNORE_CASE = 3;
+
+	private final Map<String, GroupTemplate> templatesByName;
+	private final Map<String, GroupTemplate> templatesByLowerCaseName;
 	
 	public GroupList(InputStream is) {
+		this(is, null);
+	}
+
+	/**
+	 * @param is groups as a CML list of molecules with titles
+	 * @param dictionary lines of comma-separated synonyms, a tab and (ignored) SMILES; may be null
+	 */
+	public GroupList(InputStream is, InputStream dictionary) {
+		Map<String, GroupTemplate> byName = new LinkedHashMap<String, GroupTemplate>();
 		try {
-			moleculeList = new ArrayList<CMLMolecule>();
-			buildList(is);
+			buildList(is, byName);
+			if (dictionary != null) {
+				addAliases(dictionary, byName);
+			}
 		} catch (Exception e) {
 			throw new RuntimeException("Cannot read molecule groups. " + e.getMessage(), e);
 		}
+		templatesByName = Collections.unmodifiableMap(byName);
+		templatesByLowerCaseName = Collections.unmodifiableMap(createLowerCaseIndex(byName));
 	}
 
-	private void buildList(InputStream is) throws Exception {
+	private void buildList(InputStream is, Map<String, GroupTemplate> byName) throws Exception {
 		try {
 			CMLList list = (CMLList) new CMLBuilder().build(is).getRootElement();
 			Elements childElements = list.getChildElements();
 			for (int i = 0; i < childElements.size(); i++) {
 				CMLMolecule molecule = (CMLMolecule) childElements.get(i);
-				moleculeList.add(molecule);
+				String title = molecule.getTitle();
+				if (title != null && !byName.containsKey(title)) {
+					byName.put(title, new GroupTemplate(molecule));
+				}
 			}
 		} catch (RuntimeException e) {
 			System.out.println(e.getMessage());
@@ -37,15 +85,78 @@ public class GroupList {
 		}
 	}
 
-	public CMLMolecule get(String name) {
-		if (name != null) {
-			for (CMLMolecule molecule : moleculeList) {
-				if (name.equals(molecule.getTitle())) {
-					return molecule;
+	private void addAliases(InputStream dictionary, Map<String, GroupTemplate> byName) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(dictionary, "UTF-8"));
+		Map<String, GroupTemplate> aliases = new LinkedHashMap<String, GroupTemplate>();
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			String[] names = line.split("\t")[0].split(",");
+			GroupTemplate template = null;
+			for (String name : names) {
+				template = byName.get(name.trim());
+				if (template != null) {
+					break;
+				}
+			}
+			if (template == null) {
+				LOG.trace("No group for any of: " + line);
+				continue;
+			}
+			for (String name : names) {
+				name = name.trim();
+				if (name.length() > 0 && !byName.containsKey(name) && !aliases.containsKey(name)) {
+					aliases.put(name, template);
 				}
 			}
 		}
-		return null;
+		byName.putAll(aliases);
+	}
+
+	private static Map<String, GroupTemplate> createLowerCaseIndex(Map<String, GroupTemplate> byName) {
+		Map<String, GroupTemplate> byLowerCaseName = new HashMap<String, GroupTemplate>();
+		Set<String> ambiguous = new HashSet<String>();
+		for (Map.Entry<String, GroupTemplate> entry : byName.entrySet()) {
+			String key = entry.getKey().toLowerCase(Locale.ENGLISH);
+			GroupTemplate existing = byLowerCaseName.get(key);
+			if (existing == null) {
+				byLowerCaseName.put(key, entry.getValue());
+			} else if (existing != entry.getValue()) {
+				ambiguous.add(key);
+			}
+		}
+		byLowerCaseName.keySet().removeAll(ambiguous);
+		return byLowerCaseName;
+	}
+
+	/**
+	 * @param name title, alias or (if unambiguous and long enough) either of these in another case
+	 * @return template or null if there is no such group
+	 */
+	public GroupTemplate getTemplate(String name) {
+		if (name == null) {
+			return null;
+		}
+		GroupTemplate template = templatesByName.get(name);
+		if (template == null && name.length() >= MINIMUM_LENGTH_TO_IGNORE_CASE && ChemicalElement.getChemicalElement(name) == null) {
+			template = templatesByLowerCaseName.get(name.toLowerCase(Locale.ENGLISH));
+		}
+		return template;
+	}
+
+	/**
+	 * @param name title, alias or (if unambiguous and long enough) either of these in another case
+	 * @return new copy of the group or null if there is no such group
+	 */
+	public CMLMolecule get(String name) {
+		GroupTemplate template = getTemplate(name);
+		return (template == null ? null : template.newInstance());
+	}
+
+	/**
+	 * @return the titles and aliases
+	 */
+	public List<String> getNames() {
+		return new ArrayList<String>(templatesByName.keySet());
 	}
 	
 }
\ No newline at end of file
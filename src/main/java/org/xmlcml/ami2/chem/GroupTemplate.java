@@ -0,0 +1,139 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nu.xom.Attribute;
+
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLLabel;
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * Pre-built group from the GroupList.
+ * <p>
+ * Holds what groups.cml defines for a group as arrays: the ids, element types, formal charges and join
+ * labels of its atoms and the atoms and orders of its bonds. New instances are built straight from these
+ * rather than by copying a molecule, and the joinable atoms (those with a join label) are found by position
+ * rather than by an XPath search. The template itself is never modified after construction.
+ *
+ * @author pm286
+ */
+public class GroupTemplate {
+
+	private final String title;
+	private final String id;
+	private final String[] atomIds;
+	private final String[] elementTypes;
+	private final Integer[] formalCharges;
+	private final String[] joinLabels;
+	private final int[] bondAtoms;
+	private final String[] bondOrders;
+	private final int[] joinableAtomPositions;
+
+	GroupTemplate(CMLMolecule group) {
+		title = group.getTitle();
+		id = group.getId();
+		List<CMLAtom> atoms = group.getAtoms();
+		int n = atoms.size();
+		atomIds = new String[n];
+		elementTypes = new String[n];
+		formalCharges = new Integer[n];
+		joinLabels = new String[n];
+		Map<String, Integer> positionById = new HashMap<String, Integer>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			CMLAtom atom = atoms.get(i);
+			atomIds[i] = atom.getId();
+			elementTypes[i] = atom.getElementType();
+			formalCharges[i] = (atom.getFormalChargeAttribute() == null ? null : atom.getFormalCharge());
+			positionById.put(atom.getId(), i);
+			for (CMLLabel label : atom.getLabelElements()) {
+				if (MoleculeBuilder.JOIN.equals(label.getAttributeValue("name"))) {
+					joinLabels[i] = label.getValue().trim();
+					positions.add(i);
+					break;
+				}
+			}
+		}
+		List<CMLBond> bonds = group.getBonds();
+		bondAtoms = new int[2 * bonds.size()];
+		bondOrders = new String[bonds.size()];
+		for (int i = 0; i < bonds.size(); i++) {
+			String[] refs = bonds.get(i).getAtomRefs2();
+			Integer first = positionById.get(refs[0]);
+			Integer second = positionById.get(refs[1]);
+			if (first == null || second == null) {
+				throw new RuntimeException("Bond to unknown atom in group " + title + ": " + refs[0] + " " + refs[1]);
+			}
+			bondAtoms[2 * i] = first;
+			bondAtoms[2 * i + 1] = second;
+			bondOrders[i] = bonds.get(i).getOrder();
+		}
+		joinableAtomPositions = new int[positions.size()];
+		for (int i = 0; i < joinableAtomPositions.length; i++) {
+			joinableAtomPositions[i] = positions.get(i);
+		}
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return a new molecule which the caller may modify
+	 */
+	public CMLMolecule newInstance() {
+		CMLMolecule molecule = new CMLMolecule();
+		if (id != null) {
+			molecule.setId(id);
+		}
+		if (title != null) {
+			molecule.setTitle(title);
+		}
+		CMLAtom[] atoms = new CMLAtom[atomIds.length];
+		for (int i = 0; i < atoms.length; i++) {
+			atoms[i] = new CMLAtom(atomIds[i]);
+			atoms[i].setElementType(elementTypes[i]);
+			if (formalCharges[i] != null) {
+				atoms[i].setFormalCharge(formalCharges[i]);
+			}
+			if (joinLabels[i] != null) {
+				CMLLabel label = new CMLLabel();
+				label.addAttribute(new Attribute("name", MoleculeBuilder.JOIN));
+				label.setStringContent(joinLabels[i]);
+				atoms[i].addLabel(label);
+			}
+			molecule.addAtom(atoms[i]);
+		}
+		for (int i = 0; i < bondOrders.length; i++) {
+			CMLBond bond = new CMLBond(atoms[bondAtoms[2 * i]], atoms[bondAtoms[2 * i + 1]]);
+			if (bondOrders[i] != null) {
+				bond.setOrder(bondOrders[i]);
+			}
+			molecule.addBond(bond);
+		}
+		return molecule;
+	}
+
+	/**
+	 * @param instance a molecule created by {@link #newInstance()}
+	 * @return the atoms of the instance which carry a join label
+	 */
+	public List<CMLAtom> getJoinableAtoms(CMLMolecule instance) {
+		List<CMLAtom> atoms = instance.getAtoms();
+		List<CMLAtom> joinableAtoms = new ArrayList<CMLAtom>(joinableAtomPositions.length);
+		for (int position : joinableAtomPositions) {
+			joinableAtoms.add(atoms.get(position));
+		}
+		return joinableAtoms;
+	}
+
+	public int getJoinableAtomCount() {
+		return joinableAtomPositions.length;
+	}
+	
+}
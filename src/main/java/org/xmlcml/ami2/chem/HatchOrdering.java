@@ -0,0 +1,134 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.xmlcml.euclid.Real;
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+/**
+ * Decides whether a set of short lines is ordered consistently enough to be the hatches of a HatchedBond.
+ * <p>
+ * The lines are ordered by their first end points, their second end points and their midpoints, each sorted
+ * by x (ties within the threshold broken by y) and by y (ties broken by x). A key is ordered if the two
+ * sorts agree or are reverses of each other. Two of the three keys must be ordered.
+ * <p>
+ * The end-point and midpoint coordinates are computed once and the sorts are done on indices into them.
+ * The sorts start from the same orders as the original list-based comparisons so the decisions and the
+ * line order handed to the HatchedBond are the same.
+ *
+ * @author pm286
+ */
+class HatchOrdering {
+
+	private SVGLine[] lines;
+	private double threshold;
+
+	private double[] firstByXX;
+	private double[] firstByXY;
+	private double[] firstByYX;
+	private double[] firstByYY;
+	private double[] secondByXX;
+	private double[] secondByXY;
+	private double[] secondByYX;
+	private double[] secondByYY;
+	private double[] midX;
+	private double[] midY;
+
+	HatchOrdering(Collection<SVGLine> lineSet, double threshold) {
+		this.threshold = threshold;
+		lines = lineSet.toArray(new SVGLine[lineSet.size()]);
+		int n = lines.length;
+		firstByXX = new double[n];
+		firstByXY = new double[n];
+		firstByYX = new double[n];
+		firstByYY = new double[n];
+		secondByXX = new double[n];
+		secondByXY = new double[n];
+		secondByYX = new double[n];
+		secondByYY = new double[n];
+		midX = new double[n];
+		midY = new double[n];
+		for (int i = 0; i < n; i++) {
+			Real2 xy0 = lines[i].getXY(0);
+			Real2 xy1 = lines[i].getXY(1);
+			Real2 firstByX = (xy0.getX() < xy1.getX() ? xy0 : xy1);
+			Real2 firstByY = (xy0.getY() < xy1.getY() ? xy0 : xy1);
+			Real2 secondByX = (xy0.getX() >= xy1.getX() ? xy0 : xy1);
+			Real2 secondByY = (xy0.getY() >= xy1.getY() ? xy0 : xy1);
+			Real2 midPoint = lines[i].getMidPoint();
+			firstByXX[i] = firstByX.getX();
+			firstByXY[i] = firstByX.getY();
+			firstByYX[i] = firstByY.getX();
+			firstByYY[i] = firstByY.getY();
+			secondByXX[i] = secondByX.getX();
+			secondByXY[i] = secondByX.getY();
+			secondByYX[i] = secondByY.getX();
+			secondByYY[i] = secondByY.getY();
+			midX[i] = midPoint.getX();
+			midY[i] = midPoint.getY();
+		}
+	}
+
+	/**
+	 * @return the lines in the order for a HatchedBond or null if they are not ordered consistently
+	 */
+	List<SVGLine> getOrderedLines() {
+		Integer[] setOrder = new Integer[lines.length];
+		for (int i = 0; i < setOrder.length; i++) {
+			setOrder[i] = i;
+		}
+		Integer[] firstEndPointsByX = sort(setOrder, firstByXX, firstByXY);
+		Integer[] firstEndPointsByY = sort(setOrder, firstByYY, firstByYX);
+		boolean firstEndPointsOrdered = isSameOrReversed(firstEndPointsByX, firstEndPointsByY);
+		Integer[] secondEndPointsByX = sort(firstEndPointsByX, secondByXX, secondByXY);
+		Integer[] secondEndPointsByY = sort(firstEndPointsByX, secondByYY, secondByYX);
+		boolean secondEndPointsOrdered = isSameOrReversed(secondEndPointsByX, secondEndPointsByY);
+		if (firstEndPointsOrdered && secondEndPointsOrdered) {
+			return getLines(firstEndPointsByX);
+		}
+		if (!firstEndPointsOrdered && !secondEndPointsOrdered) {
+			return null;
+		}
+		Integer[] midPointsByX = sort(firstEndPointsByX, midX, midY);
+		Integer[] midPointsByY = sort(firstEndPointsByX, midY, midX);
+		if (!isSameOrReversed(midPointsByX, midPointsByY)) {
+			return null;
+		}
+		return getLines(firstEndPointsOrdered ? firstEndPointsByX : secondEndPointsByX);
+	}
+
+	private Integer[] sort(Integer[] startingOrder, final double[] primary, final double[] secondary) {
+		Integer[] order = startingOrder.clone();
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return (Real.isEqual(primary[i], primary[j], threshold) ? Double.compare(secondary[i], secondary[j]) : Double.compare(primary[i], primary[j]));
+			}
+		});
+		return order;
+	}
+
+	private static boolean isSameOrReversed(Integer[] order1, Integer[] order2) {
+		boolean same = true;
+		boolean reversed = true;
+		int n = order1.length;
+		for (int i = 0; i < n && (same || reversed); i++) {
+			same &= order1[i].equals(order2[i]);
+			reversed &= order1[n - 1 - i].equals(order2[i]);
+		}
+		return same || reversed;
+	}
+
+	private List<SVGLine> getLines(Integer[] order) {
+		List<SVGLine> orderedLines = new ArrayList<SVGLine>(order.length);
+		for (Integer i : order) {
+			orderedLines.add(lines[i]);
+		}
+		return orderedLines;
+	}
+
+}
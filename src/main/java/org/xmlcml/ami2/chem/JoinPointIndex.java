@@ -0,0 +1,115 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlcml.ami2.chem.Joinable.JoinPoint;
+import org.xmlcml.euclid.Real2;
+
+/**
+ * Uniform grid over the JoinPoints of a list of Joinables.
+ * <p>
+ * Used to find the Joinables which might overlap a given Joinable without testing every pair.
+ * The cell size is twice the largest JoinPoint radius so two JoinPoints can only be close
+ * (see {@link JoinPoint#isCloseTo(JoinPoint)}) if they are in the same or adjacent cells.
+ * <p>
+ * The candidates are a superset of the Joinables that actually overlap and are returned
+ * in the order of the original list so that callers can keep the order of their pairwise loops.
+ *
+ * @author pm286
+ */
+class JoinPointIndex {
+
+	/** allows for radii that are changed and restored while the index is in use */
+	private final static double REACH_TOLERANCE = 1.000001;
+
+	private List<? extends Joinable> joinables;
+	private Map<Long, List<Integer>> cells;
+	private double cellSize;
+	private double maximumRadius;
+
+	JoinPointIndex(List<? extends Joinable> joinables) {
+		this.joinables = joinables;
+		maximumRadius = 0;
+		for (Joinable joinable : joinables) {
+			for (JoinPoint joinPoint : joinable.getJoinPoints()) {
+				maximumRadius = Math.max(maximumRadius, joinPoint.getRadius());
+			}
+		}
+		cellSize = (maximumRadius > 0 ? 2 * maximumRadius : 1.0);
+		cells = new HashMap<Long, List<Integer>>();
+		for (int i = 0; i < joinables.size(); i++) {
+			for (JoinPoint joinPoint : joinables.get(i).getJoinPoints()) {
+				Real2 point = joinPoint.getPoint();
+				Long key = getKey(getCell(point.getX()), getCell(point.getY()));
+				List<Integer> cell = cells.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Integer>();
+					cells.put(key, cell);
+				}
+				if (cell.isEmpty() || cell.get(cell.size() - 1) != i) {
+					cell.add(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the Joinables with a JoinPoint that may be close to a JoinPoint of the given Joinable.
+	 *
+	 * @param joinable
+	 * @param fromIndex only Joinables after this position in the list are returned (-1 for all)
+	 * @return ascending positions in the list of the candidate Joinables
+	 */
+	List<Integer> getIndicesOfNearbyJoinables(Joinable joinable, int fromIndex) {
+		List<Integer> indices = new ArrayList<Integer>();
+		for (JoinPoint joinPoint : joinable.getJoinPoints()) {
+			Real2 point = joinPoint.getPoint();
+			double reach = (joinPoint.getRadius() + maximumRadius) * REACH_TOLERANCE;
+			int minX = getCell(point.getX() - reach);
+			int maxX = getCell(point.getX() + reach);
+			int minY = getCell(point.getY() - reach);
+			int maxY = getCell(point.getY() + reach);
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					List<Integer> cell = cells.get(getKey(x, y));
+					if (cell != null) {
+						for (Integer index : cell) {
+							if (index > fromIndex) {
+								indices.add(index);
+							}
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(indices);
+		List<Integer> uniqueIndices = new ArrayList<Integer>(indices.size());
+		for (Integer index : indices) {
+			if (uniqueIndices.isEmpty() || !uniqueIndices.get(uniqueIndices.size() - 1).equals(index)) {
+				uniqueIndices.add(index);
+			}
+		}
+		return uniqueIndices;
+	}
+
+	Joinable get(int index) {
+		return joinables.get(index);
+	}
+
+	private int getCell(double coordinate) {
+		double cell = Math.floor(coordinate / cellSize);
+		if (Double.isNaN(cell)) {
+			return 0;
+		}
+		return (int) Math.max(Integer.MIN_VALUE + 1, Math.min(Integer.MAX_VALUE - 1, cell));
+	}
+
+	private static Long getKey(int x, int y) {
+		return (((long) x) << 32) | (y & 0xffffffffL);
+	}
+
+}
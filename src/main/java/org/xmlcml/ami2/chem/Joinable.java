@@ -65,18 +65,48 @@ public abstract class Joinable {
 	}
 	
 	public Set<JoinPoint> overlapWith(Joinable other) {
+		List<JoinPoint> results = new ArrayList<JoinPoint>();
+		return (overlapWith(other, results) ? new LinkedHashSet<JoinPoint>(results) : null);
+	}
+	
+	/** 
+	 * Finds the JoinPoints of this and the other Joinable which are close to each other without allocating.
+	 * <p>
+	 * The points are put into the buffer in the order in which they are found, each once, as by {@link #overlapWith(Joinable)}.
+	 * 
+	 * @param other
+	 * @param buffer cleared and filled with the overlapping JoinPoints (left empty if there is no overlap)
+	 * @return true if the Joinables overlap (but not completely)
+	 */
+	public boolean overlapWith(Joinable other, List<JoinPoint> buffer) {
+		buffer.clear();
 		List<JoinPoint> pointsForThis = getJoinPoints();
 		List<JoinPoint> pointsForOther = other.getJoinPoints();
-		Set<JoinPoint> results = new LinkedHashSet<JoinPoint>();
-		for (JoinPoint p : pointsForThis) {
-			for (JoinPoint q : pointsForOther) {
+		for (int i = 0; i < pointsForThis.size(); i++) {
+			JoinPoint p = pointsForThis.get(i);
+			for (int j = 0; j < pointsForOther.size(); j++) {
+				JoinPoint q = pointsForOther.get(j);
 				if (p.isCloseTo(q)) {
-					results.add(p);
-					results.add(q);
+					addIfAbsent(buffer, p);
+					addIfAbsent(buffer, q);
 				}
 			}
 		}
-		return (results.size() > 0 && (results.size() < 3 || (results.size() < pointsForOther.size() + pointsForThis.size())) ? results : null);
+		int size = buffer.size();
+		if (size > 0 && (size < 3 || size < pointsForOther.size() + pointsForThis.size())) {
+			return true;
+		}
+		buffer.clear();
+		return false;
+	}
+	
+	private static void addIfAbsent(List<JoinPoint> buffer, JoinPoint point) {
+		for (int i = 0; i < buffer.size(); i++) {
+			if (buffer.get(i) == point) {
+				return;
+			}
+		}
+		buffer.add(point);
 	}
 	
 	static boolean doTextsJoin(Joinable joinableI, Joinable joinableJ, ChemistryBuilderParameters parameters) {
@@ -125,8 +155,17 @@ public abstract class Joinable {
 			this.radius = radius;
 		}
 		
+		/**
+		 * Compares squared distances so no square root is taken.
+		 * 
+		 * @param p
+		 * @return true if the points are nearer than the sum of their radii
+		 */
 		boolean isCloseTo(JoinPoint p) {
-			return (p.getRadius() + getRadius() > getDistanceTo(p));
+			double reach = p.radius + radius;
+			double dx = point.getX() - p.point.getX();
+			double dy = point.getY() - p.point.getY();
+			return (reach > 0 && reach * reach > dx * dx + dy * dy);
 		}
 
 		public double getDistanceTo(JoinPoint otherPoint) {
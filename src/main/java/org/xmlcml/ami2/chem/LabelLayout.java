@@ -0,0 +1,120 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.xmlcml.euclid.Real2Range;
+import org.xmlcml.euclid.RealRange;
+
+/**
+ * Boxes, font sizes and neighbours of the labels being stitched together by MoleculeCreator.
+ * <p>
+ * The box of each label (without superscripts and subscripts) and the font size of its first Joinable are
+ * taken once. Neighbours are found by sweeping over the labels sorted by the start of their location in x
+ * (for labels on one line) or y (for lines of one label), so only labels whose locations are within the
+ * given margin in that direction are returned. Labels with invalid boxes have no neighbours.
+ * <p>
+ * Neighbours are in the order of the labels, so callers can make their unions in the same order as a
+ * loop over every pair.
+ *
+ * @author pm286
+ */
+class LabelLayout {
+
+	/** allows for rounding in the range calculations of the callers */
+	private final static double TOLERANCE = 1.000001;
+	private final static double EPSILON = 1.0E-9;
+
+	private List<Entry<Real2Range, List<Joinable>>> labels;
+	private List<Real2Range> boxes;
+	private Double[] fontSizes;
+
+	/**
+	 * @param labels locations and Joinables of the labels
+	 * @param boxes boxes of the labels, in the same order
+	 */
+	LabelLayout(List<Entry<Real2Range, List<Joinable>>> labels, List<Real2Range> boxes) {
+		this.labels = labels;
+		this.boxes = boxes;
+		fontSizes = new Double[labels.size()];
+	}
+
+	int size() {
+		return labels.size();
+	}
+
+	Entry<Real2Range, List<Joinable>> getLabel(int i) {
+		return labels.get(i);
+	}
+
+	Real2Range getBox(int i) {
+		return boxes.get(i);
+	}
+
+	double getFontSize(int i) {
+		if (fontSizes[i] == null) {
+			fontSizes[i] = labels.get(i).getValue().get(0).getSVGElement().getFontSize();
+		}
+		return fontSizes[i];
+	}
+
+	/**
+	 * @param margin
+	 * @return for each label, the labels whose locations overlap it in x or are no more than the margin away
+	 */
+	List<List<Integer>> findHorizontalNeighbours(double margin) {
+		return findNeighbours(true, margin);
+	}
+
+	/**
+	 * @param margin
+	 * @return for each label, the labels whose locations overlap it in y or are no more than the margin away
+	 */
+	List<List<Integer>> findVerticalNeighbours(double margin) {
+		return findNeighbours(false, margin);
+	}
+
+	private List<List<Integer>> findNeighbours(boolean inX, double margin) {
+		int n = labels.size();
+		List<List<Integer>> neighbours = new ArrayList<List<Integer>>(n);
+		List<Integer> valid = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			neighbours.add(new ArrayList<Integer>());
+			if (boxes.get(i).isValid()) {
+				valid.add(i);
+			}
+		}
+		double[] min = new double[valid.size()];
+		double[] max = new double[valid.size()];
+		double[] zero = new double[valid.size()];
+		for (int v = 0; v < valid.size(); v++) {
+			Real2Range location = labels.get(valid.get(v)).getKey();
+			RealRange range = (location == null ? null : (inX ? location.getXRange() : location.getYRange()));
+			if (range == null) {
+				return findAllNeighbours(valid, neighbours);
+			}
+			min[v] = range.getMin();
+			max[v] = range.getMax();
+		}
+		for (long pair : NearbyBoxFinder.findPairs(min, zero, max, zero, Math.max(0, margin) * TOLERANCE + EPSILON)) {
+			int i = valid.get(NearbyBoxFinder.getFirst(pair));
+			int j = valid.get(NearbyBoxFinder.getSecond(pair));
+			neighbours.get(i).add(j);
+			neighbours.get(j).add(i);
+		}
+		return neighbours;
+	}
+
+	private List<List<Integer>> findAllNeighbours(List<Integer> valid, List<List<Integer>> neighbours) {
+		for (Integer i : valid) {
+			for (Integer j : valid) {
+				if (!i.equals(j)) {
+					neighbours.get(i).add(j);
+				}
+			}
+		}
+		return neighbours;
+	}
+
+}
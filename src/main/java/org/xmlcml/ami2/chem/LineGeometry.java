@@ -0,0 +1,153 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+/**
+ * End points, lengths, midpoints and orientations of a list of lines, read from the SVG once and held in
+ * arrays of doubles.
+ * <p>
+ * SVGLine.getXY() parses the attributes of the element and makes new Real2s each time it is called, which
+ * dominates the pairwise loops of the hatch and unsaturated bond detection. Those loops work on positions
+ * in this list instead and only go back to the SVGLines for the full checks and for making the
+ * HatchedBonds, DoubleBonds and TripleBonds which become Joinables.
+ * <p>
+ * Lines are found by identity, as they are in the UnionFinds and used-line sets of the callers.
+ * A line which is altered in place (e.g. cut by DoubleBondManager) must be {@link #update(int)}d.
+ *
+ * @author pm286
+ */
+class LineGeometry {
+
+	private List<SVGLine> lines;
+	private Map<SVGLine, Integer> indexByLine;
+	private double[] x0;
+	private double[] y0;
+	private double[] x1;
+	private double[] y1;
+	private double[] length;
+	private double[] midX;
+	private double[] midY;
+	private double[] orientation;
+
+	LineGeometry(List<SVGLine> lines) {
+		this.lines = lines;
+		int n = lines.size();
+		indexByLine = new IdentityHashMap<SVGLine, Integer>(n);
+		x0 = new double[n];
+		y0 = new double[n];
+		x1 = new double[n];
+		y1 = new double[n];
+		length = new double[n];
+		midX = new double[n];
+		midY = new double[n];
+		orientation = new double[n];
+		for (int i = 0; i < n; i++) {
+			if (!indexByLine.containsKey(lines.get(i))) {
+				indexByLine.put(lines.get(i), i);
+			}
+			update(i);
+		}
+	}
+
+	/**
+	 * Rereads the line at the given position from its element.
+	 *
+	 * @param i
+	 */
+	void update(int i) {
+		Real2 xy0 = lines.get(i).getXY(0);
+		Real2 xy1 = lines.get(i).getXY(1);
+		x0[i] = xy0.getX();
+		y0[i] = xy0.getY();
+		x1[i] = xy1.getX();
+		y1[i] = xy1.getY();
+		length[i] = xy0.getDistance(xy1);
+		midX[i] = (x0[i] + x1[i]) / 2;
+		midY[i] = (y0[i] + y1[i]) / 2;
+		orientation[i] = Math.atan2(y1[i] - y0[i], x1[i] - x0[i]);
+	}
+
+	int size() {
+		return lines.size();
+	}
+
+	SVGLine getLine(int i) {
+		return lines.get(i);
+	}
+
+	/**
+	 * @param line
+	 * @return position of the (first occurrence of the) line, or -1 if it is not in the list
+	 */
+	int indexOf(SVGLine line) {
+		Integer index = indexByLine.get(line);
+		return (index == null ? -1 : index);
+	}
+
+	double getX0(int i) {
+		return x0[i];
+	}
+
+	double getY0(int i) {
+		return y0[i];
+	}
+
+	double getX1(int i) {
+		return x1[i];
+	}
+
+	double getY1(int i) {
+		return y1[i];
+	}
+
+	double getMinX(int i) {
+		return Math.min(x0[i], x1[i]);
+	}
+
+	double getMinY(int i) {
+		return Math.min(y0[i], y1[i]);
+	}
+
+	double getMaxX(int i) {
+		return Math.max(x0[i], x1[i]);
+	}
+
+	double getMaxY(int i) {
+		return Math.max(y0[i], y1[i]);
+	}
+
+	double getLength(int i) {
+		return length[i];
+	}
+
+	double getMidX(int i) {
+		return midX[i];
+	}
+
+	double getMidY(int i) {
+		return midY[i];
+	}
+
+	/**
+	 * @param i
+	 * @return angle of the line from its first to its second point, in radians from -pi to pi (NaN for NaN coordinates)
+	 */
+	double getOrientation(int i) {
+		return orientation[i];
+	}
+
+	/**
+	 * @param i
+	 * @param end 0 or 1
+	 * @return new Real2 for the end point
+	 */
+	Real2 getXY(int i, int end) {
+		return (end == 0 ? new Real2(x0[i], y0[i]) : new Real2(x1[i], y1[i]));
+	}
+
+}
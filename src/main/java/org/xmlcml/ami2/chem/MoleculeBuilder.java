@@ -88,10 +88,10 @@ public class MoleculeBuilder {
 	}
 
 	private void findGroupAndJoinTo(CMLAtom joinableAtomInMolecule) {
-		CMLMolecule group = getGroup(joinableAtomInMolecule);
-		if (group != null) {
-			CMLMolecule copyGroup = new CMLMolecule(group);
-			List<CMLAtom> joinableAtomsInGroup = getJoinableAtomList(copyGroup);
+		GroupTemplate template = getGroupTemplate(joinableAtomInMolecule);
+		if (template != null) {
+			CMLMolecule copyGroup = template.newInstance();
+			List<CMLAtom> joinableAtomsInGroup = template.getJoinableAtoms(copyGroup);
 			if (joinableAtomsInGroup.size() == 0) {
 				LOG.error("No joinable atom");
 			} else {
@@ -149,9 +149,14 @@ public class MoleculeBuilder {
 	}
 
 	public CMLMolecule getGroup(CMLAtom joinableAtom) {
+		GroupTemplate template = getGroupTemplate(joinableAtom);
+		return (template == null ? null : template.newInstance());
+	}
+
+	private GroupTemplate getGroupTemplate(CMLAtom joinableAtom) {
 		List<CMLLabel> labelValueList = getLabelList(joinableAtom);
 		String labelValue = (labelValueList.size() == 1 ? labelValueList.get(0).getValue().trim() : null);
-		CMLMolecule group = groupList.get(labelValue);
+		GroupTemplate group = groupList.getTemplate(labelValue);
 		if (group == null) {
 			String[] bits = labelValue.split("(\\s)+");
 			String longestString = "";
@@ -161,7 +166,7 @@ public class MoleculeBuilder {
 					longestString = bit;
 				}
 			}
-			group = groupList.get(longestString);
+			group = groupList.getTemplate(longestString);
 		}
 		return group;
 	}
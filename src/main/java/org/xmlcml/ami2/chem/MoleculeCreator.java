@@ -21,6 +21,7 @@ import nu.xom.Element;
 import org.apache.log4j.Logger;
 import org.xmlcml.ami2.chem.Joinable.JoinPoint;
 import org.xmlcml.ami2.chem.JoinableText.LargestFontFinderForJoinables;
+import org.xmlcml.ami2.chem.StageMetrics.Stage;
 import org.xmlcml.ami2.chem.svg.SVGContainerNew;
 import org.xmlcml.cml.base.CMLAttribute;
 import org.xmlcml.cml.base.CMLElement;
@@ -296,10 +297,15 @@ public class MoleculeCreator {
 		chemistryBuilder = builder;
 		parameters = new MoleculeCreatorParameters();
 	}
+
+	public MoleculeCreator(ChemistryBuilder builder, MoleculeCreatorParameters parameters) {
+		chemistryBuilder = builder;
+		this.parameters = parameters;
+	}
 	
 	static {
 		try {
-			groupList = new GroupList(MoleculeCreator.class.getResource("groups.cml").openStream());
+			groupList = new GroupList(MoleculeCreator.class.getResource("groups.cml").openStream(), MoleculeCreator.class.getResource("groupsdictionary.tab").openStream());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -308,6 +314,13 @@ public class MoleculeCreator {
 	public ChemistryBuilder getChemistryBuilder() {
 		return chemistryBuilder;
 	}
+
+	/**
+	 * @return timings and counts of the stages of the ChemistryBuilder and of this
+	 */
+	public StageMetrics getMetrics() {
+		return chemistryBuilder.getMetrics();
+	}
 	
 	/**
 	 * @return
@@ -361,12 +374,35 @@ public class MoleculeCreator {
 		return moleculeLocations.values();
 	}
 
+	/**
+	 * Groups junctions which share a Joinable.
+	 * <p>
+	 * The junctions containing each Joinable are indexed first; the unions are then made in the same order
+	 * as comparing every join point of every junction with every junction.
+	 * 
+	 * @param junctions
+	 * @return
+	 */
 	private UnionFind<Junction> findConnectedBits(Collection<Junction> junctions) {
 		UnionFind<Junction> bits = UnionFind.create(junctions);
+		Map<Joinable, List<Junction>> junctionsByJoinable = new HashMap<Joinable, List<Junction>>();
+		for (Junction k : junctions) {
+			for (Joinable joinable : k.getJoinables()) {
+				List<Junction> junctionsWithJoinable = junctionsByJoinable.get(joinable);
+				if (junctionsWithJoinable == null) {
+					junctionsWithJoinable = new ArrayList<Junction>();
+					junctionsByJoinable.put(joinable, junctionsWithJoinable);
+				}
+				if (junctionsWithJoinable.isEmpty() || junctionsWithJoinable.get(junctionsWithJoinable.size() - 1) != k) {
+					junctionsWithJoinable.add(k);
+				}
+			}
+		}
 		for (Junction j : junctions) {
 			for (JoinPoint point : j.getJoinPoints()) {
-				for (Junction k : junctions) {
-					if (k.getJoinables().contains(point.getJoinable())) {
+				List<Junction> junctionsWithJoinable = junctionsByJoinable.get(point.getJoinable());
+				if (junctionsWithJoinable != null) {
+					for (Junction k : junctionsWithJoinable) {
 						bits.union(j, k);
 					}
 				}
@@ -402,18 +438,24 @@ public class MoleculeCreator {
 	public CMLPage getReactionsAndMolecules() {
 		LOG.trace("Looking for reactions and molecules");
 		chemistryBuilder.createHigherPrimitives();
+		StageMetrics metrics = getMetrics();
+		long start = metrics.start();
 		UnionFind<Junction> bits = findConnectedBits(chemistryBuilder.getHigherPrimitives().getJunctionList());
 		arrowLocations = new LinkedHashMap<Real2Range, Set<Junction>>();
 		labelLocations = new LinkedHashMap<Real2Range, List<Joinable>>();
 		moleculeLocations = LinkedHashBasedTable.create();
 		findLocationsOfBits(bits, arrowLocations, labelLocations, moleculeLocations);
+		metrics.record(Stage.MOLECULE_ASSEMBLY, start, moleculeLocations.size());
 		if (arrowLocations.size() == 0) {
 			LOG.debug("No reactions found");
 		}
 		parameters.setStandardMoleculeSizeFromMolecules(moleculeLocations.columnKeySet());
+		start = metrics.start();
 		attachLabelsToAtoms(moleculeLocations, chemistryBuilder.getAtomLabels());
 		stitchLabelsTogether(labelLocations);
 		Map<Real2Range, List<Joinable>> labelsLeft = addLabelsToMolecules(labelLocations, moleculeLocations);
+		metrics.record(Stage.LABEL_STITCHING, start, labelLocations.size());
+		start = metrics.start();
 		findMoleculeGroups(moleculeLocations);
 		reactions = createReactionsAndAddMolecules(arrowLocations, moleculeLocations);
 		labelsLeft = addLabelsToReactions(reactions, labelsLeft, arrowLocations);
@@ -423,6 +465,7 @@ public class MoleculeCreator {
 		addMoleculesToReactions(arrowLocations, newMoleculeLocations, reactions, molecules);
 		debugMolecules(newMoleculeLocations);
 		moleculeLocations.putAll(newMoleculeLocations);
+		metrics.record(Stage.REACTIONS, start, reactions.size());
 		return makeCollection();
 	}
 
@@ -519,39 +562,37 @@ public class MoleculeCreator {
 
 	private void stitchLabelsTogether(Map<Real2Range, List<Joinable>> labelLocations) {
 		UnionFind<Entry<Real2Range, List<Joinable>>> newLabels = UnionFind.create(labelLocations.entrySet());
-		for (Entry<Real2Range, List<Joinable>> label1 : labelLocations.entrySet()) {
-			for (Entry<Real2Range, List<Joinable>> label2 : labelLocations.entrySet()) {
-				if (label1 != label2) {
-					Real2Range label1Box = getBoundingBox(label1.getValue(), false);
-					Real2Range label2Box = getBoundingBox(label2.getValue(), false);
-					if (!label2Box.isValid() || !label1Box.isValid()) {
-						continue;
-					}
-					double meanSize = (label1.getValue().get(0).getSVGElement().getFontSize() + label2.getValue().get(0).getSVGElement().getFontSize()) / 2;
-					boolean xConstraint = label1.getKey().getXRange().getRangeExtendedBy(parameters.getMaximumTabDistance() / 2, parameters.getMaximumTabDistance() / 2).intersectsWith(label2.getKey().getXRange().getRangeExtendedBy(parameters.getMaximumTabDistance() / 2, parameters.getMaximumTabDistance() / 2));
-					boolean horizontal = xConstraint && (((label2Box.getYMin() - label1Box.getYMin()) / meanSize > -parameters.getTextCoordinateTolerance() && (label1Box.getYMax() - label2Box.getYMax()) / meanSize > -parameters.getTextCoordinateTolerance()) || ((label1Box.getYMin() - label2Box.getYMin()) / meanSize > -parameters.getTextCoordinateTolerance() && (label2Box.getYMax() - label1Box.getYMax()) / meanSize > -parameters.getTextCoordinateTolerance()));
-					if (horizontal) {
-						newLabels.union(label1, label2);
-					}
+		LabelLayout layout = createLabelLayout(labelLocations);
+		List<List<Integer>> horizontalNeighbours = layout.findHorizontalNeighbours(parameters.getMaximumTabDistance());
+		for (int i = 0; i < layout.size(); i++) {
+			Entry<Real2Range, List<Joinable>> label1 = layout.getLabel(i);
+			Real2Range label1Box = layout.getBox(i);
+			for (int j : horizontalNeighbours.get(i)) {
+				Entry<Real2Range, List<Joinable>> label2 = layout.getLabel(j);
+				Real2Range label2Box = layout.getBox(j);
+				double meanSize = (layout.getFontSize(i) + layout.getFontSize(j)) / 2;
+				boolean xConstraint = label1.getKey().getXRange().getRangeExtendedBy(parameters.getMaximumTabDistance() / 2, parameters.getMaximumTabDistance() / 2).intersectsWith(label2.getKey().getXRange().getRangeExtendedBy(parameters.getMaximumTabDistance() / 2, parameters.getMaximumTabDistance() / 2));
+				boolean horizontal = xConstraint && (((label2Box.getYMin() - label1Box.getYMin()) / meanSize > -parameters.getTextCoordinateTolerance() && (label1Box.getYMax() - label2Box.getYMax()) / meanSize > -parameters.getTextCoordinateTolerance()) || ((label1Box.getYMin() - label2Box.getYMin()) / meanSize > -parameters.getTextCoordinateTolerance() && (label2Box.getYMax() - label1Box.getYMax()) / meanSize > -parameters.getTextCoordinateTolerance()));
+				if (horizontal) {
+					newLabels.union(label1, label2);
 				}
 			}
 		}
 		labelLocations.clear();
 		convertArrowsGroupedByUnionFindIntoArrowGroups(labelLocations, newLabels);
 		newLabels = UnionFind.create(labelLocations.entrySet());
-		for (Entry<Real2Range, List<Joinable>> label1 : labelLocations.entrySet()) {
-			for (Entry<Real2Range, List<Joinable>> label2 : labelLocations.entrySet()) {
-				if (label1 != label2) {
-					Real2Range label1Box = getBoundingBox(label1.getValue(), false);
-					Real2Range label2Box = getBoundingBox(label2.getValue(), false);
-					if (!label2Box.isValid() || !label1Box.isValid()) {
-						continue;
-					}
-					boolean xConstraint = Math.abs(label1.getKey().getXRange().getMidPoint() - label2.getKey().getXRange().getMidPoint()) < parameters.getLabelJoiningMaximumXJitter() || Math.abs(label1.getKey().getXRange().getMin() - label2.getKey().getXRange().getMin()) < parameters.getLabelJoiningMaximumXJitter();
-					boolean vertical = xConstraint && ((label1.getKey().getYMin() - label2.getKey().getYMax() < parameters.getMaximumSpacingBetweenLabelLines() && label1.getKey().getYMin() - label2.getKey().getYMax() > -parameters.getMaximumOverlapBetweenLabelLines()) || (label2.getKey().getYMin() - label1.getKey().getYMax() < parameters.getMaximumSpacingBetweenLabelLines() && label2.getKey().getYMin() - label1.getKey().getYMax() > -parameters.getMaximumOverlapBetweenLabelLines()));
-					if (vertical) {
-						newLabels.union(label1, label2);
-					}
+		layout = createLabelLayout(labelLocations);
+		//lines of a label must be within this distance of each other in y
+		double maximumLineGap = Math.max(parameters.getMaximumSpacingBetweenLabelLines(), parameters.getMaximumOverlapBetweenLabelLines());
+		List<List<Integer>> verticalNeighbours = layout.findVerticalNeighbours(maximumLineGap);
+		for (int i = 0; i < layout.size(); i++) {
+			Entry<Real2Range, List<Joinable>> label1 = layout.getLabel(i);
+			for (int j : verticalNeighbours.get(i)) {
+				Entry<Real2Range, List<Joinable>> label2 = layout.getLabel(j);
+				boolean xConstraint = Math.abs(label1.getKey().getXRange().getMidPoint() - label2.getKey().getXRange().getMidPoint()) < parameters.getLabelJoiningMaximumXJitter() || Math.abs(label1.getKey().getXRange().getMin() - label2.getKey().getXRange().getMin()) < parameters.getLabelJoiningMaximumXJitter();
+				boolean vertical = xConstraint && ((label1.getKey().getYMin() - label2.getKey().getYMax() < parameters.getMaximumSpacingBetweenLabelLines() && label1.getKey().getYMin() - label2.getKey().getYMax() > -parameters.getMaximumOverlapBetweenLabelLines()) || (label2.getKey().getYMin() - label1.getKey().getYMax() < parameters.getMaximumSpacingBetweenLabelLines() && label2.getKey().getYMin() - label1.getKey().getYMax() > -parameters.getMaximumOverlapBetweenLabelLines()));
+				if (vertical) {
+					newLabels.union(label1, label2);
 				}
 			}
 		}
@@ -559,6 +600,21 @@ public class MoleculeCreator {
 		convertArrowsGroupedByUnionFindIntoArrowGroups(labelLocations,newLabels);
 	}
 
+	/**
+	 * Takes the boxes of the labels (without superscripts and subscripts) once for both directions of every pair.
+	 * 
+	 * @param labelLocations
+	 * @return
+	 */
+	private LabelLayout createLabelLayout(Map<Real2Range, List<Joinable>> labelLocations) {
+		List<Entry<Real2Range, List<Joinable>>> labels = new ArrayList<Entry<Real2Range, List<Joinable>>>(labelLocations.entrySet());
+		List<Real2Range> boxes = new ArrayList<Real2Range>(labels.size());
+		for (Entry<Real2Range, List<Joinable>> label : labels) {
+			boxes.add(getBoundingBox(label.getValue(), false));
+		}
+		return new LabelLayout(labels, boxes);
+	}
+
 	private void convertArrowsGroupedByUnionFindIntoArrowGroups(Map<Real2Range, List<Joinable>> labelLocations, UnionFind<Entry<Real2Range, List<Joinable>>> newLabels) {
 		for (Set<Entry<Real2Range, List<Joinable>>> group : newLabels.snapshot()) {
 			List<Entry<Real2Range, List<Joinable>>> groupList = new ArrayList<Entry<Real2Range, List<Joinable>>>(group);
@@ -1531,7 +1587,16 @@ public class MoleculeCreator {
 	}
 	
 	public void createAnnotatedVersionOfInput(File outputDirectory) throws FileNotFoundException {
-		ChemAnnotator.createClickableHTML(new File(outputDirectory, getOutputFileNameForInputAnnotation()), this);
+		createAnnotatedVersionOfInput(outputDirectory, ChemOutput.Format.FULL);
+	}
+	
+	/**
+	 * @param outputDirectory
+	 * @param format of the CML files written with the annotated input
+	 * @throws FileNotFoundException
+	 */
+	public void createAnnotatedVersionOfInput(File outputDirectory, ChemOutput.Format format) throws FileNotFoundException {
+		ChemAnnotator.createClickableHTML(new File(outputDirectory, getOutputFileNameForInputAnnotation()), this, format);
 		ChemAnnotator.copyImageFilesFromDirectoryToDirectory(inputCopy.getFile().getParentFile(), outputDirectory);
 	}
 	
@@ -0,0 +1,461 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.xmlcml.cml.base.CMLBuilder;
+import org.xmlcml.cml.base.CMLUtil;
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.tools.Morgan;
+import org.xmlcml.xml.XMLUtil;
+
+/**
+ * Read-only index from Morgan strings to compound identifiers, memory-mapped from a file.
+ * <p>
+ * Molecules made by MoleculeCreator can be identified without any network calls. Keys are the Morgan
+ * strings of molecules without their hydrogen atoms, as diagrams rarely show them all and dumps (e.g.
+ * from PubChem) usually do. The index is built once from SDF (.sdf, .sd) or CML (.cml, .xml) dumps,
+ * optionally gzipped, by {@link #build(File, Collection)} or from the command line ({@link #main(String[])});
+ * the identifiers are the PubChem CIDs, SDF titles or CML molecule ids.
+ * <p>
+ * The file holds a header, a table of (hash, offset) records sorted by hash, and the keys and identifiers
+ * the offsets point to. A lookup is a binary search of the table and a comparison of the keys with the
+ * same hash, so it touches only a few pages. Building holds 16 bytes per molecule in memory; the keys are
+ * written to disk as they are made. Lookups are thread-safe.
+ *
+ * @author pm286
+ */
+public class MorganIndex implements Closeable {
+
+	private final static Logger LOG = Logger.getLogger(MorganIndex.class);
+
+	final static int MAGIC = 0x4d4f5247;
+	final static int VERSION = 1;
+	private final static int HEADER_BYTES = 16;
+	private final static int RECORD_BYTES = 16;
+	private final static long CHUNK_BYTES = 1L << 30;
+	private final static String DIGEST = "MD5";
+	private final static String HYDROGEN = "H";
+
+	private RandomAccessFile file;
+	private long chunkBytes;
+	private MappedByteBuffer[] chunks;
+	private long count;
+	private long dataStart;
+
+	/**
+	 * Maps an index made by {@link #build(File, Collection)}.
+	 *
+	 * @param indexFile
+	 * @throws IOException if the file cannot be mapped or is not an index
+	 */
+	public MorganIndex(File indexFile) throws IOException {
+		this(indexFile, CHUNK_BYTES);
+	}
+
+	/**
+	 * @param indexFile
+	 * @param chunkBytes size of the mapped chunks (small in tests, so that records cross the chunk boundaries)
+	 * @throws IOException if the file cannot be mapped or is not an index
+	 */
+	MorganIndex(File indexFile, long chunkBytes) throws IOException {
+		this.chunkBytes = chunkBytes;
+		file = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			chunks = new MappedByteBuffer[(int) ((size + chunkBytes - 1) / chunkBytes)];
+			for (int i = 0; i < chunks.length; i++) {
+				long position = i * chunkBytes;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkBytes, size - position));
+			}
+			if (size < HEADER_BYTES || getInt(0) != MAGIC || getInt(4) != VERSION) {
+				throw new IOException("Not a Morgan index: " + indexFile);
+			}
+			count = getLong(8);
+			dataStart = HEADER_BYTES + count * RECORD_BYTES;
+			if (dataStart > size) {
+				throw new IOException("Truncated Morgan index: " + indexFile);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		LOG.debug("Mapped Morgan index of " + count + " molecules from " + indexFile);
+	}
+
+	/**
+	 * @return number of molecules indexed (including any with the same key and identifier)
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * @param molecule e.g. from MoleculeCreator.getMolecules(); not altered
+	 * @return identifiers of the compounds with the same structure, in the order of the dumps (empty if there are none)
+	 */
+	public List<String> getIdentifiers(CMLMolecule molecule) {
+		String key;
+		try {
+			key = createKey(molecule);
+		} catch (RuntimeException e) {
+			LOG.debug("Cannot create Morgan string for " + molecule.getId() + ": " + e);
+			return new ArrayList<String>();
+		}
+		return getIdentifiers(key);
+	}
+
+	/**
+	 * @param molecules
+	 * @return identifiers for each molecule that matches anything
+	 */
+	public Map<CMLMolecule, List<String>> getIdentifiers(Collection<CMLMolecule> molecules) {
+		Map<CMLMolecule, List<String>> identifiersByMolecule = new LinkedHashMap<CMLMolecule, List<String>>();
+		for (CMLMolecule molecule : molecules) {
+			List<String> identifiers = getIdentifiers(molecule);
+			if (identifiers.size() > 0) {
+				identifiersByMolecule.put(molecule, identifiers);
+			}
+		}
+		return identifiersByMolecule;
+	}
+
+	/**
+	 * @param key from {@link #createKey(CMLMolecule)}
+	 * @return identifiers of the compounds with the key
+	 */
+	public List<String> getIdentifiers(String key) {
+		byte[] keyBytes = toBytes(key);
+		long hash = hash(keyBytes);
+		long low = 0;
+		long high = count;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (getLong(HEADER_BYTES + middle * RECORD_BYTES) < hash) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		Set<String> identifiers = new LinkedHashSet<String>();
+		for (long i = low; i < count && getLong(HEADER_BYTES + i * RECORD_BYTES) == hash; i++) {
+			long position = dataStart + getLong(HEADER_BYTES + i * RECORD_BYTES + 8);
+			int keyLength = getInt(position);
+			if (keyLength == keyBytes.length && matches(position + 4, keyBytes)) {
+				position += 4 + keyLength;
+				identifiers.add(fromBytes(getBytes(position + 4, getInt(position))));
+			}
+		}
+		return new ArrayList<String>(identifiers);
+	}
+
+	/**
+	 * Closes the file; the mapping itself is released when the index is collected.
+	 */
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * @param molecule not altered
+	 * @return Morgan string of the molecule without its hydrogen atoms
+	 */
+	public static String createKey(CMLMolecule molecule) {
+		CMLMolecule copy = new CMLMolecule(molecule);
+		for (CMLAtom atom : copy.getAtoms()) {
+			if (HYDROGEN.equals(atom.getElementType())) {
+				copy.deleteAtom(atom);
+			}
+		}
+		return Morgan.createMorganStringFromMolecule(copy);
+	}
+
+	/**
+	 * Builds an index from SDF and CML dumps. Molecules with no atoms or no Morgan string are skipped.
+	 *
+	 * @param indexFile to write (replaced if it exists)
+	 * @param dumps .sdf, .sd, .cml or .xml files, optionally ending .gz
+	 * @return number of molecules indexed
+	 * @throws IOException if a dump cannot be read or the index cannot be written
+	 */
+	public static long build(File indexFile, Collection<File> dumps) throws IOException {
+		File dataFile = new File(indexFile.getPath() + ".data");
+		IndexWriter writer = new IndexWriter(dataFile);
+		try {
+			for (File dump : dumps) {
+				LOG.debug("Indexing " + dump);
+				String name = dump.getName().toLowerCase().replaceAll("\\.gz$", "");
+				InputStream is = new BufferedInputStream(new FileInputStream(dump));
+				try {
+					if (dump.getName().toLowerCase().endsWith(".gz")) {
+						is = new GZIPInputStream(is);
+					}
+					if (name.endsWith(".sdf") || name.endsWith(".sd")) {
+						addSDF(writer, is);
+					} else if (name.endsWith(".cml") || name.endsWith(".xml")) {
+						addCML(writer, is);
+					} else {
+						throw new IOException("Unknown type of dump: " + dump);
+					}
+				} finally {
+					is.close();
+				}
+			}
+			writer.close();
+			writer.writeIndex(indexFile);
+		} finally {
+			writer.close();
+			FileUtils.deleteQuietly(dataFile);
+		}
+		LOG.debug("Indexed " + writer.size + " molecules in " + indexFile);
+		return writer.size;
+	}
+
+	/**
+	 * Builds an index from the command line, e.g.
+	 * <pre>java org.xmlcml.ami2.chem.MorganIndex compounds.index Compound_000000001_000500000.sdf.gz ...</pre>
+	 *
+	 * @param args the index file to write, then the dumps
+	 * @throws IOException if a dump cannot be read or the index cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: MorganIndex <index file> <dump> [<dump> ...]");
+			System.err.println("Dumps are .sdf, .sd, .cml or .xml files, optionally ending .gz");
+			return;
+		}
+		List<File> dumps = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) {
+			dumps.add(new File(args[i]));
+		}
+		long size = build(new File(args[0]), dumps);
+		System.out.println("Indexed " + size + " molecules in " + args[0]);
+	}
+
+	private static void addSDF(IndexWriter writer, InputStream is) throws IOException {
+		SDFReader reader = new SDFReader(new BufferedReader(new InputStreamReader(is, "UTF-8")));
+		CMLMolecule molecule;
+		while ((molecule = reader.read()) != null) {
+			writer.add(molecule, reader.getIdentifier());
+		}
+	}
+
+	private static void addCML(IndexWriter writer, InputStream is) throws IOException {
+		Element root;
+		try {
+			root = new CMLBuilder().build(is).getRootElement();
+		} catch (Exception e) {
+			throw new IOException("Cannot parse CML: " + e);
+		}
+		for (Element element : XMLUtil.getQueryElements(root, "//cml:molecule[not(ancestor::cml:molecule)]", CMLUtil.CML_XPATH)) {
+			CMLMolecule molecule = (CMLMolecule) element;
+			writer.add(molecule, molecule.getId());
+		}
+	}
+
+	/**
+	 * Writes the keys and identifiers to a data file as they are added, keeping only their hashes and offsets.
+	 */
+	private static class IndexWriter {
+
+		private File dataFile;
+		private DataOutputStream data;
+		private long[] hashes = new long[1024];
+		private long[] offsets = new long[1024];
+		private int size;
+		private long dataBytes;
+
+		IndexWriter(File dataFile) throws IOException {
+			this.dataFile = dataFile;
+			data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile)));
+		}
+
+		void add(CMLMolecule molecule, String identifier) throws IOException {
+			if (identifier == null || molecule.getAtoms().size() == 0) {
+				return;
+			}
+			byte[] key;
+			try {
+				key = toBytes(createKey(molecule));
+			} catch (RuntimeException e) {
+				LOG.debug("Skipping " + identifier + ": " + e);
+				return;
+			}
+			byte[] identifierBytes = toBytes(identifier);
+			if (size == hashes.length) {
+				long[] newHashes = new long[size * 2];
+				long[] newOffsets = new long[size * 2];
+				System.arraycopy(hashes, 0, newHashes, 0, size);
+				System.arraycopy(offsets, 0, newOffsets, 0, size);
+				hashes = newHashes;
+				offsets = newOffsets;
+			}
+			hashes[size] = hash(key);
+			offsets[size] = dataBytes;
+			size++;
+			data.writeInt(key.length);
+			data.write(key);
+			data.writeInt(identifierBytes.length);
+			data.write(identifierBytes);
+			dataBytes += 8 + key.length + identifierBytes.length;
+		}
+
+		void close() throws IOException {
+			data.close();
+		}
+
+		void writeIndex(File indexFile) throws IOException {
+			sort();
+			DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			try {
+				index.writeInt(MAGIC);
+				index.writeInt(VERSION);
+				index.writeLong(size);
+				for (int i = 0; i < size; i++) {
+					index.writeLong(hashes[i]);
+					index.writeLong(offsets[i]);
+				}
+				InputStream is = new FileInputStream(dataFile);
+				try {
+					IOUtils.copyLarge(is, index);
+				} finally {
+					is.close();
+				}
+			} finally {
+				index.close();
+			}
+		}
+
+		/**
+		 * Heap sort of the records by hash, then offset (so identifiers keep the order of the dumps).
+		 */
+		private void sort() {
+			for (int i = size / 2 - 1; i >= 0; i--) {
+				siftDown(i, size);
+			}
+			for (int end = size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
+			}
+		}
+
+		private void siftDown(int i, int end) {
+			while (2 * i + 1 < end) {
+				int child = 2 * i + 1;
+				if (child + 1 < end && isLess(child, child + 1)) {
+					child++;
+				}
+				if (!isLess(i, child)) {
+					return;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private boolean isLess(int i, int j) {
+			return hashes[i] < hashes[j] || (hashes[i] == hashes[j] && offsets[i] < offsets[j]);
+		}
+
+		private void swap(int i, int j) {
+			long hash = hashes[i];
+			hashes[i] = hashes[j];
+			hashes[j] = hash;
+			long offset = offsets[i];
+			offsets[i] = offsets[j];
+			offsets[j] = offset;
+		}
+	}
+
+	private boolean matches(long position, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (getByte(position + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private byte[] getBytes(long position, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = getByte(position + i);
+		}
+		return bytes;
+	}
+
+	private byte getByte(long position) {
+		return chunks[(int) (position / chunkBytes)].get((int) (position % chunkBytes));
+	}
+
+	private int getInt(long position) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (getByte(position + i) & 0xff);
+		}
+		return value;
+	}
+
+	private long getLong(long position) {
+		return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xffffffffL);
+	}
+
+	static long hash(byte[] key) {
+		try {
+			byte[] digest = MessageDigest.getInstance(DIGEST).digest(key);
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (digest[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(DIGEST + " is not available", e);
+		}
+	}
+
+	private static byte[] toBytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String fromBytes(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Joinables which cannot be joined to each other because they are alternative readings of the same
+ * primitives (e.g. a short line which may be a hatch of a HatchedBond, a minus or a SingleBond).
+ * <p>
+ * Each group of alternatives is added as a clique; Joinables are compared by identity, as they are
+ * in ChemistryBuilder, so {@link #areMutuallyExclusive(Joinable, Joinable)} is a hash lookup instead
+ * of a scan of every group.
+ *
+ * @author pm286
+ */
+class MutualExclusionGraph {
+
+	private Map<Joinable, Set<Joinable>> exclusions = new IdentityHashMap<Joinable, Set<Joinable>>();
+
+	/**
+	 * Makes every pair of the given Joinables mutually exclusive.
+	 *
+	 * @param alternatives null members (alternatives which have not been made) are ignored
+	 */
+	void addAlternatives(Joinable... alternatives) {
+		for (int i = 0; i < alternatives.length; i++) {
+			for (int j = i + 1; j < alternatives.length; j++) {
+				if (alternatives[i] != null && alternatives[j] != null && alternatives[i] != alternatives[j]) {
+					addExclusion(alternatives[i], alternatives[j]);
+					addExclusion(alternatives[j], alternatives[i]);
+				}
+			}
+		}
+	}
+
+	boolean areMutuallyExclusive(Joinable joinableI, Joinable joinableJ) {
+		Set<Joinable> excluded = exclusions.get(joinableI);
+		return (excluded != null && excluded.contains(joinableJ));
+	}
+
+	private void addExclusion(Joinable joinable, Joinable excluded) {
+		Set<Joinable> set = exclusions.get(joinable);
+		if (set == null) {
+			set = Collections.newSetFromMap(new IdentityHashMap<Joinable, Boolean>());
+			exclusions.put(joinable, set);
+		}
+		set.add(excluded);
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sweep-line search for pairs of axis-aligned boxes that are within a given margin of each other.
+ * <p>
+ * Boxes are given as parallel arrays of their extents. The pairs are returned as (i, j) with i &lt; j,
+ * packed into longs and sorted by i and then j, which is the order of a nested loop over the boxes.
+ *
+ * @author pm286
+ */
+class NearbyBoxFinder {
+
+	private NearbyBoxFinder() {
+	}
+
+	/**
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param margin boxes whose gap in both x and y is no more than this are paired
+	 * @return packed pairs; use {@link #getFirst(long)} and {@link #getSecond(long)} to unpack
+	 */
+	static long[] findPairs(final double[] minX, double[] minY, double[] maxX, double[] maxY, double margin) {
+		int n = minX.length;
+		Integer[] byMinX = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			byMinX[i] = i;
+		}
+		Arrays.sort(byMinX, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return Double.compare(minX[i], minX[j]);
+			}
+		});
+		long[] pairs = new long[Math.max(16, n)];
+		int size = 0;
+		for (int a = 0; a < n; a++) {
+			int i = byMinX[a];
+			double limit = maxX[i] + margin;
+			for (int b = a + 1; b < n && minX[byMinX[b]] <= limit; b++) {
+				int j = byMinX[b];
+				if (minY[j] <= maxY[i] + margin && minY[i] <= maxY[j] + margin) {
+					if (size == pairs.length) {
+						pairs = Arrays.copyOf(pairs, 2 * size);
+					}
+					pairs[size++] = (i < j ? pack(i, j) : pack(j, i));
+				}
+			}
+		}
+		pairs = Arrays.copyOf(pairs, size);
+		Arrays.sort(pairs);
+		return pairs;
+	}
+
+	static int getFirst(long pair) {
+		return (int) (pair >>> 32);
+	}
+
+	static int getSecond(long pair) {
+		return (int) pair;
+	}
+
+	private static long pack(int i, int j) {
+		return (((long) i) << 32) | j;
+	}
+
+}
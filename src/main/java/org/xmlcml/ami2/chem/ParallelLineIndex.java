@@ -0,0 +1,196 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+/**
+ * Buckets lines by orientation and by the grid cell of their midpoint.
+ * <p>
+ * Used by DoubleBondManager to find the lines that might form a double or triple bond with a given
+ * line or double bond. Orientations are taken modulo pi and the bucket width is at least the parallel threshold,
+ * so two lines that are parallel or antiparallel within the threshold are always in the same or adjacent buckets.
+ * <p>
+ * Candidates are a superset of the lines that can actually bond; the caller still makes the full check.
+ * They are returned in the order of the original list.
+ *
+ * @author pm286
+ */
+class ParallelLineIndex {
+
+	/** allows for rounding in the orientation and distance calculations */
+	private final static double TOLERANCE = 1.000001;
+
+	private LineGeometry geometry;
+	private double[] midX;
+	private double[] midY;
+	private double[] length;
+	private int[] orientationBucket;
+	private int numberOfOrientationBuckets;
+	private double cellSize;
+	private double maximumLength;
+	private List<Map<Long, List<Integer>>> cellsByOrientation;
+
+	/**
+	 * @param geometry of the lines; the midpoints and lengths are copied, so later {@link LineGeometry#update(int)}s
+	 * do not move lines between cells
+	 * @param parallelThresholdInRadians
+	 * @param separation
+	 */
+	ParallelLineIndex(LineGeometry geometry, double parallelThresholdInRadians, double separation) {
+		this.geometry = geometry;
+		int n = geometry.size();
+		midX = new double[n];
+		midY = new double[n];
+		length = new double[n];
+		orientationBucket = new int[n];
+		double bucketWidth = Math.max(parallelThresholdInRadians * TOLERANCE, 1.0E-9);
+		numberOfOrientationBuckets = (int) Math.max(1, Math.min(Math.floor(Math.PI / bucketWidth), 1000));
+		maximumLength = 0;
+		for (int i = 0; i < n; i++) {
+			midX[i] = geometry.getMidX(i);
+			midY[i] = geometry.getMidY(i);
+			length[i] = geometry.getLength(i);
+			orientationBucket[i] = getOrientationBucket(geometry.getOrientation(i));
+			if (length[i] > maximumLength) {
+				maximumLength = length[i];
+			}
+		}
+		double[] sortedLengths = length.clone();
+		Arrays.sort(sortedLengths);
+		double typicalLength = (n == 0 ? 0 : sortedLengths[n / 2]);
+		cellSize = separation + 2 * typicalLength;
+		if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+			cellSize = 1.0;
+		}
+		cellsByOrientation = new ArrayList<Map<Long, List<Integer>>>(numberOfOrientationBuckets);
+		for (int b = 0; b < numberOfOrientationBuckets; b++) {
+			cellsByOrientation.add(new HashMap<Long, List<Integer>>());
+		}
+		for (int i = 0; i < n; i++) {
+			Map<Long, List<Integer>> cells = cellsByOrientation.get(orientationBucket[i]);
+			Long key = getKey(getCell(midX[i]), getCell(midY[i]));
+			List<Integer> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<Integer>();
+				cells.put(key, cell);
+			}
+			cell.add(i);
+		}
+	}
+
+	/**
+	 * Finds the lines roughly parallel to the given direction whose midpoints are within reach of the given point.
+	 *
+	 * @param point
+	 * @param direction any vector along the reference line
+	 * @param reach
+	 * @param fromIndex only lines after this position in the list are returned (-1 for all)
+	 * @return ascending positions in the list of the candidate lines
+	 */
+	List<Integer> getIndicesOfNearbyParallelLines(Real2 point, Real2 direction, double reach, int fromIndex) {
+		return getIndicesOfNearbyParallelLines(point.getX(), point.getY(), getOrientationBucket(Math.atan2(direction.getY(), direction.getX())), reach, fromIndex);
+	}
+
+	/**
+	 * Finds the lines roughly parallel to the line at the given position whose midpoints are within reach of its midpoint.
+	 *
+	 * @param index of the reference line
+	 * @param reach
+	 * @param fromIndex only lines after this position in the list are returned (-1 for all)
+	 * @return ascending positions in the list of the candidate lines
+	 */
+	List<Integer> getIndicesOfNearbyParallelLines(int index, double reach, int fromIndex) {
+		return getIndicesOfNearbyParallelLines(midX[index], midY[index], orientationBucket[index], reach, fromIndex);
+	}
+
+	private List<Integer> getIndicesOfNearbyParallelLines(double pointX, double pointY, int bucket, double reach, int fromIndex) {
+		List<Integer> indices = new ArrayList<Integer>();
+		reach *= TOLERANCE;
+		int minX = getCell(pointX - reach);
+		int maxX = getCell(pointX + reach);
+		int minY = getCell(pointY - reach);
+		int maxY = getCell(pointY + reach);
+		for (int b : getNeighbouringOrientationBuckets(bucket)) {
+			Map<Long, List<Integer>> cells = cellsByOrientation.get(b);
+			if (cells.isEmpty()) {
+				continue;
+			}
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					List<Integer> cell = cells.get(getKey(x, y));
+					if (cell != null) {
+						for (Integer index : cell) {
+							if (index > fromIndex && Math.abs(midX[index] - pointX) <= reach && Math.abs(midY[index] - pointY) <= reach) {
+								indices.add(index);
+							}
+						}
+					}
+				}
+			}
+		}
+		Collections.sort(indices);
+		return indices;
+	}
+
+	/**
+	 * @param index
+	 * @return midpoint of the line as it was when the index was built
+	 */
+	Real2 getMidPoint(int index) {
+		return new Real2(midX[index], midY[index]);
+	}
+
+	double getLength(int index) {
+		return length[index];
+	}
+
+	double getMaximumLength() {
+		return maximumLength;
+	}
+
+	SVGLine get(int index) {
+		return geometry.getLine(index);
+	}
+
+	private int[] getNeighbouringOrientationBuckets(int bucket) {
+		if (numberOfOrientationBuckets < 3) {
+			int[] all = new int[numberOfOrientationBuckets];
+			for (int b = 0; b < all.length; b++) {
+				all[b] = b;
+			}
+			return all;
+		}
+		return new int[] {(bucket + numberOfOrientationBuckets - 1) % numberOfOrientationBuckets, bucket, (bucket + 1) % numberOfOrientationBuckets};
+	}
+
+	private int getOrientationBucket(double orientation) {
+		if (Double.isNaN(orientation)) {
+			return 0;
+		}
+		if (orientation < 0) {
+			orientation += Math.PI;
+		}
+		int bucket = (int) (orientation / Math.PI * numberOfOrientationBuckets);
+		return Math.max(0, Math.min(numberOfOrientationBuckets - 1, bucket));
+	}
+
+	private int getCell(double coordinate) {
+		double cell = Math.floor(coordinate / cellSize);
+		if (Double.isNaN(cell)) {
+			return 0;
+		}
+		return (int) Math.max(Integer.MIN_VALUE + 1, Math.min(Integer.MAX_VALUE - 1, cell));
+	}
+
+	private static Long getKey(int x, int y) {
+		return (((long) x) << 32) | (y & 0xffffffffL);
+	}
+
+}
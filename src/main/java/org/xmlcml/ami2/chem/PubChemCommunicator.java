@@ -1,21 +1,9 @@
 package org.xmlcml.ami2.chem;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-import org.xmlcml.cml.base.CMLElement;
-import org.xmlcml.cml.element.CMLCml;
-import org.xmlcml.cml.element.CMLMolecule;
-import org.xmlcml.cml.tools.Morgan;
 
 public class PubChemCommunicator {
 	
@@ -40,41 +28,21 @@ public class PubChemCommunicator {
 		}
 	}*/
 	
+	private static PubChemLookupService defaultService;
+	
+	/**
+	 * Uses a service shared by all callers, so connections are pooled; for a cache or another server
+	 * make a PubChemLookupService.
+	 */
 	public static List<String> getMorgansFromPubChem(String search) throws ClientProtocolException, IOException {
-		CloseableHttpClient httpClient = HttpClients.createDefault();
-		URIBuilder uri = new URIBuilder();
-		uri.setScheme("https");
-		uri.setHost("pubchem.ncbi.nlm.nih.gov/");
-		uri.setPath("rest/pug/compound/name/" + search + "/SDF");
-		HttpGet httpGet = new HttpGet(uri.toString());//"https://pubchem.ncbi.nlm.nih.gov/rest/pug/compound/name/" + .setHost(host)encode(search, "UTF-8") + "/cids/TXT");
-		CloseableHttpResponse response = httpClient.execute(httpGet);
-		HttpEntity entity = response.getEntity();
-		/*BufferedReader content = new BufferedReader(new InputStreamReader(entity.getContent()));
-		String line;
-		List<String> lines = new ArrayList<String>();
-		while ((line = content.readLine()) != null) {
-			lines.add(line);
-		}
-		System.out.println(content.readLine());
-		System.out.println(content.readLine());
-		System.out.println(content.readLine());*/
-		
-//		SDF2CMLConverter converter = new SDF2CMLConverter();
-		CMLCml molecules = new CMLCml();
-		try {
-			//FIXME
-			//molecules = (CMLCml) converter.convertToXML(entity.getContent());
-			throw new RuntimeException("Problem loading class");
-		} catch (RuntimeException e) {
-			
-		}
-		EntityUtils.consume(entity);
-		response.close();
-		List<String> results = new ArrayList<String>();
-		for (CMLElement e : molecules.getChildCMLElements()) {
-			results.add(Morgan.createMorganStringFromMolecule((CMLMolecule) e));
+		return getDefaultService().getMorgans(search);
+	}
+	
+	private static synchronized PubChemLookupService getDefaultService() {
+		if (defaultService == null) {
+			defaultService = new PubChemLookupService();
 		}
-		return results;
+		return defaultService;
 	}
 	
 	public static void main(String[] args) throws ClientProtocolException, IOException {
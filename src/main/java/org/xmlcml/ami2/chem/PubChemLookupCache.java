@@ -0,0 +1,177 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * On-disk cache of the Morgan strings found in PubChem for compound names, used by PubChemLookupService.
+ * <p>
+ * Each name has a small JSON file holding the time it was looked up and its Morgan strings (none if PubChem
+ * does not know the name, so failed lookups are not repeated). Entries older than the time to live are
+ * ignored and deleted, as are entries from older versions of the cache. The entries are counted as they are
+ * written; when there are more than the maximum number the least recently used are deleted, down to
+ * {@link #EVICTION_TARGET} of the maximum, so the directory is only listed once per batch of lookups. Names are
+ * compared without regard to case or surrounding whitespace, as they are by PubChem.
+ *
+ * @author pm286
+ */
+class PubChemLookupCache {
+
+	private final static Logger LOG = Logger.getLogger(PubChemLookupCache.class);
+
+	private final static String SUFFIX = ".json";
+	/** 2: Morgan strings without hydrogen atoms, as made by MorganIndex.createKey() */
+	private final static int VERSION = 2;
+	/** fraction of the maximum number of entries left after eviction */
+	private final static double EVICTION_TARGET = 0.9;
+
+	private static class Entry {
+		int version;
+		String name;
+		long retrieved;
+		List<String> morgans;
+	}
+
+	private File directory;
+	private long timeToLive;
+	private int maximumEntries;
+	/** -1 until the directory is first listed */
+	private int entryCount = -1;
+	private Gson gson = new Gson();
+
+	/**
+	 * @param directory created if necessary
+	 * @param timeToLive in milliseconds
+	 * @param maximumEntries
+	 * @throws IOException if the directory cannot be created
+	 */
+	PubChemLookupCache(File directory, long timeToLive, int maximumEntries) throws IOException {
+		this.directory = directory;
+		this.timeToLive = timeToLive;
+		this.maximumEntries = maximumEntries;
+		FileUtils.forceMkdir(directory);
+	}
+
+	/**
+	 * @param name
+	 * @return the Morgan strings, or null if the name is not cached or its entry has expired
+	 */
+	synchronized List<String> get(String name) {
+		File file = getFile(name);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			Entry entry = gson.fromJson(FileUtils.readFileToString(file, "UTF-8"), Entry.class);
+			if (entry == null || entry.version != VERSION || entry.morgans == null || !normalize(name).equals(normalize(entry.name)) || System.currentTimeMillis() - entry.retrieved > timeToLive) {
+				delete(file);
+				return null;
+			}
+			file.setLastModified(System.currentTimeMillis());
+			return entry.morgans;
+		} catch (Exception e) {
+			LOG.debug("Discarding unreadable entry " + file + ": " + e);
+			delete(file);
+			return null;
+		}
+	}
+
+	synchronized void put(String name, List<String> morgans) {
+		Entry entry = new Entry();
+		entry.version = VERSION;
+		entry.name = name;
+		entry.retrieved = System.currentTimeMillis();
+		entry.morgans = new ArrayList<String>(morgans);
+		File file = getFile(name);
+		boolean isNew = !file.exists();
+		try {
+			FileUtils.write(file, gson.toJson(entry), "UTF-8");
+		} catch (IOException e) {
+			LOG.warn("Cannot cache PubChem result for " + name + ": " + e);
+			return;
+		}
+		if (isNew && entryCount >= 0) {
+			entryCount++;
+		}
+		if (entryCount < 0 || entryCount > maximumEntries) {
+			evict();
+		}
+	}
+
+	synchronized void clear() throws IOException {
+		FileUtils.cleanDirectory(directory);
+		entryCount = 0;
+	}
+
+	private void delete(File file) {
+		if (FileUtils.deleteQuietly(file) && entryCount > 0) {
+			entryCount--;
+		}
+	}
+
+	/**
+	 * Counts the entries (which may have been changed by another process) and, if there are too many,
+	 * deletes the least recently used down to the target.
+	 */
+	private void evict() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		entryCount = files.length;
+		if (entryCount <= maximumEntries) {
+			return;
+		}
+		List<File> entries = new ArrayList<File>(Arrays.asList(files));
+		final long[] lastModified = new long[entries.size()];
+		List<Integer> order = new ArrayList<Integer>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			lastModified[i] = entries.get(i).lastModified();
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i, Integer j) {
+				return (lastModified[i] < lastModified[j] ? -1 : (lastModified[i] == lastModified[j] ? 0 : 1));
+			}
+		});
+		int target = (int) (maximumEntries * EVICTION_TARGET);
+		for (int i = 0; i < order.size() - target; i++) {
+			delete(entries.get(order.get(i)));
+		}
+		LOG.debug("Evicted PubChem cache entries down to " + entryCount);
+	}
+
+	private File getFile(String name) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(normalize(name).getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return new File(directory, sb.toString() + SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 is not available", e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String normalize(String name) {
+		return (name == null ? "" : name.trim().toLowerCase(Locale.ENGLISH));
+	}
+
+}
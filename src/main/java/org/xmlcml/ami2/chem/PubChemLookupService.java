@@ -0,0 +1,253 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * Finds the Morgan strings of the compounds PubChem has for names, using PUG-REST.
+ * <p>
+ * One pooled HTTP client is shared by all lookups (and threads) until {@link #close()}. Each name not in the
+ * cache is resolved to CIDs (PUG-REST takes one name per request), then the records of all the new CIDs are
+ * fetched as SDF in list queries of up to {@link #MAXIMUM_CIDS_PER_REQUEST} and converted to CML. The Morgan
+ * strings are made by MorganIndex.createKey(), without hydrogen atoms, so they can be compared with those of
+ * molecules from MoleculeCreator. Requests are spaced by a minimum interval to keep within PubChem's limits.
+ * <p>
+ * Results (including names PubChem does not know) can be kept in an on-disk cache with a time to live and
+ * a maximum number of entries. The base URL can be changed, e.g. to a local server for tests.
+ *
+ * @author pm286
+ */
+public class PubChemLookupService implements Closeable {
+
+	private final static Logger LOG = Logger.getLogger(PubChemLookupService.class);
+
+	public final static String DEFAULT_BASE_URL = "https://pubchem.ncbi.nlm.nih.gov/rest/pug";
+	public final static int MAXIMUM_CIDS_PER_REQUEST = 100;
+	public final static long DEFAULT_TIME_TO_LIVE = 30L * 24 * 60 * 60 * 1000;
+	public final static int DEFAULT_MAXIMUM_CACHE_ENTRIES = 100000;
+	/** PubChem asks for no more than 5 requests a second */
+	public final static long DEFAULT_MINIMUM_REQUEST_INTERVAL = 200;
+
+	private final static int MAXIMUM_CONNECTIONS = 8;
+	private final static int TIMEOUT = 30000;
+	private final static int NOT_FOUND = 404;
+
+	private String baseUrl;
+	private PubChemLookupCache cache;
+	private CloseableHttpClient httpClient;
+	private long minimumRequestInterval = DEFAULT_MINIMUM_REQUEST_INTERVAL;
+	private long lastRequest;
+
+	/**
+	 * Uses PubChem without a cache.
+	 */
+	public PubChemLookupService() {
+		this(DEFAULT_BASE_URL);
+	}
+
+	/**
+	 * @param baseUrl of PUG-REST, e.g. {@link #DEFAULT_BASE_URL} or http://localhost:8080/rest/pug
+	 */
+	public PubChemLookupService(String baseUrl) {
+		this.baseUrl = (baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl);
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(MAXIMUM_CONNECTIONS);
+		connectionManager.setDefaultMaxPerRoute(MAXIMUM_CONNECTIONS);
+		RequestConfig config = RequestConfig.custom().setConnectTimeout(TIMEOUT).setSocketTimeout(TIMEOUT).build();
+		httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(config).build();
+	}
+
+	/**
+	 * @param baseUrl of PUG-REST
+	 * @param cacheDirectory for the results (created if necessary)
+	 * @param timeToLive of cached results in milliseconds
+	 * @param maximumCacheEntries
+	 * @throws IOException if the cache directory cannot be created
+	 */
+	public PubChemLookupService(String baseUrl, File cacheDirectory, long timeToLive, int maximumCacheEntries) throws IOException {
+		this(baseUrl);
+		cache = new PubChemLookupCache(cacheDirectory, timeToLive, maximumCacheEntries);
+	}
+
+	public PubChemLookupService(File cacheDirectory) throws IOException {
+		this(DEFAULT_BASE_URL, cacheDirectory, DEFAULT_TIME_TO_LIVE, DEFAULT_MAXIMUM_CACHE_ENTRIES);
+	}
+
+	/**
+	 * @param minimumRequestInterval in milliseconds (0 for none, e.g. with a local server)
+	 */
+	public void setMinimumRequestInterval(long minimumRequestInterval) {
+		this.minimumRequestInterval = minimumRequestInterval;
+	}
+
+	/**
+	 * @param name
+	 * @return Morgan strings of the compounds with the name (empty if there are none)
+	 * @throws IOException if PubChem cannot be reached or returns an error
+	 */
+	public List<String> getMorgans(String name) throws IOException {
+		return getMorgans(Collections.singletonList(name)).get(name);
+	}
+
+	/**
+	 * @param names
+	 * @return Morgan strings of the compounds with each name, in the order of the names
+	 * @throws IOException if PubChem cannot be reached or returns an error
+	 */
+	public Map<String, List<String>> getMorgans(Collection<String> names) throws IOException {
+		Map<String, List<String>> morgansByName = new LinkedHashMap<String, List<String>>();
+		Map<String, List<String>> cidsByName = new LinkedHashMap<String, List<String>>();
+		List<String> cids = new ArrayList<String>();
+		for (String name : names) {
+			if (morgansByName.containsKey(name) || cidsByName.containsKey(name)) {
+				continue;
+			}
+			List<String> cached = (cache == null ? null : cache.get(name));
+			if (cached != null) {
+				morgansByName.put(name, cached);
+				continue;
+			}
+			List<String> cidsForName = getCIDs(name);
+			cidsByName.put(name, cidsForName);
+			for (String cid : cidsForName) {
+				if (!cids.contains(cid)) {
+					cids.add(cid);
+				}
+			}
+		}
+		Map<String, String> morganByCID = new LinkedHashMap<String, String>();
+		for (int i = 0; i < cids.size(); i += MAXIMUM_CIDS_PER_REQUEST) {
+			List<String> batch = cids.subList(i, Math.min(cids.size(), i + MAXIMUM_CIDS_PER_REQUEST));
+			for (Map.Entry<String, CMLMolecule> entry : getMolecules(batch).entrySet()) {
+				morganByCID.put(entry.getKey(), MorganIndex.createKey(entry.getValue()));
+			}
+		}
+		for (Map.Entry<String, List<String>> entry : cidsByName.entrySet()) {
+			List<String> morgans = new ArrayList<String>();
+			for (String cid : entry.getValue()) {
+				String morgan = morganByCID.get(cid);
+				if (morgan != null) {
+					morgans.add(morgan);
+				}
+			}
+			morgansByName.put(entry.getKey(), morgans);
+			if (cache != null) {
+				cache.put(entry.getKey(), morgans);
+			}
+		}
+		Map<String, List<String>> results = new LinkedHashMap<String, List<String>>();
+		for (String name : names) {
+			results.put(name, morgansByName.get(name));
+		}
+		return results;
+	}
+
+	/**
+	 * Closes the HTTP client and its connections.
+	 */
+	public void close() throws IOException {
+		httpClient.close();
+	}
+
+	private List<String> getCIDs(String name) throws IOException {
+		String response = post("/compound/name/cids/TXT", "name", name);
+		List<String> cids = new ArrayList<String>();
+		if (response != null) {
+			for (String line : response.split("\\s+")) {
+				if (line.length() > 0 && !"0".equals(line)) {
+					cids.add(line);
+				}
+			}
+		}
+		return cids;
+	}
+
+	private Map<String, CMLMolecule> getMolecules(List<String> cids) throws IOException {
+		StringBuilder list = new StringBuilder();
+		for (String cid : cids) {
+			list.append(list.length() == 0 ? "" : ",");
+			list.append(cid);
+		}
+		String sdf = post("/compound/cid/SDF", "cid", list.toString());
+		return (sdf == null ? new LinkedHashMap<String, CMLMolecule>() : createMoleculesFromSDF(sdf));
+	}
+
+	/**
+	 * @return body of the response, or null if PubChem has nothing for the input
+	 */
+	private String post(String path, String parameter, String value) throws IOException {
+		waitForRequestInterval();
+		HttpPost httpPost = new HttpPost(baseUrl + path);
+		List<NameValuePair> parameters = new ArrayList<NameValuePair>(1);
+		parameters.add(new BasicNameValuePair(parameter, value));
+		httpPost.setEntity(new UrlEncodedFormEntity(parameters, "UTF-8"));
+		CloseableHttpResponse response = httpClient.execute(httpPost);
+		try {
+			HttpEntity entity = response.getEntity();
+			String body = (entity == null ? null : EntityUtils.toString(entity, "UTF-8"));
+			int status = response.getStatusLine().getStatusCode();
+			if (status == NOT_FOUND) {
+				LOG.trace("PubChem has nothing for " + parameter + " " + value);
+				return null;
+			} else if (status / 100 != 2) {
+				throw new IOException("PubChem returned " + response.getStatusLine() + " for " + parameter + " " + value);
+			}
+			return body;
+		} finally {
+			response.close();
+		}
+	}
+
+	private synchronized void waitForRequestInterval() throws IOException {
+		long wait = lastRequest + minimumRequestInterval - System.currentTimeMillis();
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for PubChem");
+			}
+		}
+		lastRequest = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param sdf
+	 * @return molecules by CID (from the PUBCHEM_COMPOUND_CID data item, or the title line)
+	 * @throws IOException if a record cannot be read
+	 */
+	static Map<String, CMLMolecule> createMoleculesFromSDF(String sdf) throws IOException {
+		Map<String, CMLMolecule> molecules = new LinkedHashMap<String, CMLMolecule>();
+		SDFReader reader = new SDFReader(new BufferedReader(new StringReader(sdf)));
+		CMLMolecule molecule;
+		while ((molecule = reader.read()) != null) {
+			molecule.setId("pubchem.cid." + reader.getIdentifier());
+			molecules.put(reader.getIdentifier(), molecule);
+		}
+		return molecules;
+	}
+
+}
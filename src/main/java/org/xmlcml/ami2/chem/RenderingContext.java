@@ -0,0 +1,138 @@
+package org.xmlcml.ami2.chem;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.Logger;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.layout.StructureDiagramGenerator;
+import org.openscience.cdk.renderer.AtomContainerRenderer;
+import org.openscience.cdk.renderer.RendererModel;
+import org.openscience.cdk.renderer.font.AWTFontManager;
+import org.openscience.cdk.renderer.generators.BasicAtomGenerator;
+import org.openscience.cdk.renderer.generators.BasicBondGenerator;
+import org.openscience.cdk.renderer.generators.BasicSceneGenerator;
+import org.openscience.cdk.renderer.generators.IGenerator;
+import org.openscience.cdk.renderer.visitor.AWTDrawVisitor;
+import org.xmlcml.graphics.svg.SVGUtil;
+
+import uk.ac.cam.ch.ucc.svggraphics2d.SVGRenderer;
+
+/**
+ * The CDK objects needed to lay out and draw a molecule as SVG and PNG.
+ * <p>
+ * Creating the generators, renderer, font manager and image is expensive compared with drawing a small
+ * molecule, so one context is kept per thread (see CDKConverter) and reused. A context is not thread-safe.
+ * <p>
+ * Each molecule gets one layout (coordinates, renderer setup and zoom) which is then painted to both outputs.
+ *
+ * @author pm286
+ */
+class RenderingContext {
+
+	private final static Logger LOG = Logger.getLogger(RenderingContext.class);
+
+	private StructureDiagramGenerator sdg;
+	private AtomContainerRenderer renderer;
+	private BufferedImage image;
+
+	RenderingContext() {
+		sdg = new StructureDiagramGenerator();
+		List<IGenerator<IAtomContainer>> generators = new ArrayList<IGenerator<IAtomContainer>>();
+		generators.add(new BasicSceneGenerator());
+		generators.add(new BasicBondGenerator());
+		generators.add(new BasicAtomGenerator());
+		RendererModel model = new RendererModel();
+		for (IGenerator<IAtomContainer> generator : generators) {
+			model.registerParameters(generator);
+		}
+		//model.set(ShowExplicitHydrogens.class, false);
+		renderer = new AtomContainerRenderer(model, generators, new AWTFontManager());
+	}
+
+	/**
+	 * Writes filename.svg and filename.png.
+	 *
+	 * @param cdkMol
+	 * @param filename base name of the outputs
+	 * @param width of the image
+	 * @param height of the image
+	 * @throws IOException
+	 */
+	void outputSVGAndPNG(IAtomContainer cdkMol, String filename, int width, int height) throws IOException {
+		output(cdkMol, filename, width, height, true);
+	}
+
+	/**
+	 * Writes filename.svg and, if asked, filename.png; without the PNG no image is painted or encoded.
+	 *
+	 * @param cdkMol
+	 * @param filename base name of the outputs
+	 * @param width of the image
+	 * @param height of the image
+	 * @param png whether to write the PNG
+	 * @throws IOException
+	 */
+	void output(IAtomContainer cdkMol, String filename, int width, int height, boolean png) throws IOException {
+		cdkMol = layOut(cdkMol);
+		Rectangle drawArea = new Rectangle(width, height);
+		renderer.setup(cdkMol, drawArea);
+		Rectangle bounds = renderer.calculateDiagramBounds(cdkMol);
+		renderer.setZoomToFit(drawArea.width, drawArea.height, bounds.width, bounds.height);
+
+		Graphics2D g2 = getImage(width, height).createGraphics();
+		try {
+			SVGRenderer svgR = new SVGRenderer(g2);
+			renderer.paint(cdkMol, new AWTDrawVisitor(svgR));
+			OutputStream svgStream = new BufferedOutputStream(new FileOutputStream(new File(filename + ".svg")));
+			try {
+				SVGUtil.debug(svgR.getSVG(), svgStream, 0);
+			} finally {
+				svgStream.close();
+			}
+			if (!png) {
+				return;
+			}
+			g2.setColor(Color.WHITE);
+			g2.fillRect(0, 0, width, height);
+			renderer.paint(cdkMol, new AWTDrawVisitor(g2));
+		} finally {
+			g2.dispose();
+		}
+		OutputStream pngStream = new BufferedOutputStream(new FileOutputStream(new File(filename + ".png")));
+		try {
+			ImageIO.write(image, "png", pngStream);
+		} finally {
+			pngStream.close();
+		}
+	}
+
+	private IAtomContainer layOut(IAtomContainer cdkMol) {
+		sdg.setMolecule(cdkMol);
+		try {
+			sdg.generateCoordinates();
+		} catch (Exception e) {
+			LOG.debug("Could not generate coordinates: " + e);
+		}
+		return sdg.getMolecule();
+	}
+
+	private BufferedImage getImage(int width, int height) {
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		return image;
+	}
+
+}
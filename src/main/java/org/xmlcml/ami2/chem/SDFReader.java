@@ -0,0 +1,110 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLMolecule;
+
+/**
+ * Reads the molecules of V2000 SDF records one at a time: elements, 2D coordinates, charges and bond orders.
+ * <p>
+ * Used for PubChem responses and for dumps of any size, as only the current record is held. Data items
+ * other than the PubChem CID are skipped.
+ *
+ * @author pm286
+ */
+class SDFReader {
+
+	private final static String END_OF_RECORD = "$$$$";
+	private final static String CHARGE_LINE = "M  CHG";
+	private final static String CID_DATA_ITEM = "> <PUBCHEM_COMPOUND_CID>";
+
+	private BufferedReader reader;
+	private String identifier;
+
+	SDFReader(BufferedReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return the next molecule, or null at the end of the input
+	 * @throws IOException if the record cannot be read
+	 */
+	CMLMolecule read() throws IOException {
+		String title = reader.readLine();
+		if (title == null) {
+			return null;
+		}
+		reader.readLine();
+		reader.readLine();
+		String counts = reader.readLine();
+		if (counts == null) {
+			//trailing blank lines
+			return null;
+		}
+		try {
+			int numberOfAtoms = Integer.parseInt(counts.substring(0, 3).trim());
+			int numberOfBonds = Integer.parseInt(counts.substring(3, 6).trim());
+			CMLMolecule molecule = new CMLMolecule();
+			List<CMLAtom> atoms = new ArrayList<CMLAtom>(numberOfAtoms);
+			for (int i = 0; i < numberOfAtoms; i++) {
+				String line = reader.readLine();
+				CMLAtom atom = new CMLAtom("a" + (i + 1));
+				atom.setX2(Double.parseDouble(line.substring(0, 10).trim()));
+				atom.setY2(Double.parseDouble(line.substring(10, 20).trim()));
+				atom.setElementType(line.substring(31, Math.min(34, line.length())).trim());
+				int chargeCode = (line.length() >= 39 ? Integer.parseInt(line.substring(36, 39).trim()) : 0);
+				if (chargeCode > 0 && chargeCode != 4) {
+					atom.setFormalCharge(4 - chargeCode);
+				}
+				molecule.addAtom(atom);
+				atoms.add(atom);
+			}
+			for (int i = 0; i < numberOfBonds; i++) {
+				String line = reader.readLine();
+				CMLBond bond = new CMLBond(atoms.get(Integer.parseInt(line.substring(0, 3).trim()) - 1), atoms.get(Integer.parseInt(line.substring(3, 6).trim()) - 1));
+				int type = Integer.parseInt(line.substring(6, 9).trim());
+				bond.setOrder(type == 2 ? CMLBond.DOUBLE_D : (type == 3 ? CMLBond.TRIPLE_T : (type == 4 ? CMLBond.AROMATIC : CMLBond.SINGLE_S)));
+				molecule.addBond(bond);
+			}
+			identifier = title.trim();
+			String line;
+			boolean chargesReset = false;
+			while ((line = reader.readLine()) != null && !line.startsWith(END_OF_RECORD)) {
+				if (line.startsWith(CHARGE_LINE)) {
+					if (!chargesReset) {
+						//CHG lines supersede the charges of the atom block
+						for (CMLAtom atom : atoms) {
+							atom.setFormalCharge(0);
+						}
+						chargesReset = true;
+					}
+					String[] fields = line.substring(CHARGE_LINE.length()).trim().split("\\s+");
+					for (int i = 1; i + 1 < fields.length; i += 2) {
+						atoms.get(Integer.parseInt(fields[i]) - 1).setFormalCharge(Integer.parseInt(fields[i + 1]));
+					}
+				} else if (line.startsWith(CID_DATA_ITEM)) {
+					String value = reader.readLine();
+					if (value != null && value.trim().length() > 0) {
+						identifier = value.trim();
+					}
+				}
+			}
+			return molecule;
+		} catch (RuntimeException e) {
+			throw new IOException("Cannot read SDF record " + title + ": " + e);
+		}
+	}
+
+	/**
+	 * @return identifier of the last molecule read: the PUBCHEM_COMPOUND_CID data item if there is one, else the title
+	 */
+	String getIdentifier() {
+		return identifier;
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Wall time and element counts for the stages of one ChemistryBuilder/MoleculeCreator run.
+ * <p>
+ * A stage that is run more than once (e.g. for molecules and then reactions) accumulates its time
+ * and number of calls; the count is that of the last call. Not thread-safe; each run has its own.
+ *
+ * @author pm286
+ */
+public class StageMetrics {
+
+	public enum Stage {
+		OCR("ocr", "images"),
+		TEXT_SPLITTING("textSplitting", "characters"),
+		HATCH_DETECTION("hatchDetection", "hatchedBonds"),
+		UNSATURATED_BONDS("unsaturatedBonds", "doubleBonds"),
+		JOINABLE_CREATION("joinableCreation", "joinables"),
+		JUNCTION_UNION_FIND("junctionUnionFind", "junctions"),
+		MOLECULE_ASSEMBLY("moleculeAssembly", "molecules"),
+		LABEL_STITCHING("labelStitching", "labels"),
+		REACTIONS("reactions", "reactions");
+
+		private String name;
+		private String countName;
+
+		private Stage(String name, String countName) {
+			this.name = name;
+			this.countName = countName;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getCountName() {
+			return countName;
+		}
+	}
+
+	private static class StageRecord {
+		long nanos;
+		int calls;
+		int count;
+	}
+
+	private String title;
+	private Map<Stage, StageRecord> records = new EnumMap<Stage, StageRecord>(Stage.class);
+
+	public StageMetrics() {
+	}
+
+	/**
+	 * @param title usually the name of the input file
+	 */
+	public StageMetrics(String title) {
+		this.title = title;
+	}
+
+	/**
+	 * @return start time to pass to {@link #record(Stage, long, int)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a call of a stage.
+	 *
+	 * @param stage
+	 * @param start from {@link #start()}
+	 * @param count number of elements the stage produced or processed
+	 */
+	public void record(Stage stage, long start, int count) {
+		StageRecord record = records.get(stage);
+		if (record == null) {
+			record = new StageRecord();
+			records.put(stage, record);
+		}
+		record.nanos += System.nanoTime() - start;
+		record.calls++;
+		record.count = count;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	/**
+	 * @param stage
+	 * @return total wall time in milliseconds (0 if the stage was not run)
+	 */
+	public double getMilliseconds(Stage stage) {
+		StageRecord record = records.get(stage);
+		return (record == null ? 0 : record.nanos / 1.0E6);
+	}
+
+	/**
+	 * @param stage
+	 * @return count from the last call (0 if the stage was not run)
+	 */
+	public int getCount(Stage stage) {
+		StageRecord record = records.get(stage);
+		return (record == null ? 0 : record.count);
+	}
+
+	public double getTotalMilliseconds() {
+		long nanos = 0;
+		for (StageRecord record : records.values()) {
+			nanos += record.nanos;
+		}
+		return nanos / 1.0E6;
+	}
+
+	/**
+	 * @return e.g. {"title": "image.g.2.10.svg", "totalMillis": 12.3, "stages": {"ocr": {"millis": 0.1, "calls": 1, "images": 0}, ...}}
+	 */
+	public JsonObject toJSON() {
+		JsonObject json = new JsonObject();
+		if (title != null) {
+			json.addProperty("title", title);
+		}
+		json.addProperty("totalMillis", getTotalMilliseconds());
+		JsonObject stages = new JsonObject();
+		for (Entry<Stage, StageRecord> entry : records.entrySet()) {
+			JsonObject stage = new JsonObject();
+			stage.addProperty("millis", entry.getValue().nanos / 1.0E6);
+			stage.addProperty("calls", entry.getValue().calls);
+			stage.addProperty(entry.getKey().getCountName(), entry.getValue().count);
+			stages.add(entry.getKey().getName(), stage);
+		}
+		json.add("stages", stages);
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toJSON().toString();
+	}
+
+	/**
+	 * Writes the metrics of several runs (e.g. the SVG files of a CTree) as a JSON array.
+	 *
+	 * @param metricsList
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void writeJSON(Collection<StageMetrics> metricsList, File file) throws IOException {
+		JsonArray array = new JsonArray();
+		for (StageMetrics metrics : metricsList) {
+			array.add(metrics.toJSON());
+		}
+		FileUtils.write(file, new GsonBuilder().setPrettyPrinting().create().toJson(array), "UTF-8");
+	}
+
+}
@@ -0,0 +1,183 @@
+package org.xmlcml.ami2.chem;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Decodes the linked images of text used by ChemistryBuilder.replaceTextImagesWithText().
+ * <p>
+ * Files are read and hashed as they are added, so an image used many times (e.g. the same glyph
+ * all over a scanned figure) is decoded and flipped once. The distinct images are then decoded
+ * on an executor, by default one pool shared by all decoders in the JVM, so builders running on
+ * several threads (e.g. with --gc.threads) do not each start their own pool. OCR itself is left
+ * to the caller, in document order, as the OCRManager is not thread-safe and its results depend
+ * on the order of scanning.
+ *
+ * @author pm286
+ */
+class TextImageDecoder {
+
+	private final static String DIGEST = "MD5";
+
+	private static ExecutorService sharedExecutor;
+
+	private ExecutorService executor;
+	private Map<String, byte[]> bytesByKey = new LinkedHashMap<String, byte[]>();
+	private Map<String, Future<BufferedImage>> imagesByKey = new LinkedHashMap<String, Future<BufferedImage>>();
+	private Map<String, Integer> usesByKey = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * @param executor on which images are decoded; not shut down by the decoder
+	 */
+	TextImageDecoder(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return pool of daemon threads, one for each processor, shared by all decoders
+	 */
+	static synchronized ExecutorService getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "text-image-decoder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+
+	/**
+	 * Reads and hashes a file; does not decode it.
+	 *
+	 * @param file
+	 * @return key of the content of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	String add(File file) throws IOException {
+		byte[] bytes = FileUtils.readFileToByteArray(file);
+		String key = createKey(bytes);
+		if (!bytesByKey.containsKey(key) && !imagesByKey.containsKey(key)) {
+			bytesByKey.put(key, bytes);
+		}
+		return key;
+	}
+
+	/**
+	 * Decodes and flips all the images added since the last call, in parallel, and waits for them.
+	 *
+	 * @throws InterruptedException
+	 */
+	void decode() throws InterruptedException {
+		if (bytesByKey.isEmpty()) {
+			return;
+		}
+		List<Future<BufferedImage>> futures = new ArrayList<Future<BufferedImage>>();
+		for (Map.Entry<String, byte[]> entry : bytesByKey.entrySet()) {
+			final byte[] bytes = entry.getValue();
+			Future<BufferedImage> future = executor.submit(new Callable<BufferedImage>() {
+				public BufferedImage call() throws IOException {
+					return flipHorizontally(ImageIO.read(new ByteArrayInputStream(bytes)));
+				}
+			});
+			imagesByKey.put(entry.getKey(), future);
+			futures.add(future);
+		}
+		bytesByKey.clear();
+		try {
+			for (Future<BufferedImage> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					//reported by getImage()
+				}
+			}
+		} catch (InterruptedException e) {
+			//the executor is shared, so only this decoder's work is cancelled
+			for (Future<BufferedImage> future : futures) {
+				future.cancel(true);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @param key from {@link #add(File)}, after {@link #decode()}
+	 * @return the flipped image; each use after the first gets its own copy so that callers may alter it
+	 * @throws IOException if the image could not be decoded
+	 * @throws RuntimeException for other failures (e.g. an unknown format)
+	 */
+	BufferedImage getImage(String key) throws IOException {
+		Future<BufferedImage> future = imagesByKey.get(key);
+		if (future == null) {
+			throw new IllegalStateException("Image has not been decoded: " + key);
+		}
+		BufferedImage image;
+		try {
+			image = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while decoding image", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		Integer uses = usesByKey.get(key);
+		usesByKey.put(key, (uses == null ? 1 : uses + 1));
+		return (uses == null ? image : copy(image));
+	}
+
+	static BufferedImage flipHorizontally(BufferedImage img) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		BufferedImage dimg = new BufferedImage(w, h, img.getColorModel().getTransparency());
+		Graphics2D g = dimg.createGraphics();
+		g.drawImage(img, 0, 0, w, h, 0, h, w, 0, null);
+		g.dispose();
+		return dimg;
+	}
+
+	private static BufferedImage copy(BufferedImage img) {
+		return new BufferedImage(img.getColorModel(), img.copyData(null), img.isAlphaPremultiplied(), null);
+	}
+
+	private static String createKey(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance(DIGEST).digest(bytes);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(DIGEST + " is not available", e);
+		}
+	}
+
+}
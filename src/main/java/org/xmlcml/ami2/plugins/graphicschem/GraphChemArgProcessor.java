@@ -2,15 +2,35 @@ package org.xmlcml.ami2.plugins.graphicschem;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import nu.xom.Attribute;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.xmlcml.ami2.chem.ChemOutput;
+import org.xmlcml.ami2.chem.ChemRecordWriter;
 import org.xmlcml.ami2.chem.ChemistryBuilder;
+import org.xmlcml.ami2.chem.ChemistryResultCache;
 import org.xmlcml.ami2.chem.MoleculeCreator;
+import org.xmlcml.ami2.chem.MoleculeCreatorParameters;
+import org.xmlcml.ami2.chem.MorganIndex;
+import org.xmlcml.ami2.chem.StageMetrics;
 import org.xmlcml.ami2.chem.svg.SVGContainerNew;
 import org.xmlcml.ami2.plugins.AMIArgProcessor;
 import org.xmlcml.cmine.args.ArgIterator;
@@ -19,9 +39,12 @@ import org.xmlcml.cmine.files.CTree;
 import org.xmlcml.cmine.files.CTreeFiles;
 import org.xmlcml.cmine.files.ResultElement;
 import org.xmlcml.cmine.files.ResultContainerElement;
+import org.xmlcml.cml.base.CMLUtil;
 import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.element.CMLReaction;
 import org.xmlcml.graphics.svg.SVGElement;
 import org.xmlcml.graphics.svg.SVGUtil;
+import org.xmlcml.xml.XMLUtil;
 
 /** 
  * Processes command-line arguments.
@@ -32,8 +55,14 @@ public class GraphChemArgProcessor extends AMIArgProcessor {
 	
 	public static final Logger LOG = Logger.getLogger(GraphChemArgProcessor.class);
 	private List<String> params;
-	private SVGElement inputSvg;
-	private ArrayList<CMLMolecule> molecules = new ArrayList<CMLMolecule>();
+	private int threads = 1;
+	private long timeout = DEFAULT_TIMEOUT;
+	private boolean streaming = false;
+	private ChemistryResultCache cache;
+	private MorganIndex index;
+	private ChemOutput.Format format;
+	private boolean records = false;
+	private List<StageMetrics> metricsList = new ArrayList<StageMetrics>();
 	
 	static {
 		LOG.setLevel(Level.DEBUG);
@@ -41,6 +70,16 @@ public class GraphChemArgProcessor extends AMIArgProcessor {
 
 	//Shouldn't be required; fails to be inherited on Jenkins
 	private static String WHITESPACE = "\\s+";
+
+	private final static String GRAPHICAL_CHEMISTRY = "graphicalchemistry";
+	private final static String METRICS_JSON = "metrics.json";
+	private final static String RESULTS_XML = "results.xml";
+	private final static String RECORDS_JSONL = "records.jsonl";
+	private final static String COMPOUNDS = "compounds";
+	private final static String REACTION = "reaction";
+	private final static String MOLECULE = "molecule";
+	/** milliseconds a file may run for on a thread of runChemInParallel */
+	private final static long DEFAULT_TIMEOUT = 600000;
 	
 	public GraphChemArgProcessor() {
 		super();
@@ -62,32 +101,380 @@ public class GraphChemArgProcessor extends AMIArgProcessor {
 		LOG.debug("After parsing, arguments: " + params);
 	}
 	
+	/**
+	 * Sets the number of SVG files processed concurrently by runChem.
+	 * <p>
+	 * The default (1) processes them one at a time on the calling thread.
+	 */
+	public void parseThreads(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		threads = (tokens.size() == 0 ? 1 : Math.max(1, Integer.parseInt(tokens.get(0))));
+		LOG.debug("Threads for graphical chemistry: " + threads);
+	}
+	
+	/**
+	 * Sets the number of seconds an SVG file may run for when files are processed concurrently.
+	 * <p>
+	 * A file which takes longer is cancelled and skipped; the default is 600.
+	 */
+	public void parseTimeout(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		timeout = (tokens.size() == 0 ? DEFAULT_TIMEOUT : Math.max(1, Long.parseLong(tokens.get(0))) * 1000);
+		LOG.debug("Timeout for graphical chemistry: " + timeout + " ms");
+	}
+	
+	/**
+	 * Sets whether runChem writes the results of each SVG file as soon as it has been processed.
+	 * <p>
+	 * Without an argument streaming is turned on.
+	 */
+	public void parseStreaming(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		streaming = (tokens.size() == 0 ? true : Boolean.parseBoolean(tokens.get(0)));
+		LOG.debug("Streaming graphical chemistry: " + streaming);
+	}
+	
+	/**
+	 * Sets the directory (and optionally the size in megabytes) of a cache of results shared between CTrees.
+	 */
+	public void parseCache(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		if (tokens.size() == 0) {
+			LOG.error("No cache directory given");
+			return;
+		}
+		long maximumBytes = (tokens.size() > 1 ? Long.parseLong(tokens.get(1)) * 1024 * 1024 : ChemistryResultCache.DEFAULT_MAXIMUM_BYTES);
+		try {
+			cache = new ChemistryResultCache(new File(tokens.get(0)), maximumBytes, new MoleculeCreatorParameters());
+			cache.invalidateOtherConfigurations();
+		} catch (IOException e) {
+			LOG.error("Cannot use cache in " + tokens.get(0) + ": " + e);
+			cache = null;
+		}
+		LOG.debug("Cache for graphical chemistry: " + tokens.get(0));
+	}
+	
+	/**
+	 * Sets a Morgan index (made by MorganIndex.build()) against which the molecules found are matched.
+	 */
+	public void parseIndex(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		if (tokens.size() == 0) {
+			LOG.error("No Morgan index given");
+			return;
+		}
+		try {
+			index = new MorganIndex(new File(tokens.get(0)));
+		} catch (IOException e) {
+			LOG.error("Cannot use Morgan index " + tokens.get(0) + ": " + e);
+			index = null;
+		}
+	}
+	
+	/**
+	 * Sets the format (cml, cml_svg or full) in which the molecules and reactions of each SVG file are written as files.
+	 * <p>
+	 * Without this (or --gc.records) only results.xml is written.
+	 */
+	public void parseFormat(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		if (tokens.size() == 0) {
+			LOG.error("No format given");
+			return;
+		}
+		try {
+			format = ChemOutput.Format.valueOf(tokens.get(0).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LOG.error("Unknown format " + tokens.get(0) + "; use cml, cml_svg or full");
+			format = null;
+		}
+		LOG.debug("Format for graphical chemistry: " + format);
+	}
+	
+	/**
+	 * Sets whether the molecules and reactions of each SVG file are written as line-delimited JSON records.
+	 * <p>
+	 * Without an argument records are turned on; they are written with or without --gc.format.
+	 */
+	public void parseRecords(ArgumentOption option, ArgIterator argIterator) {
+		List<String> tokens = argIterator.createTokenListUpToNextNonDigitMinus(option);
+		records = (tokens.size() == 0 ? true : Boolean.parseBoolean(tokens.get(0)));
+		LOG.debug("Records for graphical chemistry: " + records);
+	}
+	
 	public void runChem(ArgumentOption option) {
 		ensureSectionElements();
 		CTreeFiles files = getCTree().extractCTreeFiles("**.svg");
+		metricsList = new ArrayList<StageMetrics>();
+		if (threads > 1) {
+			runChemInParallel(files);
+			return;
+		}
 		for (File file : files) {
 			LOG.trace("SVG file: " + file);
-			inputSvg = null;
+			if (streaming) {
+				runChemAndWriteResults(file, createMetrics(file));
+			} else {
+				getCurrentCTree().getOrCreateContentProcessor().addResultsElement(createResultsElement(file, createMetrics(file), null));
+			}
+		}
+	}
+
+	/**
+	 * Processes one SVG file and writes its results straight to results/graphicalchemistry/&lt;file name&gt;/results.xml.
+	 * <p>
+	 * Nothing but the metrics is kept, so the SVG, builders and molecules can be collected before the next file.
+	 * A file which fails is logged and skipped.
+	 */
+	private void runChemAndWriteResults(File file, StageMetrics metrics) {
+		try {
+			writeResultsElement(file, createResultsElement(file, metrics, null));
+		} catch (RuntimeException e) {
+			LOG.error("Cannot extract chemistry from " + file + ": " + e);
+		}
+	}
+
+	private void writeResultsElement(File file, ResultContainerElement resultsElement) {
+		File resultsFile = new File(getCurrentCTree().getDirectory(), "results/" + GRAPHICAL_CHEMISTRY + "/" + file.getName() + "/" + RESULTS_XML);
+		try {
+			FileUtils.write(resultsFile, resultsElement.toXML(), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot write results to " + resultsFile, e);
+		}
+	}
+
+	/**
+	 * Processes the SVG files on a fixed number of threads.
+	 * <p>
+	 * Results are added to the content processor in file order. A file which fails or
+	 * runs for longer than the timeout is logged and skipped without affecting the others.
+	 * The ChemistryBuilder of each file is given the timeout so that it gives up by itself;
+	 * a file which is cancelled writes nothing once it sees the interrupt, and the threads are
+	 * daemons so one which is still busy cannot keep the JVM alive.
+	 * <p>
+	 * When streaming, each file writes its own results as it finishes and nothing is held
+	 * for the content processor, so at most one file per thread is in memory.
+	 */
+	private void runChemInParallel(CTreeFiles files) {
+		List<File> fileList = new ArrayList<File>();
+		for (File file : files) {
+			fileList.add(file);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, fileList.size())), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final AtomicLongArray started = new AtomicLongArray(fileList.size());
+		try {
+			List<Future<ResultContainerElement>> futures = new ArrayList<Future<ResultContainerElement>>();
+			for (int i = 0; i < fileList.size(); i++) {
+				final File file = fileList.get(i);
+				final int index = i;
+				final StageMetrics metrics = createMetrics(file);
+				futures.add(executor.submit(new Callable<ResultContainerElement>() {
+					public ResultContainerElement call() {
+						started.set(index, System.currentTimeMillis());
+						LOG.trace("SVG file: " + file);
+						ResultContainerElement resultsElement = createResultsElement(file, metrics, timeout);
+						if (streaming) {
+							checkNotCancelled(file);
+							writeResultsElement(file, resultsElement);
+							return null;
+						}
+						return resultsElement;
+					}
+				}));
+			}
+			for (int i = 0; i < fileList.size(); i++) {
+				try {
+					ResultContainerElement resultsElement = getWithinTimeout(futures.get(i), started, i);
+					if (resultsElement != null) {
+						getCurrentCTree().getOrCreateContentProcessor().addResultsElement(resultsElement);
+					}
+				} catch (ExecutionException e) {
+					LOG.error("Cannot extract chemistry from " + fileList.get(i) + ": " + e.getCause());
+				} catch (TimeoutException e) {
+					futures.get(i).cancel(true);
+					LOG.error("Cancelled extraction of chemistry from " + fileList.get(i) + " after " + timeout + " ms");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while extracting chemistry", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for the result of a file until it has run for the timeout; time spent waiting
+	 * for a thread is not counted.
+	 * 
+	 * @param started times the files started (0 until then)
+	 * @throws TimeoutException if the file has run for longer than the timeout
+	 */
+	private <T> T getWithinTimeout(Future<T> future, AtomicLongArray started, int i) throws InterruptedException, ExecutionException, TimeoutException {
+		while (true) {
+			long start = started.get(i);
+			long wait = (start == 0 ? timeout : start + timeout - System.currentTimeMillis());
+			try {
+				return future.get(Math.max(1, wait), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				start = started.get(i);
+				if (start != 0 && System.currentTimeMillis() - start >= timeout) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops a file which runChemInParallel has cancelled (and reported as skipped) before it writes anything.
+	 */
+	private void checkNotCancelled(File file) {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new RuntimeException("Extraction of chemistry from " + file + " was cancelled");
+		}
+	}
+
+	private StageMetrics createMetrics(File file) {
+		StageMetrics metrics = new StageMetrics(file.getName());
+		metricsList.add(metrics);
+		return metrics;
+	}
+
+	/**
+	 * @param builderTimeout for the ChemistryBuilder in milliseconds; null for its default
+	 */
+	private ResultContainerElement createResultsElement(File file, StageMetrics metrics, Long builderTimeout) {
+		SVGElement inputSvg = null;
+		try {
+			InputStream is = new FileInputStream(file);
 			try {
-				inputSvg = SVGUtil.parseToSVGElement(new FileInputStream(file));
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException("Cannot read SVG file: " + file, e);
+				inputSvg = SVGUtil.parseToSVGElement(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot read SVG file: " + file, e);
+		}
+		String key = (cache == null ? null : cache.createKey(inputSvg));
+		Element page = (key == null ? null : cache.get(key));
+		if (page == null) {
+			ChemistryBuilder geometryBuilder = (builderTimeout == null ? new ChemistryBuilder(inputSvg) : new ChemistryBuilder(inputSvg, builderTimeout));
+			geometryBuilder.setMetrics(metrics);
+			page = new MoleculeCreator(geometryBuilder).getReactionsAndMolecules();
+			if (key != null) {
+				cache.put(key, page);
 			}
-			ChemistryBuilder geometryBuilder = new ChemistryBuilder(inputSvg);
-			MoleculeCreator moleculeCreator = new MoleculeCreator(geometryBuilder);
-			ResultContainerElement resultsElement = new ResultContainerElement();
-			for (CMLMolecule molecule : moleculeCreator.getMolecules()) {
-				ResultElement resultElement = new ResultElement();
-				resultElement.appendChild(molecule);
-				resultsElement.appendChild(resultElement);
-				resultsElement.setTitle(file.getName());
+		} else {
+			LOG.trace("Cached result for " + file);
+		}
+		if (format != null || records) {
+			checkNotCancelled(file);
+			writeChemFiles(file, page);
+		}
+		ResultContainerElement resultsElement = new ResultContainerElement();
+		for (Element element : XMLUtil.getQueryElements(page, "./cml:moleculeList/cml:molecule", CMLUtil.CML_XPATH)) {
+			CMLMolecule molecule = (CMLMolecule) element;
+			molecule.detach();
+			ResultElement resultElement = new ResultElement();
+			if (index != null) {
+				addCompounds(resultElement, index.getIdentifiers(molecule));
+			}
+			resultElement.appendChild(molecule);
+			resultsElement.appendChild(resultElement);
+			resultsElement.setTitle(file.getName());
+		}
+		return resultsElement;
+	}
+
+	/**
+	 * Writes the reactions and molecules of one SVG file to results/graphicalchemistry/&lt;file name&gt;/ in the
+	 * chosen format, on the calling thread (files are already processed in parallel with --gc.threads).
+	 * Drawings left out can be made later with ChemOutput.getImages().
+	 * <p>
+	 * With --gc.records they are also written, in order, to records.jsonl in the same directory.
+	 */
+	private void writeChemFiles(File file, Element page) {
+		File directory = new File(getCurrentCTree().getDirectory(), "results/" + GRAPHICAL_CHEMISTRY + "/" + file.getName());
+		directory.mkdirs();
+		List<CMLReaction> reactions = new ArrayList<CMLReaction>();
+		for (Element element : XMLUtil.getQueryElements(page, "./cml:reactionList/cml:reaction", CMLUtil.CML_XPATH)) {
+			reactions.add((CMLReaction) element);
+		}
+		List<CMLMolecule> molecules = new ArrayList<CMLMolecule>();
+		for (Element element : XMLUtil.getQueryElements(page, "./cml:moleculeList/cml:molecule", CMLUtil.CML_XPATH)) {
+			molecules.add((CMLMolecule) element);
+		}
+		ChemOutput chemOutput = new ChemOutput(directory);
+		if (format == null) {
+			chemOutput.setFormat(ChemOutput.Format.CML);
+			chemOutput.setWriteCML(false);
+		} else {
+			chemOutput.setFormat(format);
+		}
+		ChemRecordWriter recordWriter = null;
+		File recordsFile = new File(directory, RECORDS_JSONL);
+		try {
+			if (records) {
+				recordWriter = new ChemRecordWriter(recordsFile);
+				chemOutput.setRecordWriter(recordWriter);
+			}
+			chemOutput.outputReactions(reactions, REACTION);
+			chemOutput.outputMolecules(molecules, MOLECULE);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot write records to " + recordsFile, e);
+		} finally {
+			if (recordWriter != null) {
+				try {
+					recordWriter.close();
+				} catch (IOException e) {
+					LOG.error("Cannot close " + recordsFile + ": " + e);
+				}
 			}
-			getCurrentCTree().getOrCreateContentProcessor().addResultsElement(resultsElement);
 		}
+		if (chemOutput.getErrors().size() > 0) {
+			LOG.warn(chemOutput.getErrors().size() + " molecules or reactions were not written or drawn for " + file);
+		}
+	}
+
+	/**
+	 * Records the identifiers of the compounds matching a molecule as a space-separated attribute.
+	 */
+	private void addCompounds(ResultElement resultElement, List<String> identifiers) {
+		if (identifiers.size() == 0) {
+			return;
+		}
+		StringBuilder compounds = new StringBuilder();
+		for (String identifier : identifiers) {
+			compounds.append(compounds.length() == 0 ? "" : " ");
+			compounds.append(identifier);
+		}
+		resultElement.addAttribute(new Attribute(COMPOUNDS, compounds.toString()));
 	}
 
+	/**
+	 * Outputs the results held by the content processor (none when streaming, as they have already been written) and the metrics.
+	 */
 	public void outputChem(ArgumentOption option) {
-		getCurrentCTree().getOrCreateContentProcessor().createResultsDirectoriesAndOutputResultsElement("graphicalchemistry");
+		getCurrentCTree().getOrCreateContentProcessor().createResultsDirectoriesAndOutputResultsElement(GRAPHICAL_CHEMISTRY);
+		outputMetrics();
+	}
+
+	/**
+	 * Writes the stage timings and counts for each SVG file to results/graphicalchemistry/metrics.json.
+	 */
+	private void outputMetrics() {
+		File metricsFile = new File(getCurrentCTree().getDirectory(), "results/" + GRAPHICAL_CHEMISTRY + "/" + METRICS_JSON);
+		try {
+			StageMetrics.writeJSON(metricsList, metricsFile);
+		} catch (IOException e) {
+			LOG.error("Cannot write metrics to " + metricsFile + ": " + e);
+		}
 	}
 	
 	//=============================
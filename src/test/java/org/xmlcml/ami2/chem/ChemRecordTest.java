@@ -0,0 +1,164 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.cml.base.CMLAttribute;
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLBondStereo;
+import org.xmlcml.cml.element.CMLConditionList;
+import org.xmlcml.cml.element.CMLLabel;
+import org.xmlcml.cml.element.CMLMolecule;
+import org.xmlcml.cml.element.CMLReaction;
+import org.xmlcml.cml.element.CMLScalar;
+
+import com.google.gson.Gson;
+
+public class ChemRecordTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		CMLMolecule molecule = createMolecule("m1");
+		CMLReaction reaction = createReaction();
+		ChemRecord moleculeRecord = ChemRecord.createMolecule(molecule, "molecule0.cml");
+		ChemRecord reactionRecord = ChemRecord.createReaction(reaction, "reaction0.cml");
+
+		StringWriter stringWriter = new StringWriter();
+		ChemRecordWriter writer = new ChemRecordWriter(stringWriter);
+		writer.write(molecule, "molecule0.cml");
+		writer.write(reaction, "reaction0.cml");
+		writer.close();
+		String json = stringWriter.toString();
+		Assert.assertEquals(2, json.split("\n").length);
+
+		ChemRecordReader reader = new ChemRecordReader(new StringReader("\n" + json + "\n"));
+		ChemRecord readMolecule = reader.next();
+		ChemRecord readReaction = reader.next();
+		Assert.assertNull(reader.next());
+		reader.close();
+
+		Gson gson = new Gson();
+		Assert.assertEquals(gson.toJson(moleculeRecord), gson.toJson(readMolecule));
+		Assert.assertEquals(gson.toJson(reactionRecord), gson.toJson(readReaction));
+
+		Assert.assertTrue(readMolecule.isMolecule());
+		Assert.assertEquals("molecule0.cml", readMolecule.getFile());
+		Assert.assertEquals("m1", readMolecule.getId());
+		Assert.assertEquals("1a", readMolecule.getLabels().get(0).getValue());
+		Assert.assertEquals(3, readMolecule.getAtoms().size());
+		ChemRecord.Atom oxygen = readMolecule.getAtoms().get(2);
+		Assert.assertEquals("O", oxygen.getElementType());
+		Assert.assertEquals(3.0, oxygen.getX2(), 0);
+		Assert.assertEquals(-0.5, oxygen.getY2(), 0);
+		Assert.assertEquals(Integer.valueOf(-1), oxygen.getFormalCharge());
+		Assert.assertNull(readMolecule.getAtoms().get(0).getFormalCharge());
+		Assert.assertNull(readMolecule.getAtoms().get(0).getLabels());
+		Assert.assertEquals(2, readMolecule.getBonds().size());
+		Assert.assertEquals(Arrays.asList("a1", "a2"), readMolecule.getBonds().get(0).getAtoms());
+		Assert.assertEquals(CMLBond.SINGLE_S, readMolecule.getBonds().get(0).getOrder());
+		Assert.assertEquals(CMLBondStereo.WEDGE, readMolecule.getBonds().get(0).getStereo());
+		Assert.assertEquals(CMLBond.DOUBLE_D, readMolecule.getBonds().get(1).getOrder());
+		Assert.assertNull(readMolecule.getBonds().get(1).getStereo());
+		Assert.assertNull(readMolecule.getReactants());
+
+		Assert.assertTrue(readReaction.isReaction());
+		Assert.assertEquals(12.5, readReaction.getX2(), 0);
+		Assert.assertEquals("Multi-step", readReaction.getLabels().get(0).getValue());
+		Assert.assertEquals(1, readReaction.getConditions().size());
+		Assert.assertEquals("NaOH, H2O", readReaction.getConditions().get(0).getContent());
+		Assert.assertEquals("cml:enzyme", readReaction.getConditions().get(0).getDictRef());
+		Assert.assertEquals(1, readReaction.getReactants().size());
+		Assert.assertEquals("r1", readReaction.getReactants().get(0).getId());
+		Assert.assertEquals(3, readReaction.getReactants().get(0).getAtoms().size());
+		Assert.assertEquals("p1", readReaction.getProducts().get(0).getId());
+		Assert.assertNull(readReaction.getAtoms());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotARecord() throws IOException {
+		ChemRecordReader reader = new ChemRecordReader(new StringReader("{\"type\": \"molecule\"}\n[1, 2\n"));
+		Assert.assertTrue(reader.next().isMolecule());
+		reader.next();
+	}
+
+	@Test
+	public void testUnwritableRecordIsSkipped() throws IOException {
+		File directory = new File("target/chemrecord");
+		FileUtils.deleteQuietly(directory);
+		directory.mkdirs();
+		CMLMolecule bad = createMolecule("bad");
+		bad.getAtoms().get(0).addAttribute(new CMLAttribute("x2", "NaN"));
+		CMLMolecule good = createMolecule("good");
+		StringWriter stringWriter = new StringWriter();
+		ChemRecordWriter writer = new ChemRecordWriter(stringWriter);
+		ChemOutput output = new ChemOutput(directory);
+		output.setFormat(ChemOutput.Format.CML);
+		output.setWriteCML(false);
+		output.setRecordWriter(writer);
+		output.outputMolecules(Arrays.asList(bad, good), "molecule");
+		output.close();
+		writer.close();
+		Assert.assertEquals(1, output.getErrors().size());
+		Assert.assertTrue(output.getErrors().containsKey(new File(directory, "molecule0.cml")));
+		ChemRecordReader reader = new ChemRecordReader(new StringReader(stringWriter.toString()));
+		ChemRecord record = reader.next();
+		Assert.assertEquals("good", record.getId());
+		Assert.assertEquals("molecule1.cml", record.getFile());
+		Assert.assertNull(reader.next());
+	}
+
+	private static CMLMolecule createMolecule(String id) {
+		CMLMolecule molecule = new CMLMolecule();
+		molecule.setId(id);
+		CMLLabel label = new CMLLabel();
+		label.setCMLValue("1a");
+		molecule.addLabel(label);
+		String[] elements = {"C", "C", "O"};
+		for (int i = 0; i < elements.length; i++) {
+			CMLAtom atom = new CMLAtom("a" + (i + 1));
+			atom.setElementType(elements[i]);
+			atom.setX2(1.5 * i);
+			atom.setY2(-0.5 * (i % 2 == 0 ? i / 2 : 0));
+			molecule.addAtom(atom);
+		}
+		molecule.getAtoms().get(2).setFormalCharge(-1);
+		CMLBond single = new CMLBond(molecule.getAtoms().get(0), molecule.getAtoms().get(1));
+		single.setOrder(CMLBond.SINGLE_S);
+		CMLBondStereo stereo = new CMLBondStereo();
+		stereo.setXMLContent(CMLBondStereo.WEDGE);
+		single.setBondStereo(stereo);
+		molecule.addBond(single);
+		CMLBond doubleBond = new CMLBond(molecule.getAtoms().get(1), molecule.getAtoms().get(2));
+		doubleBond.setOrder(CMLBond.DOUBLE_D);
+		molecule.addBond(doubleBond);
+		return molecule;
+	}
+
+	private static CMLReaction createReaction() {
+		CMLReaction reaction = new CMLReaction();
+		reaction.setId("r0");
+		reaction.addAttribute(new CMLAttribute("x2", "12.5"));
+		reaction.addAttribute(new CMLAttribute("y2", "3.0"));
+		CMLLabel label = new CMLLabel();
+		label.setCMLValue("Multi-step");
+		reaction.addLabel(label);
+		CMLConditionList conditions = new CMLConditionList();
+		CMLScalar scalar = new CMLScalar("NaOH, H2O");
+		conditions.appendChild(scalar);
+		scalar.addAttribute(new CMLAttribute("x2", "12.5"));
+		scalar.addAttribute(new CMLAttribute("y2", "1.0"));
+		scalar.setDictRef("cml:enzyme");
+		reaction.addConditionList(conditions);
+		reaction.addReactant(createMolecule("r1"));
+		reaction.addProduct(createMolecule("p1"));
+		return reaction;
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlcml.ami2.chem.ChemistryPipeline.Stage;
+import org.xmlcml.euclid.Real2Range;
+import org.xmlcml.euclid.RealRange;
+import org.xmlcml.graphics.svg.SVGElement;
+import org.xmlcml.graphics.svg.SVGUtil;
+
+public class ChemistryPipelineTest {
+
+	private final static File SVG_FILE = new File("src/test/resources/org/xmlcml/ami2/graphchem/aspergillus_9/svg/image.g.2.10.svg");
+	private final static File TEST_DIR = new File("target/chemistrypipeline");
+	/** set on checkpoints so that rewriting them can be detected */
+	private final static long OLD_TIME = 1000000000000L;
+
+	private SVGElement input;
+	private File derivedPrimitives;
+	private File reactionsAndMolecules;
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteQuietly(TEST_DIR);
+		InputStream is = new FileInputStream(SVG_FILE);
+		try {
+			input = SVGUtil.parseToSVGElement(is);
+		} finally {
+			is.close();
+		}
+		derivedPrimitives = new File(TEST_DIR, ChemistryPipeline.DERIVED_PRIMITIVES_CHECKPOINT);
+		reactionsAndMolecules = new File(TEST_DIR, ChemistryPipeline.REACTIONS_AND_MOLECULES_CHECKPOINT);
+	}
+
+	@Test
+	public void testResumeFromCheckpoints() throws IOException {
+		ChemistryPipeline first = new ChemistryPipeline(input, new MoleculeCreatorParameters(), TEST_DIR);
+		String expected = first.getReactionsAndMolecules().toXML();
+		Assert.assertTrue(derivedPrimitives.exists());
+		Assert.assertTrue(reactionsAndMolecules.exists());
+
+		ChemistryPipeline second = new ChemistryPipeline(input, new MoleculeCreatorParameters(), TEST_DIR);
+		Assert.assertEquals(expected, second.getReactionsAndMolecules().toXML());
+		Assert.assertNull("read from the checkpoint", second.getChemistryBuilder());
+
+		FileUtils.deleteQuietly(reactionsAndMolecules);
+		derivedPrimitives.setLastModified(OLD_TIME);
+		ChemistryPipeline third = new ChemistryPipeline(input, new MoleculeCreatorParameters(), TEST_DIR);
+		//coordinates may be rounded in the saved primitives, so only the numbers are compared
+		Assert.assertEquals(first.getMolecules().size(), third.getMolecules().size());
+		Assert.assertEquals(first.getReactions().size(), third.getReactions().size());
+		Assert.assertNotNull(third.getChemistryBuilder());
+		Assert.assertEquals("derived primitives not remade", OLD_TIME, derivedPrimitives.lastModified());
+	}
+
+	@Test
+	public void testInvalidateFromMoleculesKeepsDerivedPrimitives() throws IOException {
+		ChemistryPipeline pipeline = new ChemistryPipeline(input, new MoleculeCreatorParameters(), TEST_DIR);
+		pipeline.runTo(Stage.REACTIONS);
+		String configuration = readConfiguration(ChemistryPipeline.REACTIONS_AND_MOLECULES_CHECKPOINT);
+		derivedPrimitives.setLastModified(OLD_TIME);
+
+		pipeline.setParameters(createParametersWithOtherMoleculeSize());
+		pipeline.invalidateFrom(Stage.MOLECULES);
+		Assert.assertEquals(Stage.JUNCTIONS, pipeline.getLastCompletedStage());
+		Assert.assertFalse(reactionsAndMolecules.exists());
+		pipeline.runTo(Stage.REACTIONS);
+		Assert.assertEquals(Stage.REACTIONS, pipeline.getLastCompletedStage());
+		Assert.assertTrue(reactionsAndMolecules.exists());
+		Assert.assertFalse(configuration.equals(readConfiguration(ChemistryPipeline.REACTIONS_AND_MOLECULES_CHECKPOINT)));
+		Assert.assertEquals(OLD_TIME, derivedPrimitives.lastModified());
+
+		//a later run with only other molecule parameters reuses the saved derived primitives
+		FileUtils.deleteQuietly(reactionsAndMolecules);
+		ChemistryPipeline later = new ChemistryPipeline(input, createParametersWithOtherMoleculeSize(), TEST_DIR);
+		later.runTo(Stage.REACTIONS);
+		Assert.assertNotNull(later.getChemistryBuilder());
+		Assert.assertEquals(OLD_TIME, derivedPrimitives.lastModified());
+	}
+
+	@Test
+	public void testOtherConfigurationDiscarded() throws IOException {
+		new ChemistryPipeline(input, new MoleculeCreatorParameters(), TEST_DIR).runTo(Stage.REACTIONS);
+		String configuration = readConfiguration(ChemistryPipeline.DERIVED_PRIMITIVES_CHECKPOINT);
+		derivedPrimitives.setLastModified(OLD_TIME);
+
+		MoleculeCreatorParameters parameters = new MoleculeCreatorParameters();
+		parameters.setStandardBondLength(parameters.getStandardBondLength() * 2);
+		ChemistryPipeline pipeline = new ChemistryPipeline(input, parameters, TEST_DIR);
+		pipeline.runTo(Stage.REACTIONS);
+		Assert.assertNotNull("molecules remade", pipeline.getChemistryBuilder());
+		Assert.assertFalse("derived primitives remade", OLD_TIME == derivedPrimitives.lastModified());
+		Assert.assertFalse(configuration.equals(readConfiguration(ChemistryPipeline.DERIVED_PRIMITIVES_CHECKPOINT)));
+
+		//an unknown configuration is treated as another one
+		FileUtils.write(new File(TEST_DIR, ChemistryPipeline.DERIVED_PRIMITIVES_CHECKPOINT + ".configuration"), "other", "UTF-8");
+		FileUtils.deleteQuietly(reactionsAndMolecules);
+		derivedPrimitives.setLastModified(OLD_TIME);
+		new ChemistryPipeline(input, parameters, TEST_DIR).runTo(Stage.DERIVED_PRIMITIVES);
+		Assert.assertFalse(OLD_TIME == derivedPrimitives.lastModified());
+	}
+
+	private static MoleculeCreatorParameters createParametersWithOtherMoleculeSize() {
+		MoleculeCreatorParameters parameters = new MoleculeCreatorParameters();
+		parameters.setStandardMoleculeSizeFromMolecules(Collections.singleton(new Real2Range(new RealRange(0, 100), new RealRange(0, 100))));
+		return parameters;
+	}
+
+	private static String readConfiguration(String checkpoint) throws IOException {
+		return FileUtils.readFileToString(new File(TEST_DIR, checkpoint + ".configuration"), "UTF-8");
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChemistryResultCacheTest {
+
+	private final static File TEST_DIR = new File("target/chemistryresultcache");
+	/** set on entries so that the order of use is known */
+	private final static long OLD_TIME = 1000000000000L;
+
+	private final static String SVG =
+			"<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:svgx=\"http://www.xml-cml.org/schema/svgx\"><g id=\"g1\">" +
+			"<line x1=\"0.0\" y1=\"0.0\" x2=\"10.0\" y2=\"0.0\" style=\"stroke:black;\"/>" +
+			"<text x=\"12.0\" y=\"3.0\" svgx:font=\"Helvetica\">OH</text>" +
+			"</g></svg>";
+	/** the same SVG with the attributes reordered, other quotes and namespace declarations, and an end tag */
+	private final static String REFORMATTED_SVG =
+			"<svg xmlns:svgx='http://www.xml-cml.org/schema/svgx'   xmlns='http://www.w3.org/2000/svg' ><g  id='g1' >" +
+			"<line style='stroke:black;' y2='0.0' x2='10.0' y1='0.0' x1='0.0' ></line>" +
+			"<text svgx:font='Helvetica' y='3.0' x='12.0'>OH</text>" +
+			"</g></svg>";
+	private final static String OTHER_SVG = SVG.replace("OH", "NH2");
+
+	@Before
+	public void setUp() {
+		FileUtils.deleteQuietly(TEST_DIR);
+	}
+
+	@Test
+	public void testHitAfterReformatting() throws Exception {
+		ChemistryResultCache cache = new ChemistryResultCache(TEST_DIR, new MoleculeCreatorParameters());
+		String key = cache.createKey(parse(SVG));
+		Assert.assertEquals(key, cache.createKey(parse(REFORMATTED_SVG)));
+		Assert.assertFalse(key.equals(cache.createKey(parse(OTHER_SVG))));
+
+		Assert.assertNull(cache.get(key));
+		cache.put(key, createPage("m1", 10));
+		Element page = cache.get(cache.createKey(parse(REFORMATTED_SVG)));
+		Assert.assertNotNull(page);
+		Assert.assertTrue(page.toXML().contains("id=\"m1\""));
+		Assert.assertNull(cache.get(cache.createKey(parse(OTHER_SVG))));
+		Assert.assertNotNull("kept on disk", new ChemistryResultCache(TEST_DIR, new MoleculeCreatorParameters()).get(key));
+	}
+
+	@Test
+	public void testMissAfterParameterChange() throws Exception {
+		ChemistryResultCache cache = new ChemistryResultCache(TEST_DIR, new MoleculeCreatorParameters());
+		String key = cache.createKey(parse(SVG));
+		cache.put(key, createPage("m1", 10));
+
+		MoleculeCreatorParameters parameters = new MoleculeCreatorParameters();
+		parameters.setStandardBondLength(parameters.getStandardBondLength() * 2);
+		ChemistryResultCache otherCache = new ChemistryResultCache(TEST_DIR, parameters);
+		Assert.assertEquals("keys depend only on the SVG", key, otherCache.createKey(parse(SVG)));
+		Assert.assertNull(otherCache.get(key));
+		Assert.assertNotNull(cache.get(key));
+		Assert.assertEquals(2, TEST_DIR.listFiles().length);
+
+		otherCache.invalidateOtherConfigurations();
+		Assert.assertEquals(1, TEST_DIR.listFiles().length);
+		Assert.assertNull(cache.get(key));
+		otherCache.put(key, createPage("m2", 10));
+		Assert.assertNotNull(otherCache.get(key));
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() throws Exception {
+		ChemistryResultCache sizing = new ChemistryResultCache(TEST_DIR, new MoleculeCreatorParameters());
+		sizing.put("size", createPage("m0", 100));
+		long entryBytes = findEntry("size").length();
+		sizing.clear();
+
+		ChemistryResultCache cache = new ChemistryResultCache(TEST_DIR, 2 * entryBytes + entryBytes / 2, new MoleculeCreatorParameters());
+		cache.put("key1", createPage("m1", 100));
+		cache.put("key2", createPage("m2", 100));
+		Assert.assertNotNull("no eviction within the bound", findEntry("key1"));
+		findEntry("key1").setLastModified(OLD_TIME);
+		findEntry("key2").setLastModified(OLD_TIME + 1000);
+		//used now, so most recent
+		Assert.assertNotNull(cache.get("key1"));
+
+		cache.put("key3", createPage("m3", 100));
+		Assert.assertNull(cache.get("key2"));
+		Assert.assertNotNull(cache.get("key1"));
+		Assert.assertNotNull(cache.get("key3"));
+	}
+
+	private static Element parse(String xml) throws Exception {
+		return new Builder().build(new StringReader(xml)).getRootElement();
+	}
+
+	/**
+	 * @return cml with a moleculeList holding one molecule with the given number of atoms
+	 */
+	private static Element createPage(String id, int atoms) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<cml xmlns=\"http://www.xml-cml.org/schema\"><moleculeList><molecule id=\"" + id + "\"><atomArray>");
+		for (int i = 0; i < atoms; i++) {
+			sb.append("<atom id=\"a" + i + "\" elementType=\"C\" x2=\"" + i + ".0\" y2=\"0.0\"/>");
+		}
+		sb.append("</atomArray></molecule></moleculeList><reactionList/></cml>");
+		return parse(sb.toString());
+	}
+
+	/**
+	 * @return the file of the entry, in whichever configuration directory it is
+	 */
+	private static File findEntry(String key) throws IOException {
+		for (File configuration : TEST_DIR.listFiles()) {
+			File entry = new File(configuration, key + ".cml");
+			if (entry.exists()) {
+				return entry;
+			}
+		}
+		throw new IOException("No entry for " + key);
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.xmlcml.ami2.chem;
+
+import java.awt.font.GlyphVector;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import nu.xom.Nodes;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.ami2.chem.GlyphMetricsCache.GlyphMetrics;
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGElement;
+import org.xmlcml.graphics.svg.SVGSVG;
+import org.xmlcml.graphics.svg.SVGTSpan;
+import org.xmlcml.graphics.svg.SVGText;
+import org.xmlcml.graphics.svg.SVGUtil;
+
+public class GlyphMetricsCacheTest {
+
+	/** repeated strings, the same string in other fonts, end anchors, and tspans with x, y, dx and dy */
+	private final static String SVG =
+			"<svg xmlns=\"http://www.w3.org/2000/svg\">" +
+			"<g font-family=\"Helvetica\" font-size=\"10\">" +
+			"<text x=\"10\" y=\"20\">CH3</text>" +
+			"<text x=\"40\" y=\"20\">CH3</text>" +
+			"<text x=\"70\" y=\"20\" text-anchor=\"end\">OH</text>" +
+			"<text x=\"90\" y=\"20\" font-size=\"14\">CH3</text>" +
+			"<text x=\"120\" y=\"20\" font-weight=\"bold\" style=\"font-style:italic\">AVAWAV</text>" +
+			"<text x=\"10\" y=\"50\"><tspan>CO</tspan><tspan dy=\"3\">2</tspan><tspan dx=\"1.5\" dy=\"-3\">H</tspan></text>" +
+			"<text x=\"60\" y=\"50\" text-anchor=\"end\"><tspan>CH</tspan><tspan dx=\"0.5\" dy=\"2.5\">3</tspan></text>" +
+			"<text x=\"90\" y=\"50\" text-anchor=\"end\"><tspan>CO</tspan><tspan dy=\"3\">2</tspan><tspan dx=\"1.5\" dy=\"-3\">H</tspan></text>" +
+			"<text x=\"10\" y=\"80\"><tspan x=\"12\" y=\"81\">NH</tspan><tspan x=\"30\" dy=\"2\">2</tspan></text>" +
+			"</g>" +
+			"<g font-family=\"Times\" font-size=\"10\"><text x=\"10\" y=\"110\">CH3</text><text x=\"40\" y=\"110\">OH</text></g>" +
+			"</svg>";
+
+	@Test
+	public void testSameAsGlyphVector() throws Exception {
+		GlyphMetricsCache cache = new GlyphMetricsCache();
+		int elements = 0;
+		for (SVGText text : readTexts()) {
+			if (text.getText() != null) {
+				assertSame(text.getGlyphVector(), cache.getMetrics(text));
+				elements++;
+			}
+			Nodes spans = text.query("svg:tspan", SVGSVG.SVG_XPATH);
+			for (int i = 0; i < spans.size(); i++) {
+				SVGTSpan span = (SVGTSpan) spans.get(i);
+				assertSame(span.getGlyphVector(), cache.getMetrics(span));
+				elements++;
+			}
+		}
+		Assert.assertTrue("repeated strings in the same font share metrics", cache.size() < elements);
+	}
+
+	@Test
+	public void testSplitSameAsBefore() throws Exception {
+		List<SVGText> expected = splitWithoutCache(readTexts());
+		List<SVGText> actual = ChemistryBuilder.splitMultiCharacterTexts(readTexts());
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Assert.assertEquals(expected.get(i).toXML(), actual.get(i).toXML());
+		}
+	}
+
+	private static void assertSame(GlyphVector glyphVector, GlyphMetrics metrics) {
+		Assert.assertEquals(glyphVector.getNumGlyphs(), metrics.getNumberOfGlyphs());
+		Assert.assertEquals(glyphVector.getLogicalBounds().getWidth(), metrics.getWidth(), 0);
+		for (int i = 0; i <= glyphVector.getNumGlyphs(); i++) {
+			Assert.assertEquals(glyphVector.getGlyphPosition(i).getX(), metrics.getX(i), 0);
+			Assert.assertEquals(glyphVector.getGlyphPosition(i).getY(), metrics.getY(i), 0);
+		}
+	}
+
+	private static List<SVGText> readTexts() throws Exception {
+		SVGElement svg = SVGUtil.parseToSVGElement(new ByteArrayInputStream(SVG.getBytes("UTF-8")));
+		List<SVGText> texts = new ArrayList<SVGText>();
+		Nodes nodes = svg.query("//svg:text", SVGSVG.SVG_XPATH);
+		for (int i = 0; i < nodes.size(); i++) {
+			texts.add((SVGText) nodes.get(i));
+		}
+		return texts;
+	}
+
+	/**
+	 * The splitting as it was before GlyphMetricsCache, laying out each text and tspan as it is reached.
+	 */
+	private static List<SVGText> splitWithoutCache(List<SVGText> texts) {
+		List<SVGText> newTexts = new ArrayList<SVGText>();
+		for (SVGText text : texts) {
+			String string = text.getText();
+			List<SVGTSpan> spanList = new ArrayList<SVGTSpan>();
+			double totalWidth = 0;
+			if (string == null) {
+				Nodes spans = text.query("svg:tspan", SVGSVG.SVG_XPATH);
+				for (int i = 0; i < spans.size(); i++) {
+					SVGTSpan span = (SVGTSpan) spans.get(i);
+					spanList.add(span);
+					GlyphVector v = span.getGlyphVector();
+					totalWidth += v.getLogicalBounds().getWidth();
+					if (span.getAttributeValue("dx") != null) {
+						totalWidth += Double.parseDouble(span.getAttributeValue("dx"));
+					}
+				}
+			} else {
+				spanList.add(new SVGTSpan(text));
+				totalWidth = text.getGlyphVector().getLogicalBounds().getWidth();
+			}
+			double previousX = text.getX() - ("end".equals(text.getAttributeValue("text-anchor")) ? totalWidth : 0);
+			double previousY = text.getY();
+			for (SVGTSpan span : spanList) {
+				if (span.getX() != 0.0) {
+					previousX = span.getX() - ("end".equals(text.getAttributeValue("text-anchor")) ? totalWidth : 0);
+				}
+				if (span.getY() != 0.0) {
+					previousY = span.getY();
+				}
+				GlyphVector glyphVector = span.getGlyphVector();
+				String spanText = span.getText();
+				for (int i = 0; i < spanText.length(); i++) {
+					String substring = spanText.substring(i, i + 1);
+					SVGText newText = new SVGText(new Real2(0, 0), substring);
+					newTexts.add(newText);
+					newText.copyAttributesFrom(span);
+					double dX = 0;
+					if (span.getAttributeValue("dx") != null) {
+						dX = Double.parseDouble(span.getAttributeValue("dx"));
+						newText.removeAttribute(newText.getAttribute("dx"));
+					}
+					double dY = 0;
+					if (span.getAttributeValue("dy") != null) {
+						dY = Double.parseDouble(span.getAttributeValue("dy"));
+						newText.removeAttribute(newText.getAttribute("dy"));
+					}
+					newText.setX(previousX + dX + glyphVector.getGlyphPosition(i).getX());
+					newText.setY(previousY + dY + glyphVector.getGlyphPosition(i).getY());
+				}
+				previousX += glyphVector.getGlyphPosition(glyphVector.getNumGlyphs()).getX();
+				if (span.getAttributeValue("dy") != null) {
+					previousY += Double.parseDouble(span.getAttributeValue("dy"));
+				}
+			}
+		}
+		return newTexts;
+	}
+
+}
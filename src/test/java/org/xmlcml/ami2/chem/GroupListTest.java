@@ -0,0 +1,87 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nu.xom.Elements;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.cml.base.CMLBuilder;
+import org.xmlcml.cml.element.CMLAtom;
+import org.xmlcml.cml.element.CMLBond;
+import org.xmlcml.cml.element.CMLMolecule;
+
+public class GroupListTest {
+
+	private final static String GROUPS = "/org/xmlcml/ami2/chem/groups.cml";
+
+	@Test
+	public void testCase() {
+		GroupList groupList = new GroupList(GroupListTest.class.getResourceAsStream(GROUPS));
+		Assert.assertNotNull(groupList.getTemplate("NO"));
+		Assert.assertNull(groupList.getTemplate("No"));
+		Assert.assertNotNull(groupList.getTemplate("Ph"));
+		Assert.assertNull(groupList.getTemplate("PH"));
+		Assert.assertNull(groupList.getTemplate("ph"));
+		Assert.assertSame(groupList.getTemplate("OMe"), groupList.getTemplate("ome"));
+		Assert.assertSame(groupList.getTemplate("COOH"), groupList.getTemplate("CooH"));
+		Assert.assertNull(groupList.getTemplate(null));
+	}
+
+	@Test
+	public void testNewInstancesAreSameAsGroups() throws Exception {
+		GroupList groupList = new GroupList(GroupListTest.class.getResourceAsStream(GROUPS));
+		InputStream is = GroupListTest.class.getResourceAsStream(GROUPS);
+		Elements groups;
+		try {
+			groups = new CMLBuilder().build(is).getRootElement().getChildElements();
+		} finally {
+			is.close();
+		}
+		Set<String> titles = new HashSet<String>();
+		for (int i = 0; i < groups.size(); i++) {
+			CMLMolecule group = (CMLMolecule) groups.get(i);
+			if (!titles.add(group.getTitle())) {
+				//the first group with a title wins
+				continue;
+			}
+			GroupTemplate template = groupList.getTemplate(group.getTitle());
+			CMLMolecule instance = template.newInstance();
+			Assert.assertNotSame(instance, template.newInstance());
+			List<CMLAtom> atoms = group.getAtoms();
+			List<CMLAtom> instanceAtoms = instance.getAtoms();
+			Assert.assertEquals(group.getTitle(), atoms.size(), instanceAtoms.size());
+			int joinableAtoms = 0;
+			for (int j = 0; j < atoms.size(); j++) {
+				Assert.assertEquals(atoms.get(j).getId(), instanceAtoms.get(j).getId());
+				Assert.assertEquals(atoms.get(j).getElementType(), instanceAtoms.get(j).getElementType());
+				Assert.assertEquals(atoms.get(j).getLabelElements().size(), instanceAtoms.get(j).getLabelElements().size());
+				joinableAtoms += atoms.get(j).getLabelElements().size();
+			}
+			Assert.assertEquals(joinableAtoms, template.getJoinableAtomCount());
+			for (CMLAtom atom : template.getJoinableAtoms(instance)) {
+				Assert.assertEquals(MoleculeBuilder.JOIN, atom.getLabelElements().get(0).getAttributeValue("name"));
+			}
+			List<CMLBond> bonds = group.getBonds();
+			List<CMLBond> instanceBonds = instance.getBonds();
+			Assert.assertEquals(group.getTitle(), bonds.size(), instanceBonds.size());
+			for (int j = 0; j < bonds.size(); j++) {
+				Assert.assertArrayEquals(bonds.get(j).getAtomRefs2(), instanceBonds.get(j).getAtomRefs2());
+				Assert.assertEquals(bonds.get(j).getOrder(), instanceBonds.get(j).getOrder());
+			}
+		}
+	}
+
+	@Test
+	public void testInstancesAreIndependent() {
+		GroupList groupList = new GroupList(GroupListTest.class.getResourceAsStream(GROUPS));
+		CMLMolecule first = groupList.get("OMe");
+		int size = first.getAtoms().size();
+		first.deleteAtom(first.getAtoms().get(0));
+		Assert.assertEquals(size, groupList.get("OMe").getAtoms().size());
+	}
+
+}
@@ -0,0 +1,190 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.euclid.Real;
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+public class HatchOrderingTest {
+
+	private final static double THRESHOLD = 0.5;
+
+	@Test
+	public void testWidening() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		for (int i = 0; i < 6; i++) {
+			lines.add(createLine(2 * i, -0.5 * i, 2 * i + 0.2, 0.5 * i));
+		}
+		assertSameAsSortedLists(lines);
+		Assert.assertNotNull(new HatchOrdering(lines, THRESHOLD).getOrderedLines());
+	}
+
+	@Test
+	public void testShuffled() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		int[] order = {3, 0, 5, 1, 4, 2};
+		for (int i : order) {
+			lines.add(createLine(2 * i, -0.5 * i, 2 * i + 0.2, 0.5 * i));
+		}
+		assertSameAsSortedLists(lines);
+		List<SVGLine> ordered = new HatchOrdering(lines, THRESHOLD).getOrderedLines();
+		Assert.assertEquals(6, ordered.size());
+		for (int i = 1; i < ordered.size(); i++) {
+			Assert.assertTrue(ordered.get(i - 1).getXY(0).getX() < ordered.get(i).getXY(0).getX());
+		}
+	}
+
+	@Test
+	public void testHorizontalHatchesAtZeroAndPi() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		for (int i = 0; i < 5; i++) {
+			if (i % 2 == 0) {
+				lines.add(createLine(-i, 3 * i, i, 3 * i));
+			} else {
+				lines.add(createLine(i, 3 * i, -i, 3 * i));
+			}
+		}
+		assertSameAsSortedLists(lines);
+		Assert.assertNotNull(new HatchOrdering(lines, THRESHOLD).getOrderedLines());
+	}
+
+	@Test
+	public void testVerticalHatches() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		for (int i = 4; i >= 0; i--) {
+			lines.add(createLine(3 * i, i, 3 * i, -i));
+		}
+		assertSameAsSortedLists(lines);
+	}
+
+	@Test
+	public void testDiagonalHatches() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		for (int i = 0; i < 5; i++) {
+			lines.add(createLine(10 + 2 * i - i, 10 + 2 * i + i, 10 + 2 * i + i, 10 + 2 * i - i));
+		}
+		assertSameAsSortedLists(lines);
+	}
+
+	@Test
+	public void testUnordered() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		lines.add(createLine(0, 0, 1, 5));
+		lines.add(createLine(3, 9, 4, -2));
+		lines.add(createLine(1, 7, 8, 6));
+		lines.add(createLine(6, 1, 2, 3));
+		assertSameAsSortedLists(lines);
+		Assert.assertNull(new HatchOrdering(lines, THRESHOLD).getOrderedLines());
+	}
+
+	@Test
+	public void testEqualCoordinatesWithinThreshold() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		lines.add(createLine(0, 0, 0.2, 2));
+		lines.add(createLine(0.3, 1, 0.1, 3));
+		lines.add(createLine(0.1, 2, 0.4, 4));
+		assertSameAsSortedLists(lines);
+	}
+
+	@Test
+	public void testEmpty() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		assertSameAsSortedLists(lines);
+		Assert.assertTrue(new HatchOrdering(lines, THRESHOLD).getOrderedLines().isEmpty());
+	}
+
+	@Test
+	public void testSingle() {
+		Set<SVGLine> lines = new LinkedHashSet<SVGLine>();
+		lines.add(createLine(0, 0, 1, 1));
+		assertSameAsSortedLists(lines);
+		Assert.assertEquals(1, new HatchOrdering(lines, THRESHOLD).getOrderedLines().size());
+	}
+
+	private static void assertSameAsSortedLists(Set<SVGLine> lines) {
+		List<SVGLine> expected = orderBySortingLists(lines, THRESHOLD);
+		List<SVGLine> actual = new HatchOrdering(lines, THRESHOLD).getOrderedLines();
+		if (expected == null) {
+			Assert.assertNull(actual);
+		} else {
+			Assert.assertNotNull(actual);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertSame("line " + i, expected.get(i), actual.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The ordering as ChemistryBuilder made it before HatchOrdering: sorted copies of the set compared as lists.
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<SVGLine> orderBySortingLists(Set<SVGLine> set, final double threshold) {
+		ArrayList<SVGLine> lines1 = new ArrayList<SVGLine>(set);
+		ArrayList<SVGLine> lines2 = new ArrayList<SVGLine>(set);
+		Collections.sort(lines1, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				Real2 firstOfI = (i.getXY(0).getX() < i.getXY(1).getX() ? i.getXY(0) : i.getXY(1));
+				Real2 firstOfJ = (j.getXY(0).getX() < j.getXY(1).getX() ? j.getXY(0) : j.getXY(1));
+				return (Real.isEqual(firstOfI.getX(), firstOfJ.getX(), threshold) ? Double.compare(firstOfI.getY(), firstOfJ.getY()) : Double.compare(firstOfI.getX(), firstOfJ.getX()));
+			}});
+		Collections.sort(lines2, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				Real2 firstOfI = (i.getXY(0).getY() < i.getXY(1).getY() ? i.getXY(0) : i.getXY(1));
+				Real2 firstOfJ = (j.getXY(0).getY() < j.getXY(1).getY() ? j.getXY(0) : j.getXY(1));
+				return (Real.isEqual(firstOfI.getY(), firstOfJ.getY(), threshold) ? Double.compare(firstOfI.getX(), firstOfJ.getX()) : Double.compare(firstOfI.getY(), firstOfJ.getY()));
+			}});
+		ArrayList<SVGLine> lines3 = (ArrayList<SVGLine>) lines1.clone();
+		Collections.reverse(lines3);
+		ArrayList<SVGLine> lines4 = (ArrayList<SVGLine>) lines1.clone();
+		ArrayList<SVGLine> lines5 = (ArrayList<SVGLine>) lines1.clone();
+		Collections.sort(lines4, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				Real2 secondOfI = (i.getXY(0).getX() >= i.getXY(1).getX() ? i.getXY(0) : i.getXY(1));
+				Real2 secondOfJ = (j.getXY(0).getX() >= j.getXY(1).getX() ? j.getXY(0) : j.getXY(1));
+				return (Real.isEqual(secondOfI.getX(), secondOfJ.getX(), threshold) ? Double.compare(secondOfI.getY(), secondOfJ.getY()) : Double.compare(secondOfI.getX(), secondOfJ.getX()));
+			}});
+		Collections.sort(lines5, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				Real2 secondOfI = (i.getXY(0).getY() >= i.getXY(1).getY() ? i.getXY(0) : i.getXY(1));
+				Real2 secondOfJ = (j.getXY(0).getY() >= j.getXY(1).getY() ? j.getXY(0) : j.getXY(1));
+				return (Real.isEqual(secondOfI.getY(), secondOfJ.getY(), threshold) ? Double.compare(secondOfI.getX(), secondOfJ.getX()) : Double.compare(secondOfI.getY(), secondOfJ.getY()));
+			}});
+		ArrayList<SVGLine> lines6 = (ArrayList<SVGLine>) lines4.clone();
+		Collections.reverse(lines6);
+		ArrayList<SVGLine> lines7 = (ArrayList<SVGLine>) lines1.clone();
+		ArrayList<SVGLine> lines8 = (ArrayList<SVGLine>) lines1.clone();
+		Collections.sort(lines7, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				return (Real.isEqual(i.getMidPoint().getX(), j.getMidPoint().getX(), threshold) ? Double.compare(i.getMidPoint().getY(), j.getMidPoint().getY()) : Double.compare(i.getMidPoint().getX(), j.getMidPoint().getX()));
+			}});
+		Collections.sort(lines8, new Comparator<SVGLine>(){
+			public int compare(SVGLine i, SVGLine j) {
+				return (Real.isEqual(i.getMidPoint().getY(), j.getMidPoint().getY(), threshold) ? Double.compare(i.getMidPoint().getX(), j.getMidPoint().getX()) : Double.compare(i.getMidPoint().getY(), j.getMidPoint().getY()));
+			}});
+		ArrayList<SVGLine> lines9 = (ArrayList<SVGLine>) lines7.clone();
+		Collections.reverse(lines9);
+		boolean firstEndPointsAndSecondEndPointsOrdered = ((lines1.equals(lines2) || lines3.equals(lines2)) && (lines4.equals(lines5) || lines6.equals(lines5)));
+		boolean firstEndPointsAndMidPointsOrdered = ((lines1.equals(lines2) || lines3.equals(lines2)) && (lines7.equals(lines8) || lines9.equals(lines8)));
+		boolean secondEndPointsAndMidPointsOrdered = ((lines4.equals(lines5) || lines6.equals(lines5)) && (lines7.equals(lines8) || lines9.equals(lines8)));
+		if (firstEndPointsAndSecondEndPointsOrdered || firstEndPointsAndMidPointsOrdered) {
+			return lines1;
+		} else if (secondEndPointsAndMidPointsOrdered) {
+			return lines4;
+		}
+		return null;
+	}
+
+	private static SVGLine createLine(double x0, double y0, double x1, double y1) {
+		return new SVGLine(new Real2(x0, y0), new Real2(x1, y1));
+	}
+
+}
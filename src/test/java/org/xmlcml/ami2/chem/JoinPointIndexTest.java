@@ -0,0 +1,102 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JoinPointIndexTest {
+
+	@Test
+	public void testSameAsPairwise() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		joinables.add(new PointJoinable(0, 0, 1, 10, 0, 1));
+		joinables.add(new PointJoinable(10.5, 0, 1, 20, 5, 1));
+		joinables.add(new PointJoinable(20, 6.5, 0.6, 30, 6.5, 0.6));
+		joinables.add(new PointJoinable(-3, -3, 2));
+		joinables.add(new PointJoinable(100, 100, 1, 0.5, 0.5, 0.5));
+		joinables.add(new PointJoinable(30, 8, 3, 45, 8, 3));
+		joinables.add(new PointJoinable(-40, 7, 1, -30, 7, 1));
+		assertSameAsPairwise(joinables);
+	}
+
+	@Test
+	public void testExactlyAtRadius() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		joinables.add(new PointJoinable(0, 0, 2.5));
+		joinables.add(new PointJoinable(3, 4, 2.5));
+		joinables.add(new PointJoinable(-5, 0, 2.5));
+		joinables.add(new PointJoinable(0, 10, 2.5));
+		assertSameAsPairwise(joinables);
+		JoinPointIndex index = new JoinPointIndex(joinables);
+		List<Integer> candidates = index.getIndicesOfNearbyJoinables(joinables.get(0), 0);
+		Assert.assertTrue(candidates.contains(1));
+		Assert.assertTrue(candidates.contains(2));
+	}
+
+	@Test
+	public void testNegativeCoordinatesOnCellBoundaries() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		for (int x = -4; x <= 4; x++) {
+			joinables.add(new PointJoinable(2 * x, -2 * x, 1));
+			joinables.add(new PointJoinable(2 * x + 1.9, -2 * x, 1));
+		}
+		assertSameAsPairwise(joinables);
+	}
+
+	@Test
+	public void testEmpty() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		JoinPointIndex index = new JoinPointIndex(joinables);
+		Assert.assertTrue(index.getIndicesOfNearbyJoinables(new PointJoinable(0, 0, 1), -1).isEmpty());
+	}
+
+	@Test
+	public void testSingle() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		joinables.add(new PointJoinable(0, 0, 1, 10, 0, 1));
+		JoinPointIndex index = new JoinPointIndex(joinables);
+		Assert.assertEquals(1, index.getIndicesOfNearbyJoinables(joinables.get(0), -1).size());
+		Assert.assertTrue(index.getIndicesOfNearbyJoinables(joinables.get(0), 0).isEmpty());
+		assertSameAsPairwise(joinables);
+	}
+
+	@Test
+	public void testZeroRadii() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		joinables.add(new PointJoinable(0, 0, 0));
+		joinables.add(new PointJoinable(0, 0, 0));
+		assertSameAsPairwise(joinables);
+	}
+
+	/**
+	 * Checks that, for each Joinable, the candidates are ascending and include every later Joinable which overlaps it.
+	 */
+	private static void assertSameAsPairwise(List<Joinable> joinables) {
+		JoinPointIndex index = new JoinPointIndex(joinables);
+		for (int i = 0; i < joinables.size(); i++) {
+			Joinable joinableI = joinables.get(i);
+			List<Integer> candidates = index.getIndicesOfNearbyJoinables(joinableI, i);
+			for (int k = 1; k < candidates.size(); k++) {
+				Assert.assertTrue(candidates.get(k - 1) < candidates.get(k));
+			}
+			List<Integer> expected = new ArrayList<Integer>();
+			for (int j = i + 1; j < joinables.size(); j++) {
+				if (joinableI.overlapWith(joinables.get(j)) != null) {
+					expected.add(j);
+				}
+			}
+			List<Integer> found = new ArrayList<Integer>();
+			for (Integer j : candidates) {
+				Assert.assertTrue(j > i);
+				Assert.assertSame(joinables.get(j), index.get(j));
+				if (joinableI.overlapWith(joinables.get(j)) != null) {
+					found.add(j);
+				}
+			}
+			Assert.assertEquals("joinable " + i, expected, found);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.ami2.chem.Joinable.JoinPoint;
+
+public class JoinableTest {
+
+	@Test
+	public void testOverlapAtEnd() {
+		Joinable a = new PointJoinable(0, 0, 1, 10, 0, 1);
+		Joinable b = new PointJoinable(10.5, 0, 1, 20, 0, 1);
+		assertSameAsPairwise(a, b);
+		Assert.assertEquals(2, a.overlapWith(b).size());
+	}
+
+	@Test
+	public void testNoOverlap() {
+		Joinable a = new PointJoinable(0, 0, 1, 10, 0, 1);
+		Joinable b = new PointJoinable(0, 5, 1, 10, 5, 1);
+		assertSameAsPairwise(a, b);
+		Assert.assertNull(a.overlapWith(b));
+	}
+
+	@Test
+	public void testExactlyAtRadius() {
+		Joinable a = new PointJoinable(0, 0, 2.5);
+		Joinable b = new PointJoinable(3, 4, 2.5);
+		assertSameAsPairwise(a, b);
+		Assert.assertNull(a.overlapWith(b));
+		Joinable c = new PointJoinable(3, 4, 2.6);
+		assertSameAsPairwise(a, c);
+		Assert.assertNotNull(a.overlapWith(c));
+	}
+
+	@Test
+	public void testCompleteOverlap() {
+		Joinable a = new PointJoinable(0, 0, 1, 10, 0, 1);
+		Joinable b = new PointJoinable(0.1, 0, 1, 10.1, 0, 1);
+		assertSameAsPairwise(a, b);
+		Assert.assertNull(a.overlapWith(b));
+	}
+
+	@Test
+	public void testOnePointCloseToTwo() {
+		Joinable a = new PointJoinable(0, 0, 1);
+		Joinable b = new PointJoinable(0.5, 0, 1, -0.5, 0, 1, 5, 5, 1);
+		assertSameAsPairwise(a, b);
+		assertSameAsPairwise(b, a);
+		Assert.assertEquals(3, a.overlapWith(b).size());
+	}
+
+	@Test
+	public void testEmpty() {
+		Joinable a = new PointJoinable();
+		Joinable b = new PointJoinable(0, 0, 1);
+		assertSameAsPairwise(a, b);
+		assertSameAsPairwise(a, a);
+		Assert.assertNull(a.overlapWith(b));
+	}
+
+	@Test
+	public void testBufferIsReused() {
+		Joinable a = new PointJoinable(0, 0, 1, 10, 0, 1);
+		Joinable b = new PointJoinable(10.5, 0, 1, 20, 0, 1);
+		Joinable c = new PointJoinable(0, 5, 1, 10, 5, 1);
+		List<JoinPoint> buffer = new ArrayList<JoinPoint>();
+		Assert.assertTrue(a.overlapWith(b, buffer));
+		Assert.assertEquals(2, buffer.size());
+		Assert.assertFalse(a.overlapWith(c, buffer));
+		Assert.assertTrue(buffer.isEmpty());
+	}
+
+	/**
+	 * The overlap as it was found before the buffer was introduced: every pair of JoinPoints compared by distance.
+	 */
+	private static Set<JoinPoint> overlapPairwise(Joinable joinable, Joinable other) {
+		List<JoinPoint> pointsForThis = joinable.getJoinPoints();
+		List<JoinPoint> pointsForOther = other.getJoinPoints();
+		Set<JoinPoint> results = new LinkedHashSet<JoinPoint>();
+		for (JoinPoint p : pointsForThis) {
+			for (JoinPoint q : pointsForOther) {
+				if (p.getRadius() + q.getRadius() > p.getDistanceTo(q)) {
+					results.add(p);
+					results.add(q);
+				}
+			}
+		}
+		return (results.size() > 0 && (results.size() < 3 || (results.size() < pointsForOther.size() + pointsForThis.size())) ? results : null);
+	}
+
+	private static void assertSameAsPairwise(Joinable joinable, Joinable other) {
+		Set<JoinPoint> expected = overlapPairwise(joinable, other);
+		Set<JoinPoint> actual = joinable.overlapWith(other);
+		if (expected == null) {
+			Assert.assertNull(actual);
+		} else {
+			Assert.assertEquals(new ArrayList<JoinPoint>(expected), new ArrayList<JoinPoint>(actual));
+		}
+		List<JoinPoint> buffer = new ArrayList<JoinPoint>();
+		Assert.assertEquals(expected != null, joinable.overlapWith(other, buffer));
+		Assert.assertEquals((expected == null ? new ArrayList<JoinPoint>() : new ArrayList<JoinPoint>(expected)), buffer);
+	}
+
+}
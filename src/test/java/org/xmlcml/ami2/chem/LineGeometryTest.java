@@ -0,0 +1,52 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+public class LineGeometryTest {
+
+	@Test
+	public void testSameAsSVGLines() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(1, 2, 4, 6));
+		lines.add(createLine(0, 0, -3, 0));
+		lines.add(lines.get(0));
+		LineGeometry geometry = new LineGeometry(lines);
+		Assert.assertEquals(3, geometry.size());
+		for (int i = 0; i < lines.size(); i++) {
+			SVGLine line = lines.get(i);
+			Assert.assertEquals(line.getXY(0).getX(), geometry.getX0(i), 0);
+			Assert.assertEquals(line.getXY(0).getY(), geometry.getY0(i), 0);
+			Assert.assertEquals(line.getXY(1).getX(), geometry.getX1(i), 0);
+			Assert.assertEquals(line.getXY(1).getY(), geometry.getY1(i), 0);
+			Assert.assertEquals(line.getXY(0).getDistance(line.getXY(1)), geometry.getLength(i), 1.0E-10);
+			Assert.assertEquals(line.getMidPoint().getX(), geometry.getMidX(i), 1.0E-10);
+			Assert.assertEquals(line.getMidPoint().getY(), geometry.getMidY(i), 1.0E-10);
+		}
+		Assert.assertEquals(5, geometry.getLength(0), 1.0E-10);
+		Assert.assertEquals(Math.PI, geometry.getOrientation(1), 1.0E-10);
+		Assert.assertEquals(0, geometry.indexOf(lines.get(0)));
+		Assert.assertEquals(1, geometry.indexOf(lines.get(1)));
+		Assert.assertEquals(-1, geometry.indexOf(createLine(1, 2, 4, 6)));
+		lines.get(1).setXY(new Real2(0, 4), 1);
+		geometry.update(1);
+		Assert.assertEquals(4, geometry.getLength(1), 1.0E-10);
+		Assert.assertEquals(Math.PI / 2, geometry.getOrientation(1), 1.0E-10);
+		Assert.assertEquals(4, geometry.getMaxY(1), 0);
+	}
+
+	@Test
+	public void testEmpty() {
+		Assert.assertEquals(0, new LineGeometry(new ArrayList<SVGLine>()).size());
+	}
+
+	private static SVGLine createLine(double x0, double y0, double x1, double y1) {
+		return new SVGLine(new Real2(x0, y0), new Real2(x1, y1));
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.cml.element.CMLMolecule;
+
+public class MorganIndexTest {
+
+	private final static File TEST_DIR = new File("target/morganindex");
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		String sdf1 = 
+				createRecord("ethanol", "702", new String[] {"C", "C", "O"}, new int[][] {{1, 2, 1}, {2, 3, 1}}) +
+				createRecord("ether", "8254", new String[] {"C", "O", "C"}, new int[][] {{1, 2, 1}, {2, 3, 1}}) +
+				createRecord("acetic acid", "176", new String[] {"C", "C", "O", "O"}, new int[][] {{1, 2, 1}, {2, 3, 2}, {2, 4, 1}}) +
+				createRecord("ethanol with hydrogens", "99702", new String[] {"C", "C", "O", "H", "H", "H"}, new int[][] {{1, 2, 1}, {2, 3, 1}, {3, 4, 1}, {1, 5, 1}, {1, 6, 1}}) +
+				createRecord("ethanol again", "702", new String[] {"C", "C", "O"}, new int[][] {{1, 2, 1}, {2, 3, 1}}) +
+				createRecord("empty", "1", new String[] {}, new int[][] {});
+		String sdf2 = 
+				createRecord("propane", "6334", new String[] {"C", "C", "C"}, new int[][] {{1, 2, 1}, {2, 3, 1}}) +
+				createRecord("acetate", "175", new String[] {"C", "C", "O", "O"}, new int[][] {{1, 2, 1}, {2, 3, 2}, {2, 4, 1}}) +
+				createRecord("ethylene", "6325", new String[] {"C", "C"}, new int[][] {{1, 2, 2}}) +
+				createRecord("acetylene", "6326", new String[] {"C", "C"}, new int[][] {{1, 2, 3}}) +
+				createRecord("ethanol last", "5000", new String[] {"O", "C", "C"}, new int[][] {{1, 2, 1}, {2, 3, 1}});
+		FileUtils.deleteQuietly(TEST_DIR);
+		TEST_DIR.mkdirs();
+		File dump1 = new File(TEST_DIR, "dump1.sdf");
+		FileUtils.write(dump1, sdf1, "UTF-8");
+		File dump2 = new File(TEST_DIR, "dump2.sdf.gz");
+		OutputStream os = new GZIPOutputStream(new FileOutputStream(dump2));
+		try {
+			os.write(sdf2.getBytes("UTF-8"));
+		} finally {
+			os.close();
+		}
+		File indexFile = new File(TEST_DIR, "compounds.index");
+		long size = MorganIndex.build(indexFile, Arrays.asList(dump1, dump2));
+		Assert.assertEquals(10, size);
+		Assert.assertFalse(new File(indexFile.getPath() + ".data").exists());
+
+		Map<String, List<String>> expected = new LinkedHashMap<String, List<String>>();
+		List<CMLMolecule> molecules = new ArrayList<CMLMolecule>();
+		for (String sdf : new String[] {sdf1, sdf2}) {
+			SDFReader reader = new SDFReader(new BufferedReader(new StringReader(sdf)));
+			CMLMolecule molecule;
+			while ((molecule = reader.read()) != null) {
+				if (molecule.getAtoms().size() == 0) {
+					continue;
+				}
+				molecules.add(molecule);
+				String key = MorganIndex.createKey(molecule);
+				List<String> identifiers = expected.get(key);
+				if (identifiers == null) {
+					identifiers = new ArrayList<String>();
+					expected.put(key, identifiers);
+				}
+				if (!identifiers.contains(reader.getIdentifier())) {
+					identifiers.add(reader.getIdentifier());
+				}
+			}
+		}
+		Assert.assertEquals(MorganIndex.createKey(molecules.get(0)), MorganIndex.createKey(molecules.get(3)));
+		Assert.assertEquals(Arrays.asList("702", "99702", "5000"), expected.get(MorganIndex.createKey(molecules.get(0))));
+
+		for (long chunkBytes : new long[] {7, 64, 1L << 30}) {
+			MorganIndex index = new MorganIndex(indexFile, chunkBytes);
+			try {
+				Assert.assertEquals(10, index.size());
+				for (Map.Entry<String, List<String>> entry : expected.entrySet()) {
+					Assert.assertEquals("chunk " + chunkBytes, entry.getValue(), index.getIdentifiers(entry.getKey()));
+				}
+				for (CMLMolecule molecule : molecules) {
+					Assert.assertEquals(expected.get(MorganIndex.createKey(molecule)), index.getIdentifiers(molecule));
+				}
+				Assert.assertTrue(index.getIdentifiers("not a Morgan string").isEmpty());
+				Assert.assertTrue(index.getIdentifiers("").isEmpty());
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	@Test
+	public void testHashCollision() throws IOException {
+		TEST_DIR.mkdirs();
+		File indexFile = new File(TEST_DIR, "collision.index");
+		long hash = MorganIndex.hash("A".getBytes("UTF-8"));
+		String[][] entries = {{"B", "b1"}, {"A", "a1"}, {"AA", "aa1"}, {"A", "a2"}, {"A", "a1"}};
+		DataOutputStream data = new DataOutputStream(new FileOutputStream(indexFile));
+		try {
+			data.writeInt(MorganIndex.MAGIC);
+			data.writeInt(MorganIndex.VERSION);
+			data.writeLong(entries.length);
+			long offset = 0;
+			for (String[] entry : entries) {
+				data.writeLong(hash);
+				data.writeLong(offset);
+				offset += 8 + entry[0].length() + entry[1].length();
+			}
+			for (String[] entry : entries) {
+				data.writeInt(entry[0].length());
+				data.writeBytes(entry[0]);
+				data.writeInt(entry[1].length());
+				data.writeBytes(entry[1]);
+			}
+		} finally {
+			data.close();
+		}
+		for (long chunkBytes : new long[] {5, 1L << 30}) {
+			MorganIndex index = new MorganIndex(indexFile, chunkBytes);
+			try {
+				Assert.assertEquals(Arrays.asList("a1", "a2"), index.getIdentifiers("A"));
+				Assert.assertTrue(index.getIdentifiers("B").isEmpty());
+				Assert.assertTrue(index.getIdentifiers("AA").isEmpty());
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		TEST_DIR.mkdirs();
+		File indexFile = new File(TEST_DIR, "empty.index");
+		Assert.assertEquals(0, MorganIndex.build(indexFile, new ArrayList<File>()));
+		MorganIndex index = new MorganIndex(indexFile);
+		try {
+			Assert.assertEquals(0, index.size());
+			Assert.assertTrue(index.getIdentifiers("A").isEmpty());
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAnIndex() throws IOException {
+		TEST_DIR.mkdirs();
+		File file = new File(TEST_DIR, "not.index");
+		FileUtils.write(file, "not a Morgan index at all", "UTF-8");
+		new MorganIndex(file).close();
+	}
+
+	private static String createRecord(String title, String cid, String[] elements, int[][] bonds) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(title + "\n  test\n\n");
+		sb.append(String.format("%3d%3d  0  0  0  0  0  0  0  0999 V2000\n", elements.length, bonds.length));
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(String.format("%10.4f%10.4f%10.4f %-3s 0  0  0  0  0  0  0  0  0  0  0  0\n", 1.5 * i, (i % 2) * 0.8, 0.0, elements[i]));
+		}
+		for (int[] bond : bonds) {
+			sb.append(String.format("%3d%3d%3d  0\n", bond[0], bond[1], bond[2]));
+		}
+		sb.append("M  END\n> <PUBCHEM_COMPOUND_CID>\n" + cid + "\n\n$$$$\n");
+		return sb.toString();
+	}
+
+}
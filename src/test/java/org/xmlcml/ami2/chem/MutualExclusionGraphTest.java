@@ -0,0 +1,76 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MutualExclusionGraphTest {
+
+	@Test
+	public void testSameAsScanOfGroups() {
+		List<Joinable> joinables = new ArrayList<Joinable>();
+		for (int i = 0; i < 8; i++) {
+			joinables.add(new PointJoinable(i, 0, 1));
+		}
+		List<Joinable[]> groups = new ArrayList<Joinable[]>();
+		groups.add(new Joinable[] {joinables.get(0), joinables.get(1), joinables.get(2)});
+		groups.add(new Joinable[] {joinables.get(2), null, joinables.get(3)});
+		groups.add(new Joinable[] {joinables.get(4), joinables.get(5)});
+		groups.add(new Joinable[] {joinables.get(5), joinables.get(5)});
+		groups.add(new Joinable[] {joinables.get(6)});
+		groups.add(new Joinable[] {null, null});
+		MutualExclusionGraph graph = new MutualExclusionGraph();
+		for (Joinable[] group : groups) {
+			graph.addAlternatives(group);
+		}
+		for (Joinable joinableI : joinables) {
+			for (Joinable joinableJ : joinables) {
+				Assert.assertEquals(areInSameGroup(groups, joinableI, joinableJ), graph.areMutuallyExclusive(joinableI, joinableJ));
+			}
+		}
+		Assert.assertTrue(graph.areMutuallyExclusive(joinables.get(0), joinables.get(2)));
+		Assert.assertFalse(graph.areMutuallyExclusive(joinables.get(0), joinables.get(3)));
+		Assert.assertFalse(graph.areMutuallyExclusive(joinables.get(5), joinables.get(5)));
+	}
+
+	@Test
+	public void testIdentityNotPosition() {
+		Joinable a = new PointJoinable(0, 0, 1);
+		Joinable b = new PointJoinable(0, 0, 1);
+		Joinable c = new PointJoinable(0, 0, 1);
+		MutualExclusionGraph graph = new MutualExclusionGraph();
+		graph.addAlternatives(a, b);
+		Assert.assertTrue(graph.areMutuallyExclusive(a, b));
+		Assert.assertTrue(graph.areMutuallyExclusive(b, a));
+		Assert.assertFalse(graph.areMutuallyExclusive(a, c));
+		Assert.assertFalse(graph.areMutuallyExclusive(c, b));
+	}
+
+	@Test
+	public void testEmpty() {
+		MutualExclusionGraph graph = new MutualExclusionGraph();
+		graph.addAlternatives();
+		Joinable a = new PointJoinable(0, 0, 1);
+		Assert.assertFalse(graph.areMutuallyExclusive(a, a));
+	}
+
+	/**
+	 * Mutual exclusion as it was found before the graph: a scan of every group of alternatives.
+	 */
+	private static boolean areInSameGroup(List<Joinable[]> groups, Joinable joinableI, Joinable joinableJ) {
+		if (joinableI == joinableJ) {
+			return false;
+		}
+		for (Joinable[] group : groups) {
+			List<Joinable> members = Arrays.asList(group);
+			if (members.contains(joinableI) && members.contains(joinableJ)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
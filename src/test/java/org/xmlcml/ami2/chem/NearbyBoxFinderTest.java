@@ -0,0 +1,80 @@
+package org.xmlcml.ami2.chem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NearbyBoxFinderTest {
+
+	@Test
+	public void testSameAsNestedLoop() {
+		double[] minX = {0, 12, 5, -20, 11, 0, 30, 4};
+		double[] minY = {0, 0, 8, -20, 11, 0, 30, 3};
+		double[] maxX = {10, 20, 6, -15, 12, 10, 31, 5};
+		double[] maxY = {10, 5, 30, -15, 12, 10, 31, 4};
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 0);
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 1);
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 2);
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 25);
+	}
+
+	@Test
+	public void testExactlyAtMargin() {
+		double[] minX = {0, 12, 0};
+		double[] minY = {0, 0, 12};
+		double[] maxX = {10, 20, 9};
+		double[] maxY = {10, 10, 20};
+		long[] pairs = NearbyBoxFinder.findPairs(minX, minY, maxX, maxY, 2);
+		Assert.assertEquals(2, pairs.length);
+		Assert.assertEquals(0, NearbyBoxFinder.getFirst(pairs[0]));
+		Assert.assertEquals(1, NearbyBoxFinder.getSecond(pairs[0]));
+		Assert.assertEquals(0, NearbyBoxFinder.getFirst(pairs[1]));
+		Assert.assertEquals(2, NearbyBoxFinder.getSecond(pairs[1]));
+		Assert.assertEquals(0, NearbyBoxFinder.findPairs(minX, minY, maxX, maxY, 1.999).length);
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 2);
+	}
+
+	@Test
+	public void testManyOverlapping() {
+		int n = 40;
+		double[] minX = new double[n];
+		double[] minY = new double[n];
+		double[] maxX = new double[n];
+		double[] maxY = new double[n];
+		for (int i = 0; i < n; i++) {
+			minX[i] = (i * 7) % 13;
+			minY[i] = (i * 5) % 11;
+			maxX[i] = minX[i] + 1 + i % 3;
+			maxY[i] = minY[i] + 1 + i % 4;
+		}
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 0.5);
+		assertSameAsNestedLoop(minX, minY, maxX, maxY, 100);
+	}
+
+	@Test
+	public void testEmpty() {
+		Assert.assertEquals(0, NearbyBoxFinder.findPairs(new double[0], new double[0], new double[0], new double[0], 1).length);
+	}
+
+	@Test
+	public void testSingle() {
+		Assert.assertEquals(0, NearbyBoxFinder.findPairs(new double[] {0}, new double[] {0}, new double[] {1}, new double[] {1}, 1).length);
+	}
+
+	private static void assertSameAsNestedLoop(double[] minX, double[] minY, double[] maxX, double[] maxY, double margin) {
+		long[] pairs = NearbyBoxFinder.findPairs(minX, minY, maxX, maxY, margin);
+		int k = 0;
+		for (int i = 0; i < minX.length; i++) {
+			for (int j = i + 1; j < minX.length; j++) {
+				boolean near = minX[j] <= maxX[i] + margin && minX[i] <= maxX[j] + margin && minY[j] <= maxY[i] + margin && minY[i] <= maxY[j] + margin;
+				if (near) {
+					Assert.assertTrue("pair " + i + " " + j, k < pairs.length);
+					Assert.assertEquals(i, NearbyBoxFinder.getFirst(pairs[k]));
+					Assert.assertEquals(j, NearbyBoxFinder.getSecond(pairs[k]));
+					k++;
+				}
+			}
+		}
+		Assert.assertEquals(k, pairs.length);
+	}
+
+}
@@ -0,0 +1,126 @@
+package org.xmlcml.ami2.chem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGLine;
+
+public class ParallelLineIndexTest {
+
+	private final static double THRESHOLD = 0.1;
+	private final static double SEPARATION = 5;
+
+	@Test
+	public void testSameAsPairwise() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(0, 0, 10, 0));
+		lines.add(createLine(0, 3, 10, 3.5));
+		lines.add(createLine(0, 4, 0, 14));
+		lines.add(createLine(3, 4, 3, 12));
+		lines.add(createLine(20, 20, 27, 27));
+		lines.add(createLine(22, 19, 28, 25));
+		lines.add(createLine(-50, -50, -40, -40));
+		lines.add(createLine(5, 1, 15, 1.6));
+		lines.add(createLine(100, 0, 90, 0));
+		assertSameAsPairwise(lines, 15);
+		assertSameAsPairwise(lines, 40);
+	}
+
+	@Test
+	public void testAntiparallelAtZeroAndPi() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(0, 0, 10, 0));
+		lines.add(createLine(10, 2, 0, 2));
+		lines.add(createLine(10, -2, 0, -2.1));
+		lines.add(createLine(0, -4, 10, -4.1));
+		lines.add(createLine(10, 4, 0, 4.1));
+		LineGeometry geometry = new LineGeometry(lines);
+		Assert.assertEquals(0, geometry.getOrientation(0), 0);
+		Assert.assertEquals(Math.PI, Math.abs(geometry.getOrientation(1)), 0);
+		ParallelLineIndex index = new ParallelLineIndex(geometry, THRESHOLD, SEPARATION);
+		Assert.assertEquals(4, index.getIndicesOfNearbyParallelLines(0, 10, 0).size());
+		assertSameAsPairwise(lines, 10);
+	}
+
+	@Test
+	public void testExactlyAtReach() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(0, 0, 10, 0));
+		lines.add(createLine(0, 5, 10, 5));
+		lines.add(createLine(0, -5, 10, -5));
+		lines.add(createLine(10, 0, 20, 0));
+		assertSameAsPairwise(lines, 5);
+		assertSameAsPairwise(lines, 10);
+		LineGeometry geometry = new LineGeometry(lines);
+		ParallelLineIndex index = new ParallelLineIndex(geometry, THRESHOLD, SEPARATION);
+		Assert.assertEquals(2, index.getIndicesOfNearbyParallelLines(0, 5, 0).size());
+	}
+
+	@Test
+	public void testDirection() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(0, 0, 10, 0));
+		lines.add(createLine(0, 0, 0, 10));
+		lines.add(createLine(10, 3, 0, 3));
+		ParallelLineIndex index = new ParallelLineIndex(new LineGeometry(lines), THRESHOLD, SEPARATION);
+		List<Integer> indices = index.getIndicesOfNearbyParallelLines(new Real2(5, 1), new Real2(-1, 0), 10, -1);
+		Assert.assertTrue(indices.contains(0));
+		Assert.assertTrue(indices.contains(2));
+		Assert.assertFalse(indices.contains(1));
+	}
+
+	@Test
+	public void testEmpty() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		ParallelLineIndex index = new ParallelLineIndex(new LineGeometry(lines), THRESHOLD, SEPARATION);
+		Assert.assertEquals(0, index.getMaximumLength(), 0);
+		Assert.assertTrue(index.getIndicesOfNearbyParallelLines(new Real2(0, 0), new Real2(1, 0), 10, -1).isEmpty());
+	}
+
+	@Test
+	public void testSingle() {
+		List<SVGLine> lines = new ArrayList<SVGLine>();
+		lines.add(createLine(0, 0, 10, 0));
+		ParallelLineIndex index = new ParallelLineIndex(new LineGeometry(lines), THRESHOLD, SEPARATION);
+		Assert.assertEquals(10, index.getMaximumLength(), 1.0E-10);
+		Assert.assertEquals(1, index.getIndicesOfNearbyParallelLines(0, 10, -1).size());
+		Assert.assertTrue(index.getIndicesOfNearbyParallelLines(0, 10, 0).isEmpty());
+	}
+
+	/**
+	 * Checks that, for each line, the candidates are ascending and include every later line which is parallel or
+	 * antiparallel within the threshold and whose midpoint is within reach.
+	 */
+	private static void assertSameAsPairwise(List<SVGLine> lines, double reach) {
+		LineGeometry geometry = new LineGeometry(lines);
+		ParallelLineIndex index = new ParallelLineIndex(geometry, THRESHOLD, SEPARATION);
+		for (int i = 0; i < lines.size(); i++) {
+			List<Integer> candidates = index.getIndicesOfNearbyParallelLines(i, reach, i);
+			for (int k = 1; k < candidates.size(); k++) {
+				Assert.assertTrue(candidates.get(k - 1) < candidates.get(k));
+			}
+			for (int j = i + 1; j < lines.size(); j++) {
+				if (areParallel(geometry, i, j) && lines.get(i).getMidPoint().getDistance(lines.get(j).getMidPoint()) <= reach) {
+					Assert.assertTrue("lines " + i + " and " + j, candidates.contains(j));
+				}
+			}
+			for (Integer j : candidates) {
+				Assert.assertTrue(j > i);
+				Assert.assertSame(lines.get(j), index.get(j));
+			}
+		}
+	}
+
+	private static boolean areParallel(LineGeometry geometry, int i, int j) {
+		double difference = Math.abs(geometry.getOrientation(i) - geometry.getOrientation(j)) % Math.PI;
+		return Math.min(difference, Math.PI - difference) <= THRESHOLD;
+	}
+
+	private static SVGLine createLine(double x0, double y0, double x1, double y1) {
+		return new SVGLine(new Real2(x0, y0), new Real2(x1, y1));
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.xmlcml.ami2.chem;
+
+import org.xmlcml.euclid.Real2;
+import org.xmlcml.graphics.svg.SVGElement;
+
+/**
+ * Joinable with JoinPoints at given positions and no element, for tests of the overlap search.
+ *
+ * @author pm286
+ */
+class PointJoinable extends Joinable {
+
+	/**
+	 * @param xyr x, y and radius of each JoinPoint
+	 */
+	PointJoinable(double... xyr) {
+		for (int i = 0; i + 2 < xyr.length; i += 3) {
+			getJoinPoints().add(new JoinPoint(new Real2(xyr[i], xyr[i + 1]), xyr[i + 2]));
+		}
+	}
+
+	SVGElement getSVGElement() {
+		return null;
+	}
+
+	public double getPriority() {
+		return 0;
+	}
+
+}
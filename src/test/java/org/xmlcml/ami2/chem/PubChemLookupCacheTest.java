@@ -0,0 +1,96 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PubChemLookupCacheTest {
+
+	private final static File TEST_DIR = new File("target/pubchemcache");
+	private final static long HOUR = 60 * 60 * 1000;
+	/** set on entries so that the order of use is known */
+	private final static long OLD_TIME = 1000000000000L;
+
+	@Before
+	public void setUp() {
+		FileUtils.deleteQuietly(TEST_DIR);
+	}
+
+	@Test
+	public void testPutAndGet() throws IOException {
+		PubChemLookupCache cache = new PubChemLookupCache(TEST_DIR, HOUR, 10);
+		Assert.assertNull(cache.get("ethanol"));
+		cache.put("ethanol", Arrays.asList("morgan1", "morgan2"));
+		cache.put("unknown", Collections.<String>emptyList());
+		Assert.assertEquals(Arrays.asList("morgan1", "morgan2"), cache.get("ethanol"));
+		Assert.assertEquals(Arrays.asList("morgan1", "morgan2"), cache.get("  Ethanol "));
+		Assert.assertEquals(Collections.<String>emptyList(), cache.get("unknown"));
+		Assert.assertEquals(Arrays.asList("morgan1", "morgan2"), new PubChemLookupCache(TEST_DIR, HOUR, 10).get("ETHANOL"));
+	}
+
+	@Test
+	public void testTimeToLive() throws Exception {
+		PubChemLookupCache cache = new PubChemLookupCache(TEST_DIR, 50, 10);
+		cache.put("ethanol", Arrays.asList("morgan"));
+		Assert.assertNotNull(cache.get("ethanol"));
+		Thread.sleep(100);
+		Assert.assertNull(cache.get("ethanol"));
+		Assert.assertEquals("expired entry deleted", 0, TEST_DIR.listFiles().length);
+	}
+
+	@Test
+	public void testEvictLeastRecentlyUsed() throws IOException {
+		int maximum = 10;
+		PubChemLookupCache cache = new PubChemLookupCache(TEST_DIR, HOUR, maximum);
+		for (int i = 0; i < maximum; i++) {
+			cache.put("compound" + i, Arrays.asList("morgan" + i));
+		}
+		Assert.assertEquals("no eviction up to the maximum", maximum, TEST_DIR.listFiles().length);
+		for (int i = 0; i < maximum; i++) {
+			getFile("compound" + i).setLastModified(OLD_TIME + i * 1000);
+		}
+		//used now, so most recent
+		Assert.assertNotNull(cache.get("compound0"));
+
+		cache.put("compound" + maximum, Arrays.asList("morgan" + maximum));
+		//down to 90% of the maximum, least recently used first
+		Assert.assertEquals(9, TEST_DIR.listFiles().length);
+		Assert.assertNull(cache.get("compound1"));
+		Assert.assertNull(cache.get("compound2"));
+		for (int i : new int[] {0, 3, 9, maximum}) {
+			Assert.assertEquals(Arrays.asList("morgan" + i), cache.get("compound" + i));
+		}
+
+		//the count follows deletions, so the next put does not evict
+		cache.put("compound1", Arrays.asList("morgan1"));
+		Assert.assertEquals(10, TEST_DIR.listFiles().length);
+	}
+
+	@Test
+	public void testClear() throws IOException {
+		PubChemLookupCache cache = new PubChemLookupCache(TEST_DIR, HOUR, 10);
+		cache.put("ethanol", Arrays.asList("morgan"));
+		cache.clear();
+		Assert.assertNull(cache.get("ethanol"));
+		Assert.assertEquals(0, TEST_DIR.listFiles().length);
+	}
+
+	/**
+	 * @return the entry file holding the name
+	 */
+	private static File getFile(String name) throws IOException {
+		for (File file : TEST_DIR.listFiles()) {
+			if (FileUtils.readFileToString(file, "UTF-8").contains("\"name\":\"" + name + "\"")) {
+				return file;
+			}
+		}
+		throw new IOException("No entry for " + name);
+	}
+
+}
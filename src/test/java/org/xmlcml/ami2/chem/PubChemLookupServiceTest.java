@@ -0,0 +1,191 @@
+package org.xmlcml.ami2.chem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmlcml.cml.element.CMLMolecule;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs PubChemLookupService against a local stand-in for PUG-REST.
+ */
+public class PubChemLookupServiceTest {
+
+	private final static File TEST_DIR = new File("target/pubchemlookup");
+	private final static int MANY = 150;
+
+	private HttpServer server;
+	private List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+	private PubChemLookupService service;
+
+	@Before
+	public void setUp() throws IOException {
+		FileUtils.deleteQuietly(TEST_DIR);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/rest/pug", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange);
+			}
+		});
+		server.start();
+		service = createService();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		service.close();
+		server.stop(0);
+	}
+
+	@Test
+	public void testNameToMorgans() throws IOException {
+		List<String> morgans = service.getMorgans("ethanol");
+		Assert.assertEquals(Arrays.asList(createKey(702)), morgans);
+		Assert.assertEquals(Arrays.asList("name ethanol", "sdf 1"), requests);
+	}
+
+	@Test
+	public void testCIDsInBatches() throws IOException {
+		List<String> morgans = service.getMorgans("many");
+		Assert.assertEquals(MANY, morgans.size());
+		Assert.assertEquals(createKey(1000), morgans.get(0));
+		Assert.assertEquals(createKey(1001), morgans.get(1));
+		Assert.assertEquals(Arrays.asList("name many", "sdf " + PubChemLookupService.MAXIMUM_CIDS_PER_REQUEST, "sdf " + (MANY - PubChemLookupService.MAXIMUM_CIDS_PER_REQUEST)), requests);
+	}
+
+	@Test
+	public void testSharedCIDsFetchedOnce() throws IOException {
+		Map<String, List<String>> morgans = service.getMorgans(Arrays.asList("ethanol", "alcohol", "ethanol"));
+		Assert.assertEquals(2, morgans.size());
+		Assert.assertEquals(morgans.get("ethanol"), morgans.get("alcohol"));
+		Assert.assertEquals(Arrays.asList("name ethanol", "name alcohol", "sdf 1"), requests);
+	}
+
+	@Test
+	public void testNotFound() throws IOException {
+		Assert.assertTrue(service.getMorgans("nothing").isEmpty());
+		Assert.assertEquals(Arrays.asList("name nothing"), requests);
+	}
+
+	@Test(expected = IOException.class)
+	public void testError() throws IOException {
+		service.getMorgans("broken");
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		service.close();
+		service = createService(TEST_DIR);
+		Map<String, List<String>> expected = service.getMorgans(Arrays.asList("ethanol", "nothing"));
+		Assert.assertEquals(3, requests.size());
+		requests.clear();
+		service.close();
+
+		//another service using the same directory, with names differing only in case and whitespace
+		service = createService(TEST_DIR);
+		Assert.assertEquals(expected.get("ethanol"), service.getMorgans(" Ethanol"));
+		Assert.assertTrue(service.getMorgans("NOTHING").isEmpty());
+		Assert.assertEquals(0, requests.size());
+	}
+
+	private PubChemLookupService createService() {
+		PubChemLookupService service = new PubChemLookupService(getBaseUrl());
+		service.setMinimumRequestInterval(0);
+		return service;
+	}
+
+	private PubChemLookupService createService(File cacheDirectory) throws IOException {
+		PubChemLookupService service = new PubChemLookupService(getBaseUrl(), cacheDirectory, PubChemLookupService.DEFAULT_TIME_TO_LIVE, 100);
+		service.setMinimumRequestInterval(0);
+		return service;
+	}
+
+	private String getBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/rest/pug/";
+	}
+
+	/**
+	 * Answers like PUG-REST: the CIDs for a name as text (404 for an unknown name) and the records for CIDs as SDF.
+	 */
+	private void respond(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+		String value = URLDecoder.decode(body.substring(body.indexOf('=') + 1), "UTF-8");
+		int status = 200;
+		StringBuilder response = new StringBuilder();
+		if (path.endsWith("/compound/name/cids/TXT")) {
+			requests.add("name " + value);
+			if (value.equals("ethanol") || value.equals("alcohol")) {
+				response.append("702\n");
+			} else if (value.equals("many")) {
+				for (int cid = 1000; cid < 1000 + MANY; cid++) {
+					response.append(cid + "\n");
+				}
+			} else if (value.equals("broken")) {
+				status = 500;
+				response.append("Status: 500\nCode: PUGREST.ServerError\n");
+			} else {
+				status = 404;
+				response.append("Status: 404\nCode: PUGREST.NotFound\n");
+			}
+		} else if (path.endsWith("/compound/cid/SDF")) {
+			String[] cids = value.split(",");
+			requests.add("sdf " + cids.length);
+			for (String cid : cids) {
+				response.append(createRecord(Integer.parseInt(cid)));
+			}
+		} else {
+			status = 400;
+		}
+		byte[] bytes = response.toString().getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static String createKey(int cid) throws IOException {
+		Map<String, CMLMolecule> molecules = PubChemLookupService.createMoleculesFromSDF(createRecord(cid));
+		return MorganIndex.createKey(molecules.get(String.valueOf(cid)));
+	}
+
+	/**
+	 * @return ethanol for 702, else propane for even and ethylene for odd CIDs
+	 */
+	private static String createRecord(int cid) {
+		String[] elements = (cid == 702 ? new String[] {"C", "C", "O"} : (cid % 2 == 0 ? new String[] {"C", "C", "C"} : new String[] {"C", "C"}));
+		int[][] bonds = (elements.length == 3 ? new int[][] {{1, 2, 1}, {2, 3, 1}} : new int[][] {{1, 2, 2}});
+		StringBuilder sb = new StringBuilder();
+		sb.append(cid + "\n  test\n\n");
+		sb.append(String.format("%3d%3d  0  0  0  0  0  0  0  0999 V2000\n", elements.length, bonds.length));
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(String.format("%10.4f%10.4f%10.4f %-3s 0  0  0  0  0  0  0  0  0  0  0  0\n", 1.5 * i, (i % 2) * 0.8, 0.0, elements[i]));
+		}
+		for (int[] bond : bonds) {
+			sb.append(String.format("%3d%3d%3d  0\n", bond[0], bond[1], bond[2]));
+		}
+		sb.append("M  END\n> <PUBCHEM_COMPOUND_CID>\n" + cid + "\n\n$$$$\n");
+		return sb.toString();
+	}
+
+}